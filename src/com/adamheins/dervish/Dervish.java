@@ -13,6 +13,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
+import com.adamheins.dervish.function.EvaluationException;
 import com.adamheins.dervish.parser.CommandParser;
 import com.adamheins.dervish.parser.ParsingException;
 
@@ -56,13 +57,19 @@ public class Dervish {
                         .equals("exit"))
                     break;
                 try {
-                    String result = parser.parse(input);
-                    if (!result.equals(""))
-                        System.out.println(result);
+
+                    // Results are written straight to the output as they are
+                    // produced, however large they are.
+                    Output output = new Output();
+                    parser.parse(input, output);
+                    if (output.written)
+                        System.out.println();
                 } catch (ParsingException e) {
                     System.out.println(e.getMessage());
                 } catch (ArithmeticException e) {
                     System.out.println(e.getMessage());
+                } catch (EvaluationException e) {
+                    System.out.println(e.getMessage());
                 }
 
                 if (!fromFile)
@@ -73,4 +80,36 @@ public class Dervish {
             e.printStackTrace();
         }
     }
+
+
+    /**
+     * Appends to standard output, and records whether anything has been
+     * appended.
+     */
+    private static class Output implements Appendable {
+
+        boolean written = false;
+
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            return append(csq, 0, csq.length());
+        }
+
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            written |= end > start;
+            System.out.append(csq, start, end);
+            return this;
+        }
+
+
+        @Override
+        public Appendable append(char c) {
+            written = true;
+            System.out.append(c);
+            return this;
+        }
+    }
 }
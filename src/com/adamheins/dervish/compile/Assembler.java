@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.adamheins.dervish.function.Function;
+import com.adamheins.dervish.function.Number;
+import com.adamheins.dervish.function.Variable;
+
+/**
+ * Flattens a Function into a Program. The tree is walked in post-order using
+ * an explicit stack, so functions of any depth can be assembled. A node that
+ * is reachable along more than one path is only assembled once.
+ *
+ * @author Adam
+ */
+class Assembler {
+
+    // Compiler providing the variable slots.
+    private final FunctionCompiler compiler;
+
+    // Instructions emitted so far.
+    private int[] code;
+    private int length;
+
+    // Table of constants, and the index of each constant in it.
+    private double[] constants;
+    private int constantCount;
+    private final Map<Long, Integer> constantIndices;
+
+    // Register holding the value of each node that has been assembled.
+    private final Map<Function, Integer> registers;
+
+
+    /**
+     * Constructor.
+     *
+     * @param compiler The compiler providing the variable slots.
+     */
+    Assembler(FunctionCompiler compiler) {
+        this.compiler = compiler;
+        this.code = new int[16 * Program.WIDTH];
+        this.length = 0;
+        this.constants = new double[8];
+        this.constantCount = 0;
+        this.constantIndices = new HashMap<Long, Integer>();
+        this.registers = new IdentityHashMap<Function, Integer>();
+    }
+
+
+    /**
+     * Assembles a Function.
+     *
+     * @param function The Function to assemble.
+     *
+     * @return The assembled Program.
+     */
+    Program assemble(Function function) {
+
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        funcStack.push(function);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.peek();
+
+            if (registers.containsKey(current)) {
+                funcStack.pop();
+                continue;
+            }
+
+            Operation op = Operation.of(current);
+
+            // Assemble the children first.
+            boolean ready = true;
+            if (op.isBinary() && !registers.containsKey(current
+                    .getSecondChild())) {
+                funcStack.push(current.getSecondChild());
+                ready = false;
+            }
+            if (op != Operation.NUMBER && op != Operation.VARIABLE
+                    && !registers.containsKey(current.getFirstChild())) {
+                funcStack.push(current.getFirstChild());
+                ready = false;
+            }
+            if (!ready)
+                continue;
+
+            funcStack.pop();
+            registers.put(current, emit(op, current));
+        }
+
+        int[] program = Arrays.copyOf(code, length);
+        double[] table = Arrays.copyOf(constants, constantCount);
+        return new Program(program, table, compiler.getVariables(),
+                length / Program.WIDTH, registers.get(function));
+    }
+
+
+    /**
+     * Emits the instructions for a single node whose children have already
+     * been assembled.
+     *
+     * @param op The operation performed by the node.
+     * @param function The node.
+     *
+     * @return The register holding the value of the node.
+     */
+    private int emit(Operation op, Function function) {
+
+        switch (op) {
+        case NUMBER:
+            return instruction(Program.CONSTANT, constant(((Number)function)
+                    .doubleValue()), 0);
+        case VARIABLE:
+            return instruction(Program.VARIABLE, compiler.slot(
+                    (Variable)function), 0);
+        case NEGATE:
+            return unary(Program.NEGATE, function);
+        case ADD:
+            return binary(Program.ADD, function);
+        case SUBTRACT:
+            return binary(Program.SUBTRACT, function);
+        case MULTIPLY:
+            return binary(Program.MULTIPLY, function);
+        case DIVIDE:
+            return binary(Program.DIVIDE, function);
+        case POWER:
+            return binary(Program.POWER, function);
+        case SIN:
+            return unary(Program.SIN, function);
+        case COS:
+            return unary(Program.COS, function);
+        case TAN:
+            return unary(Program.TAN, function);
+        case LN:
+            return unary(Program.LN, function);
+        case LOG:
+            int ln = unary(Program.LN, function);
+            int base = instruction(Program.CONSTANT, constant(Operation
+                    .logBase(function)), 0);
+            return instruction(Program.DIVIDE, ln, base);
+        }
+        throw new AssertionError(op);
+    }
+
+
+    private int unary(int opcode, Function function) {
+        return instruction(opcode, registers.get(function.getFirstChild()), 0);
+    }
+
+
+    private int binary(int opcode, Function function) {
+        return instruction(opcode, registers.get(function.getFirstChild()),
+                registers.get(function.getSecondChild()));
+    }
+
+
+    /**
+     * Appends an instruction, which writes to a new register.
+     *
+     * @param opcode The opcode.
+     * @param a The first operand.
+     * @param b The second operand.
+     *
+     * @return The destination register of the instruction.
+     */
+    private int instruction(int opcode, int a, int b) {
+        if (length == code.length)
+            code = Arrays.copyOf(code, code.length * 2);
+
+        int dst = length / Program.WIDTH;
+        code[length++] = opcode;
+        code[length++] = dst;
+        code[length++] = a;
+        code[length++] = b;
+        return dst;
+    }
+
+
+    /**
+     * Get the index of a constant in the table, adding it if necessary.
+     *
+     * @param value The constant.
+     *
+     * @return The index of the constant.
+     */
+    private int constant(double value) {
+        Long bits = Double.doubleToRawLongBits(value);
+        Integer index = constantIndices.get(bits);
+        if (index != null)
+            return index;
+
+        if (constantCount == constants.length)
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount] = value;
+        constantIndices.put(bits, constantCount);
+        return constantCount++;
+    }
+}
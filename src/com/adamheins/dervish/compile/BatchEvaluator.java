@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Evaluates a Program over many sets of variable values at once. The values of
+ * each variable are passed as a column, and the program is run one
+ * instruction at a time across a whole block of rows. Each instruction is
+ * then a simple loop over arrays, which the JIT compiler vectorizes.
+ *
+ * Intermediate results are stored in columns that are reused once the
+ * register they hold is no longer needed, so the memory used depends on the
+ * shape of the function rather than its size.
+ *
+ * @author Adam
+ */
+public class BatchEvaluator {
+
+    // Number of rows evaluated by each pass over the instructions.
+    private static final int BLOCK_SIZE = 1024;
+
+    // Column used for each register, or -1 for registers that read a variable
+    // directly from its input column.
+    private static final int INPUT = -1;
+
+    private final Program program;
+
+    // Column assigned to each register.
+    private final int[] columnOf;
+
+    // Number of scratch columns needed.
+    private final int columnCount;
+
+
+    /**
+     * Constructor.
+     *
+     * @param program The program to evaluate.
+     */
+    public BatchEvaluator(Program program) {
+        this.program = program;
+
+        int[] code = program.code;
+        int registerCount = program.registerCount;
+
+        // Find the last instruction that reads each register.
+        int[] lastUse = new int[registerCount];
+        for (int pc = 0; pc < code.length; pc += Program.WIDTH) {
+            int op = code[pc];
+            if (op == Program.CONSTANT || op == Program.VARIABLE)
+                continue;
+            lastUse[code[pc + 2]] = pc;
+            if (isBinary(op))
+                lastUse[code[pc + 3]] = pc;
+        }
+        lastUse[program.result] = code.length;
+
+        // Assign columns in program order, reusing the columns of registers
+        // that are dead. Constants keep their columns, since they are filled
+        // only once per evaluation.
+        columnOf = new int[registerCount];
+        Deque<Integer> free = new ArrayDeque<Integer>();
+        int columns = 0;
+        for (int pc = 0; pc < code.length; pc += Program.WIDTH) {
+            int op = code[pc];
+            int dst = code[pc + 1];
+
+            if (op == Program.VARIABLE) {
+                columnOf[dst] = INPUT;
+                continue;
+            } else if (op != Program.CONSTANT) {
+                release(code[pc + 2], pc, lastUse, code, free);
+                if (isBinary(op) && code[pc + 3] != code[pc + 2])
+                    release(code[pc + 3], pc, lastUse, code, free);
+            }
+
+            columnOf[dst] = op == Program.CONSTANT || free.isEmpty()
+                    ? columns++ : free.pop();
+        }
+        columnCount = columns;
+    }
+
+
+    /**
+     * Evaluates the program for every row of the given columns.
+     *
+     * @param columns Map of variable names to their values in each row.
+     * @param out Array that the value of the function for each row is written
+     *         to. Its length is the number of rows.
+     *
+     * @throws IllegalArgumentException If a variable of the program has no
+     *         column or a column is shorter than the output.
+     */
+    public void evaluate(Map<String, double[]> columns, double[] out) {
+        String[] variables = program.variables;
+        double[][] bySlot = new double[variables.length][];
+        for (int i = 0; i < variables.length; ++i)
+            bySlot[i] = columns.get(variables[i]);
+        evaluate(bySlot, out);
+    }
+
+
+    /**
+     * Evaluates the program for every row of the given columns.
+     *
+     * @param columns The values of the variables in each row, indexed by the
+     *         slot of the variable.
+     * @param out Array that the value of the function for each row is written
+     *         to. Its length is the number of rows.
+     *
+     * @throws IllegalArgumentException If a variable of the program has no
+     *         column or a column is shorter than the output.
+     */
+    public void evaluate(double[][] columns, double[] out) {
+
+        final int[] code = program.code;
+
+        for (int pc = 0; pc < code.length; pc += Program.WIDTH) {
+            if (code[pc] != Program.VARIABLE)
+                continue;
+            int slot = code[pc + 2];
+            if (slot >= columns.length || columns[slot] == null
+                    || columns[slot].length < out.length)
+                throw new IllegalArgumentException("Missing values for"
+                        + " variable '" + program.variables[slot] + "'.");
+        }
+
+        int block = Math.min(BLOCK_SIZE, out.length);
+        double[][] scratch = new double[columnCount][block];
+
+        // Constants are the same for every block.
+        for (int pc = 0; pc < code.length; pc += Program.WIDTH) {
+            if (code[pc] == Program.CONSTANT)
+                Arrays.fill(scratch[columnOf[code[pc + 1]]],
+                        program.constants[code[pc + 2]]);
+        }
+
+        for (int start = 0; start < out.length; start += block) {
+            int n = Math.min(block, out.length - start);
+            run(columns, scratch, start, n);
+
+            int result = program.result;
+            double[] src = array(result, columns, scratch);
+            int offset = offset(result, start);
+            System.arraycopy(src, offset, out, start, n);
+        }
+    }
+
+
+    /**
+     * Runs the program over one block of rows.
+     *
+     * @param columns The input columns, indexed by slot.
+     * @param scratch The scratch columns.
+     * @param start The index of the first row of the block.
+     * @param n The number of rows in the block.
+     */
+    private void run(double[][] columns, double[][] scratch, int start,
+            int n) {
+
+        final int[] code = program.code;
+
+        for (int pc = 0; pc < code.length; pc += Program.WIDTH) {
+            int op = code[pc];
+            if (op == Program.CONSTANT || op == Program.VARIABLE)
+                continue;
+
+            double[] d = scratch[columnOf[code[pc + 1]]];
+            int ra = code[pc + 2];
+            double[] a = array(ra, columns, scratch);
+            int ao = offset(ra, start);
+
+            if (isBinary(op)) {
+                int rb = code[pc + 3];
+                double[] b = array(rb, columns, scratch);
+                int bo = offset(rb, start);
+                binary(op, d, a, ao, b, bo, n);
+            } else {
+                unary(op, d, a, ao, n);
+            }
+        }
+    }
+
+
+    /**
+     * Applies a binary operation elementwise.
+     */
+    private static void binary(int op, double[] d, double[] a, int ao,
+            double[] b, int bo, int n) {
+        switch (op) {
+        case Program.ADD:
+            for (int i = 0; i < n; ++i)
+                d[i] = a[ao + i] + b[bo + i];
+            break;
+        case Program.SUBTRACT:
+            for (int i = 0; i < n; ++i)
+                d[i] = a[ao + i] - b[bo + i];
+            break;
+        case Program.MULTIPLY:
+            for (int i = 0; i < n; ++i)
+                d[i] = a[ao + i] * b[bo + i];
+            break;
+        case Program.DIVIDE:
+            for (int i = 0; i < n; ++i)
+                d[i] = a[ao + i] / b[bo + i];
+            break;
+        case Program.POWER:
+            for (int i = 0; i < n; ++i)
+                d[i] = Math.pow(a[ao + i], b[bo + i]);
+            break;
+        }
+    }
+
+
+    /**
+     * Applies a unary operation elementwise.
+     */
+    private static void unary(int op, double[] d, double[] a, int ao, int n) {
+        switch (op) {
+        case Program.NEGATE:
+            for (int i = 0; i < n; ++i)
+                d[i] = -a[ao + i];
+            break;
+        case Program.SIN:
+            for (int i = 0; i < n; ++i)
+                d[i] = Math.sin(a[ao + i]);
+            break;
+        case Program.COS:
+            for (int i = 0; i < n; ++i)
+                d[i] = Math.cos(a[ao + i]);
+            break;
+        case Program.TAN:
+            for (int i = 0; i < n; ++i)
+                d[i] = Math.tan(a[ao + i]);
+            break;
+        case Program.LN:
+            for (int i = 0; i < n; ++i)
+                d[i] = Math.log(a[ao + i]);
+            break;
+        }
+    }
+
+
+    /**
+     * Get the array holding the values of a register.
+     */
+    private double[] array(int register, double[][] columns,
+            double[][] scratch) {
+        int column = columnOf[register];
+        if (column == INPUT)
+            return columns[program.code[register * Program.WIDTH + 2]];
+        return scratch[column];
+    }
+
+
+    /**
+     * Get the offset of the current block within the array holding the values
+     * of a register. Input columns hold every row, while scratch columns hold
+     * only the current block.
+     */
+    private int offset(int register, int start) {
+        return columnOf[register] == INPUT ? start : 0;
+    }
+
+
+    /**
+     * Returns the column of a register to the free list if the given
+     * instruction is the last to read it.
+     */
+    private void release(int register, int pc, int[] lastUse, int[] code,
+            Deque<Integer> free) {
+        int op = code[register * Program.WIDTH];
+        if (lastUse[register] == pc && op != Program.CONSTANT
+                && op != Program.VARIABLE)
+            free.push(columnOf[register]);
+    }
+
+
+    private static boolean isBinary(int op) {
+        return op == Program.ADD || op == Program.SUBTRACT
+                || op == Program.MULTIPLY || op == Program.DIVIDE
+                || op == Program.POWER;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files. It supports exactly what the compiler
+ * needs: a class with no fields, implementing some interfaces, with methods
+ * that contain straight-line code. Since there are no branches, no stack map
+ * frames need to be generated.
+ *
+ * @author Adam
+ */
+class ClassFile {
+
+    // Class file format version (Java 8).
+    private static final int MAJOR_VERSION = 52;
+
+    // Constant pool tags.
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    // Access flags.
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Constant pool entries that have been written so far, and the index of
+    // each, so that entries are not duplicated.
+    private final Map<String, Integer> constants;
+    private final ByteArrayOutputStream poolBytes;
+    private final DataOutputStream pool;
+    private int poolCount;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces;
+
+    private final ByteArrayOutputStream methodBytes;
+    private final DataOutputStream methods;
+    private int methodCount;
+
+
+    /**
+     * Constructor.
+     *
+     * @param name The internal name of the class.
+     * @param superName The internal name of the super class.
+     * @param interfaceNames The internal names of the implemented interfaces.
+     */
+    ClassFile(String name, String superName, String... interfaceNames) {
+        constants = new HashMap<String, Integer>();
+        poolBytes = new ByteArrayOutputStream();
+        pool = new DataOutputStream(poolBytes);
+        poolCount = 1;
+
+        methodBytes = new ByteArrayOutputStream();
+        methods = new DataOutputStream(methodBytes);
+        methodCount = 0;
+
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new ArrayList<Integer>();
+        for (String interfaceName : interfaceNames)
+            interfaces.add(classRef(interfaceName));
+    }
+
+
+    /**
+     * Get the constant pool index of a UTF-8 string, adding it if necessary.
+     *
+     * @param str The string.
+     *
+     * @return The index of the string in the constant pool.
+     */
+    int utf8(String str) {
+        String key = "U" + str;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            pool.writeByte(UTF8);
+            pool.writeUTF(str);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return addConstant(key, 1);
+    }
+
+
+    /**
+     * Get the constant pool index of a class reference, adding it if
+     * necessary.
+     *
+     * @param name The internal name of the class.
+     *
+     * @return The index of the class reference in the constant pool.
+     */
+    int classRef(String name) {
+        String key = "C" + name;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        int nameIndex = utf8(name);
+        try {
+            pool.writeByte(CLASS);
+            pool.writeShort(nameIndex);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return addConstant(key, 1);
+    }
+
+
+    /**
+     * Get the constant pool index of a method reference, adding it if
+     * necessary.
+     *
+     * @param owner The internal name of the class declaring the method.
+     * @param name The name of the method.
+     * @param descriptor The descriptor of the method.
+     *
+     * @return The index of the method reference in the constant pool.
+     */
+    int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            pool.writeByte(NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+            int nameAndType = addConstant("N" + name + descriptor, 1);
+            pool.writeByte(METHOD_REF);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return addConstant(key, 1);
+    }
+
+
+    /**
+     * Get the constant pool index of a double constant, adding it if
+     * necessary.
+     *
+     * @param value The double value.
+     *
+     * @return The index of the double in the constant pool.
+     */
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            pool.writeByte(DOUBLE);
+            pool.writeLong(bits);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        // Doubles take up two entries in the constant pool.
+        return addConstant(key, 2);
+    }
+
+
+    /**
+     * Get the constant pool index of an int constant, adding it if necessary.
+     *
+     * @param value The int value.
+     *
+     * @return The index of the int in the constant pool.
+     */
+    int intConstant(int value) {
+        String key = "I" + value;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            pool.writeByte(INTEGER);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return addConstant(key, 1);
+    }
+
+
+    /**
+     * Add a method to the class.
+     *
+     * @param access The access flags of the method.
+     * @param name The name of the method.
+     * @param descriptor The descriptor of the method.
+     * @param code The bytecode of the method body.
+     * @param maxStack The maximum depth of the operand stack.
+     * @param maxLocals The number of local variable slots used.
+     */
+    void addMethod(int access, String name, String descriptor, byte[] code,
+            int maxStack, int maxLocals) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeIndex = utf8("Code");
+        try {
+            methods.writeShort(access);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+
+            // The only attribute is the code.
+            methods.writeShort(1);
+            methods.writeShort(codeIndex);
+            methods.writeInt(12 + code.length);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(code.length);
+            methods.write(code);
+
+            // No exception table or attributes.
+            methods.writeShort(0);
+            methods.writeShort(0);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        methodCount++;
+    }
+
+
+    /**
+     * Get the bytes of the class file.
+     *
+     * @return The class file.
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int index : interfaces)
+                out.writeShort(index);
+
+            // No fields.
+            out.writeShort(0);
+
+            out.writeShort(methodCount);
+            out.write(methodBytes.toByteArray());
+
+            // No class attributes.
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Record a new constant pool entry.
+     *
+     * @param key The key identifying the entry.
+     * @param size The number of pool slots the entry occupies.
+     *
+     * @return The index of the new entry.
+     */
+    private int addConstant(String key, int size) {
+        int index = poolCount;
+        constants.put(key, index);
+        poolCount += size;
+        if (poolCount > 0xFFFF)
+            throw new CompilationException("Function is too large to"
+                    + " compile.");
+        return index;
+    }
+}
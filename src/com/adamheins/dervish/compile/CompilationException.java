@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+/**
+ * Thrown when a Function cannot be compiled. For example, when it contains a
+ * variable that has not been assigned a slot.
+ */
+public class CompilationException extends RuntimeException {
+
+    private static final long serialVersionUID = -2301546208394017745L;
+
+    CompilationException(String msg) {
+        super(msg);
+    }
+
+
+    CompilationException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+/**
+ * A Function that has been compiled for fast evaluation using double
+ * precision arithmetic.
+ *
+ * @author Adam
+ */
+public interface CompiledFunction {
+
+    /**
+     * Evaluates the function.
+     *
+     * @param vars The values of the variables, indexed by the slot assigned to
+     *         each variable when the function was compiled.
+     *
+     * @return The value of the function.
+     */
+    double applyAsDouble(double[] vars);
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+/**
+ * Computes the derivative of a Program along a direction using forward-mode
+ * automatic differentiation. Each register is paired with a tangent, which is
+ * the derivative of its value along the direction, and both are computed in a
+ * single pass over the instructions. Unlike {@link Gradient}, no tape is swept
+ * afterwards, so the cost is independent of the order in which the results
+ * are needed, but a separate pass is needed for each direction.
+ *
+ * @author Adam
+ */
+public class DirectionalDerivative {
+
+    private final Program program;
+
+
+    /**
+     * Constructor.
+     *
+     * @param program The program to differentiate.
+     */
+    public DirectionalDerivative(Program program) {
+        this.program = program;
+    }
+
+
+    /**
+     * Evaluates the derivative of the program along a direction. New register
+     * and tangent arrays are allocated; callers that evaluate the derivative
+     * repeatedly should supply their own with
+     * {@link #evaluate(double[], double[], double[], double[])}.
+     *
+     * @param vars The values of the variables, indexed by slot.
+     * @param direction The component of the direction along each variable,
+     *         indexed by slot. A unit vector gives a partial derivative.
+     *
+     * @return The derivative of the program along the direction.
+     */
+    public double evaluate(double[] vars, double[] direction) {
+        int registerCount = program.getRegisterCount();
+        return evaluate(vars, direction, new double[registerCount],
+                new double[registerCount]);
+    }
+
+
+    /**
+     * Evaluates the derivative of the program along a direction using the
+     * given working arrays. Afterwards, the registers hold the values of the
+     * nodes of the program as they would after {@link Program#evaluate}.
+     *
+     * @param vars The values of the variables, indexed by slot.
+     * @param direction The component of the direction along each variable,
+     *         indexed by slot.
+     * @param registers The register file, which must be at least
+     *         {@link Program#getRegisterCount()} long.
+     * @param tangents Array for the tangents of the registers, which must be
+     *         at least {@link Program#getRegisterCount()} long.
+     *
+     * @return The derivative of the program along the direction.
+     */
+    public double evaluate(double[] vars, double[] direction,
+            double[] registers, double[] tangents) {
+
+        final int[] code = program.code;
+        final double[] constants = program.constants;
+        final double[] r = registers;
+        final double[] t = tangents;
+
+        for (int pc = 0; pc < code.length; pc += Program.WIDTH) {
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+
+            switch (code[pc]) {
+            case Program.CONSTANT:
+                r[dst] = constants[a];
+                t[dst] = 0.0;
+                break;
+            case Program.VARIABLE:
+                r[dst] = vars[a];
+                t[dst] = direction[a];
+                break;
+            case Program.NEGATE:
+                r[dst] = -r[a];
+                t[dst] = -t[a];
+                break;
+            case Program.ADD:
+                r[dst] = r[a] + r[b];
+                t[dst] = t[a] + t[b];
+                break;
+            case Program.SUBTRACT:
+                r[dst] = r[a] - r[b];
+                t[dst] = t[a] - t[b];
+                break;
+            case Program.MULTIPLY:
+                r[dst] = r[a] * r[b];
+                t[dst] = t[a] * r[b] + r[a] * t[b];
+                break;
+            case Program.DIVIDE:
+                r[dst] = r[a] / r[b];
+                t[dst] = (t[a] - r[dst] * t[b]) / r[b];
+                break;
+            case Program.POWER:
+                r[dst] = Math.pow(r[a], r[b]);
+                t[dst] = t[a] == 0.0 ? 0.0
+                        : t[a] * r[b] * Math.pow(r[a], r[b] - 1);
+
+                // As in Gradient, the logarithm of the base is only needed if
+                // the exponent varies along the direction.
+                if (t[b] != 0.0)
+                    t[dst] += t[b] * r[dst] * Math.log(r[a]);
+                break;
+            case Program.SIN:
+                r[dst] = Math.sin(r[a]);
+                t[dst] = t[a] * Math.cos(r[a]);
+                break;
+            case Program.COS:
+                r[dst] = Math.cos(r[a]);
+                t[dst] = -t[a] * Math.sin(r[a]);
+                break;
+            case Program.TAN:
+                r[dst] = Math.tan(r[a]);
+                double cos = Math.cos(r[a]);
+                t[dst] = t[a] / (cos * cos);
+                break;
+            case Program.LN:
+                r[dst] = Math.log(r[a]);
+                t[dst] = t[a] / r[a];
+                break;
+            }
+        }
+
+        return t[program.result];
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.adamheins.dervish.function.Function;
+import com.adamheins.dervish.function.Number;
+import com.adamheins.dervish.function.Polynomial;
+import com.adamheins.dervish.function.Variable;
+
+/**
+ * Compiles Functions to JVM bytecode. Each compiled function is a hidden class
+ * that evaluates the function using double precision arithmetic, without
+ * allocating any objects. Hidden classes are unloaded once the compiled
+ * function is no longer referenced.
+ *
+ * Evaluation of the original Function remains the reference implementation;
+ * compiled functions trade its arbitrary precision for speed.
+ *
+ * @author Adam
+ */
+public class FunctionCompiler {
+
+    // Internal names used in the generated code.
+    private static final String CLASS_NAME
+            = "com/adamheins/dervish/compile/GeneratedFunction";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INTERFACE
+            = "com/adamheins/dervish/compile/CompiledFunction";
+    private static final String MATH = "java/lang/Math";
+
+    // Bytecode instructions.
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DLOAD = 0x18;
+    private static final int DALOAD = 0x31;
+    private static final int DSTORE = 0x39;
+    private static final int DUP2 = 0x5c;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DNEG = 0x77;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int WIDE = 0xc4;
+
+    // First local variable slot available for shared values. Slot 0 holds
+    // 'this' and slot 1 holds the array of variable values.
+    private static final int FIRST_LOCAL = 2;
+
+    // Maximum length of the code of a single method, which is also the limit
+    // on the depth of its operand stack.
+    private static final int MAX_CODE_LENGTH = 0xFFFF;
+
+    // Maximum number of local variable slots of a single method, which the
+    // class file records as max_locals in two bytes.
+    private static final int MAX_LOCALS = 0xFFFF;
+
+    // The variables in the order of their slots.
+    private final List<String> variables;
+
+    // Map of variable names to the index in the array of values at which the
+    // value of the variable is found.
+    private final Map<String, Integer> slots;
+
+
+    /**
+     * Constructor.
+     *
+     * @param variables The variables that may appear in compiled functions.
+     *         The position of each variable in the list is the index at which
+     *         its value is passed to the compiled function.
+     */
+    public FunctionCompiler(List<String> variables) {
+        this.variables = new ArrayList<String>();
+        if (variables != null)
+            this.variables.addAll(variables);
+
+        slots = new HashMap<String, Integer>();
+        for (int i = 0; i < this.variables.size(); ++i)
+            slots.put(this.variables.get(i), i);
+    }
+
+
+    /**
+     * Compiles a Function. The function is evaluated first, so that constant
+     * subexpressions are folded at full precision and repeated subexpressions
+     * are shared. Each shared subexpression is computed once and kept in a
+     * local variable.
+     *
+     * @param function The Function to compile.
+     *
+     * @return The compiled function.
+     *
+     * @throws CompilationException If the function contains variables that
+     *         were not given a slot, or is too large to compile.
+     */
+    public CompiledFunction compile(Function function) {
+
+        Function root = prepare(function);
+        Code code = new Code(new ClassFile(CLASS_NAME, OBJECT, INTERFACE),
+                findShared(root));
+        emit(root, code);
+        code.op(DRETURN, -2);
+
+        byte[] bytes = code.toClassFile();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(bytes, true);
+            MethodHandle constructor = lookup.findConstructor(
+                    lookup.lookupClass(), MethodType.methodType(void.class));
+            return (CompiledFunction)constructor.invoke();
+        } catch (Throwable e) {
+            throw new CompilationException("Failed to load compiled function.",
+                    e);
+        }
+    }
+
+
+    /**
+     * Assembles a Function into a Program for the interpreter. This is cheaper
+     * than compiling to bytecode, since no class is generated, which makes it
+     * the better choice for functions that are not evaluated many times. The
+     * function is evaluated first, so that constant subexpressions are folded
+     * at full precision.
+     *
+     * @param function The Function to assemble.
+     *
+     * @return The assembled Program.
+     *
+     * @throws CompilationException If the function contains variables that
+     *         were not given a slot.
+     */
+    public Program assemble(Function function) {
+        return new Assembler(this).assemble(prepare(function));
+    }
+
+
+    /**
+     * Assembles a Function into a Program whose slots are only the variables
+     * that the function actually depends on, in the same relative order as
+     * their slots in this compiler.
+     *
+     * @param function The Function to assemble.
+     *
+     * @return The assembled Program.
+     *
+     * @throws CompilationException If the function contains variables that
+     *         were not given a slot.
+     */
+    Program assembleDependencies(Function function) {
+        Function root = prepare(function);
+        int[] dependencies = new Assembler(this).assemble(root).dependencies();
+
+        List<String> names = new ArrayList<String>(dependencies.length);
+        for (int slot : dependencies)
+            names.add(variables.get(slot));
+        return new Assembler(new FunctionCompiler(names)).assemble(root);
+    }
+
+
+    /**
+     * Evaluates a Function and expands its Polynomials into ordinary
+     * operators, which is the form in which it is compiled.
+     *
+     * @param function The Function.
+     *
+     * @return The Function to compile.
+     */
+    private static Function prepare(Function function) {
+        return Polynomial.expand(function.evaluate());
+    }
+
+
+    /**
+     * Get the slot assigned to a variable.
+     *
+     * @param variable The variable.
+     *
+     * @return The index at which the value of the variable is passed.
+     *
+     * @throws CompilationException If the variable was not given a slot.
+     */
+    int slot(Variable variable) {
+        Integer slot = slots.get(variable.getName());
+        if (slot == null)
+            throw new CompilationException("Variable '" + variable.getName()
+                    + "' has no slot.");
+        return slot;
+    }
+
+
+    /**
+     * Get the variables in the order of their slots.
+     *
+     * @return The names of the variables.
+     */
+    String[] getVariables() {
+        return variables.toArray(new String[variables.size()]);
+    }
+
+
+    /**
+     * Emits the code to evaluate a Function, leaving its value on top of the
+     * operand stack.
+     *
+     * @param function The Function.
+     * @param code The code being generated.
+     */
+    private void emit(Function function, Code code) {
+
+        Integer local = code.locals.get(function);
+        if (local != null) {
+            code.local(DLOAD, local, 2);
+            return;
+        }
+
+        emitNode(function, code);
+
+        // Keep a copy of the value of a shared subexpression.
+        if (code.shared.containsKey(function)) {
+            local = code.newLocal();
+            code.op(DUP2, 2);
+            code.local(DSTORE, local, -2);
+            code.locals.put(function, local);
+        }
+    }
+
+
+    /**
+     * Emits the code to compute the value of a single node.
+     *
+     * @param function The node.
+     * @param code The code being generated.
+     */
+    private void emitNode(Function function, Code code) {
+
+        switch (Operation.of(function)) {
+        case NUMBER:
+            code.constant(((Number)function).doubleValue());
+            break;
+        case VARIABLE:
+            code.op(ALOAD_1, 1);
+            code.index(slot((Variable)function));
+            code.op(DALOAD, 0);
+            break;
+        case NEGATE:
+            emit(function.getFirstChild(), code);
+            code.op(DNEG, 0);
+            break;
+        case ADD:
+            emitBinary(function, code);
+            code.op(DADD, -2);
+            break;
+        case SUBTRACT:
+            emitBinary(function, code);
+            code.op(DSUB, -2);
+            break;
+        case MULTIPLY:
+            emitBinary(function, code);
+            code.op(DMUL, -2);
+            break;
+        case DIVIDE:
+            emitBinary(function, code);
+            code.op(DDIV, -2);
+            break;
+        case POWER:
+            emitBinary(function, code);
+            code.invokeMath("pow", "(DD)D", -2);
+            break;
+        case SIN:
+            emit(function.getFirstChild(), code);
+            code.invokeMath("sin", "(D)D", 0);
+            break;
+        case COS:
+            emit(function.getFirstChild(), code);
+            code.invokeMath("cos", "(D)D", 0);
+            break;
+        case TAN:
+            emit(function.getFirstChild(), code);
+            code.invokeMath("tan", "(D)D", 0);
+            break;
+        case LN:
+            emit(function.getFirstChild(), code);
+            code.invokeMath("log", "(D)D", 0);
+            break;
+        case LOG:
+            emit(function.getFirstChild(), code);
+            code.invokeMath("log", "(D)D", 0);
+            code.constant(Operation.logBase(function));
+            code.op(DDIV, -2);
+            break;
+        }
+    }
+
+
+    /**
+     * Emits the code to evaluate both children of a binary operator.
+     *
+     * @param function The binary operator.
+     * @param code The code being generated.
+     */
+    private void emitBinary(Function function, Code code) {
+        emit(function.getFirstChild(), code);
+        emit(function.getSecondChild(), code);
+    }
+
+
+    /**
+     * Finds the nodes of a Function that are reachable along more than one
+     * path. Numbers and variables are excluded, since they are as cheap to
+     * load again as a local variable.
+     *
+     * @param root The root of the Function.
+     *
+     * @return Map whose keys are the shared nodes.
+     */
+    private static Map<Function, Boolean> findShared(Function root) {
+
+        Map<Function, Boolean> seen = new IdentityHashMap<Function, Boolean>();
+        Map<Function, Boolean> shared = new IdentityHashMap<Function,
+                Boolean>();
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        funcStack.push(root);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.pop();
+            Operation op = Operation.of(current);
+            if (op == Operation.NUMBER || op == Operation.VARIABLE)
+                continue;
+
+            if (seen.containsKey(current)) {
+                shared.put(current, true);
+                continue;
+            }
+            seen.put(current, true);
+
+            funcStack.push(current.getFirstChild());
+            if (op.isBinary())
+                funcStack.push(current.getSecondChild());
+        }
+
+        return shared;
+    }
+
+
+    /**
+     * The body of the generated evaluation method, along with the class file
+     * that holds its constants.
+     */
+    private static class Code {
+
+        private final ClassFile classFile;
+        private final ByteArrayOutputStream bytes;
+
+        // Nodes whose values are kept in local variables, and the local
+        // variable of each once it has been computed.
+        final Map<Function, Boolean> shared;
+        final Map<Function, Integer> locals;
+        private int nextLocal;
+
+        // Current and maximum depth of the operand stack, in slots.
+        private int stack;
+        private int maxStack;
+
+
+        Code(ClassFile classFile, Map<Function, Boolean> shared) {
+            this.classFile = classFile;
+            this.bytes = new ByteArrayOutputStream();
+            this.shared = shared;
+            this.locals = new IdentityHashMap<Function, Integer>();
+            this.nextLocal = FIRST_LOCAL;
+            this.stack = 0;
+            this.maxStack = 0;
+        }
+
+
+        /**
+         * Emits a single instruction.
+         *
+         * @param opcode The opcode of the instruction.
+         * @param stackChange The change in the depth of the operand stack.
+         */
+        void op(int opcode, int stackChange) {
+            bytes.write(opcode);
+            adjustStack(stackChange);
+        }
+
+
+        /**
+         * Emits the code to push a double constant.
+         *
+         * @param value The value of the constant.
+         */
+        void constant(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                op(DCONST_0, 2);
+            } else if (value == 1.0) {
+                op(DCONST_1, 2);
+            } else {
+                op(LDC2_W, 2);
+                writeShort(classFile.doubleConstant(value));
+            }
+        }
+
+
+        /**
+         * Allocates a local variable for a double.
+         *
+         * @return The slot of the local variable.
+         */
+        int newLocal() {
+            int local = nextLocal;
+            nextLocal += 2;
+            if (nextLocal > MAX_LOCALS)
+                throw new CompilationException("Function is too large to"
+                        + " compile.");
+            return local;
+        }
+
+
+        /**
+         * Emits an instruction that accesses a local variable.
+         *
+         * @param opcode The opcode of the instruction.
+         * @param local The slot of the local variable.
+         * @param stackChange The change in the depth of the operand stack.
+         */
+        void local(int opcode, int local, int stackChange) {
+            if (local > 0xFF) {
+                bytes.write(WIDE);
+                op(opcode, stackChange);
+                writeShort(local);
+            } else {
+                op(opcode, stackChange);
+                bytes.write(local);
+            }
+        }
+
+
+        /**
+         * Emits the code to push an int constant used as an array index.
+         *
+         * @param value The index.
+         */
+        void index(int value) {
+            if (value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                bytes.write(value);
+            } else if (value <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                writeShort(value);
+            } else {
+                op(LDC_W, 1);
+                writeShort(classFile.intConstant(value));
+            }
+        }
+
+
+        /**
+         * Emits a call to a static method of java.lang.Math.
+         *
+         * @param name The name of the method.
+         * @param descriptor The descriptor of the method.
+         * @param stackChange The change in the depth of the operand stack.
+         */
+        void invokeMath(String name, String descriptor, int stackChange) {
+            op(INVOKESTATIC, stackChange);
+            writeShort(classFile.methodRef(MATH, name, descriptor));
+        }
+
+
+        /**
+         * Completes the class file with a constructor and the evaluation
+         * method.
+         *
+         * @return The bytes of the class file.
+         */
+        byte[] toClassFile() {
+            byte[] code = bytes.toByteArray();
+            if (code.length > MAX_CODE_LENGTH || maxStack > MAX_CODE_LENGTH)
+                throw new CompilationException("Function is too large to"
+                        + " compile.");
+
+            byte[] constructor = new byte[] {
+                (byte)ALOAD_0,
+                (byte)INVOKESPECIAL, 0, 0,
+                (byte)RETURN
+            };
+            int init = classFile.methodRef(OBJECT, "<init>", "()V");
+            constructor[2] = (byte)(init >> 8);
+            constructor[3] = (byte)init;
+
+            classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V",
+                    constructor, 1, 1);
+            classFile.addMethod(ClassFile.ACC_PUBLIC, "applyAsDouble", "([D)D",
+                    code, maxStack, nextLocal);
+            return classFile.toByteArray();
+        }
+
+
+        private void writeShort(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+
+        private void adjustStack(int change) {
+            stack += change;
+            if (stack > maxStack)
+                maxStack = stack;
+        }
+    }
+}
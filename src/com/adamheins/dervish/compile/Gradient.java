@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.util.Arrays;
+
+/**
+ * Computes the gradient of a Program using reverse-mode automatic
+ * differentiation. The program is evaluated once, which records the value of
+ * every node in the register file. The instructions are then swept in reverse
+ * to accumulate the adjoint of each register, which is the partial derivative
+ * of the result with respect to that register. The cost of the gradient is a
+ * small constant multiple of the cost of evaluation, regardless of the number
+ * of variables.
+ *
+ * @author Adam
+ */
+public class Gradient {
+
+    private final Program program;
+
+
+    /**
+     * Constructor.
+     *
+     * @param program The program to differentiate.
+     */
+    public Gradient(Program program) {
+        this.program = program;
+    }
+
+
+    /**
+     * Evaluates the program and its gradient. New register and adjoint arrays
+     * are allocated; callers that evaluate the gradient repeatedly should
+     * supply their own with
+     * {@link #evaluate(double[], double[], double[], double[])}.
+     *
+     * @param vars The values of the variables, indexed by slot.
+     * @param gradient Array that the partial derivative with respect to each
+     *         variable is written to, indexed by slot.
+     *
+     * @return The value of the program.
+     */
+    public double evaluate(double[] vars, double[] gradient) {
+        int registerCount = program.getRegisterCount();
+        return evaluate(vars, gradient, new double[registerCount],
+                new double[registerCount]);
+    }
+
+
+    /**
+     * Evaluates the program and its gradient using the given working arrays.
+     *
+     * @param vars The values of the variables, indexed by slot.
+     * @param gradient Array that the partial derivative with respect to each
+     *         variable is written to, indexed by slot.
+     * @param registers The register file, which must be at least
+     *         {@link Program#getRegisterCount()} long.
+     * @param adjoints Array for the adjoints of the registers, which must be
+     *         at least {@link Program#getRegisterCount()} long.
+     *
+     * @return The value of the program.
+     */
+    public double evaluate(double[] vars, double[] gradient, double[] registers,
+            double[] adjoints) {
+
+        double value = program.evaluate(vars, registers);
+
+        final int[] code = program.code;
+        final double[] r = registers;
+        final double[] adj = adjoints;
+
+        Arrays.fill(gradient, 0, program.variables.length, 0.0);
+        Arrays.fill(adj, 0, program.registerCount, 0.0);
+        adj[program.result] = 1.0;
+
+        for (int pc = code.length - Program.WIDTH; pc >= 0;
+                pc -= Program.WIDTH) {
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+            double g = adj[dst];
+
+            switch (code[pc]) {
+            case Program.CONSTANT:
+                break;
+            case Program.VARIABLE:
+                gradient[a] += g;
+                break;
+            case Program.NEGATE:
+                adj[a] -= g;
+                break;
+            case Program.ADD:
+                adj[a] += g;
+                adj[b] += g;
+                break;
+            case Program.SUBTRACT:
+                adj[a] += g;
+                adj[b] -= g;
+                break;
+            case Program.MULTIPLY:
+                adj[a] += g * r[b];
+                adj[b] += g * r[a];
+                break;
+            case Program.DIVIDE:
+                adj[a] += g / r[b];
+                adj[b] -= g * r[dst] / r[b];
+                break;
+            case Program.POWER:
+                adj[a] += g * r[b] * Math.pow(r[a], r[b] - 1);
+
+                // The derivative with respect to the exponent involves the
+                // logarithm of the base, which is undefined for bases that
+                // are not positive. It is not needed for constant exponents.
+                if (code[b * Program.WIDTH] != Program.CONSTANT)
+                    adj[b] += g * r[dst] * Math.log(r[a]);
+                break;
+            case Program.SIN:
+                adj[a] += g * Math.cos(r[a]);
+                break;
+            case Program.COS:
+                adj[a] -= g * Math.sin(r[a]);
+                break;
+            case Program.TAN:
+                double cos = Math.cos(r[a]);
+                adj[a] += g / (cos * cos);
+                break;
+            case Program.LN:
+                adj[a] += g / r[a];
+                break;
+            }
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.adamheins.dervish.function.Function;
+
+/**
+ * Evaluates the Hessian of a Function, or its product with a vector.
+ *
+ * Hessian-vector products are computed by differentiating the reverse-mode
+ * gradient sweep in forward mode: a tangent is carried alongside each register
+ * and each adjoint, so the product costs a small constant multiple of one
+ * evaluation and the Hessian itself is never built.
+ *
+ * The sparsity of the Hessian is found once, when it is constructed, by
+ * tracking which variables each register depends on and which pairs of them
+ * meet in a nonlinear operation. The full Hessian is then only evaluated for
+ * the variables that take part in such a pair, and only those entries are
+ * stored.
+ *
+ * The compiled plan and its working arrays are reused by every evaluation, so
+ * a Hessian must not be evaluated by more than one thread at a time.
+ *
+ * @author Adam
+ */
+public class Hessian {
+
+    private final int variableCount;
+
+    // Program reading only the variables that the function depends on.
+    private final Program program;
+
+    // Forward pass of each product.
+    private final DirectionalDerivative forward;
+
+    // Index of each variable of the program among all of the variables.
+    private final int[] indices;
+
+    // Variables of the program that each one interacts with nonlinearly,
+    // indexed by slot.
+    private final BitSet[] interactions;
+
+    // Working arrays.
+    private final double[] vars;
+    private final double[] direction;
+    private final double[] product;
+    private final double[] registers;
+    private final double[] tangents;
+    private final double[] adjoints;
+    private final double[] adjointTangents;
+
+
+    /**
+     * Constructor.
+     *
+     * @param function The function.
+     * @param variables The variables, one for each row and column.
+     *
+     * @throws CompilationException If the function contains a variable that
+     *         is not in the list of variables.
+     */
+    public Hessian(Function function, List<String> variables) {
+        variableCount = variables.size();
+        program = new FunctionCompiler(variables).assembleDependencies(
+                function);
+
+        Map<String, Integer> positions = new HashMap<String, Integer>();
+        for (int i = 0; i < variables.size(); ++i)
+            positions.put(variables.get(i), i);
+
+        int n = program.variables.length;
+        indices = new int[n];
+        for (int slot = 0; slot < n; ++slot)
+            indices[slot] = positions.get(program.variables[slot]);
+
+        forward = new DirectionalDerivative(program);
+        interactions = findInteractions(program);
+
+        int registerCount = program.registerCount;
+        vars = new double[n];
+        direction = new double[n];
+        product = new double[n];
+        registers = new double[registerCount];
+        tangents = new double[registerCount];
+        adjoints = new double[registerCount];
+        adjointTangents = new double[registerCount];
+    }
+
+
+    /**
+     * Computes the product of the Hessian with a vector.
+     *
+     * @param point The values of the variables, in the order they were given.
+     * @param vector The vector, indexed in the same way.
+     * @param out Array that the product is written to, indexed in the same
+     *         way.
+     */
+    public void product(double[] point, double[] vector, double[] out) {
+        for (int slot = 0; slot < indices.length; ++slot) {
+            vars[slot] = point[indices[slot]];
+            direction[slot] = vector[indices[slot]];
+        }
+
+        sweep(vars, direction, product);
+
+        Arrays.fill(out, 0, variableCount, 0.0);
+        for (int slot = 0; slot < indices.length; ++slot)
+            out[indices[slot]] = product[slot];
+    }
+
+
+    /**
+     * Evaluates the Hessian. Only the entries for pairs of variables that
+     * interact nonlinearly are computed.
+     *
+     * @param point The values of the variables, in the order they were given.
+     *
+     * @return The Hessian.
+     */
+    public SparseMatrix evaluate(double[] point) {
+        for (int slot = 0; slot < indices.length; ++slot)
+            vars[slot] = point[indices[slot]];
+
+        int[] rowStart = new int[variableCount + 1];
+        int[] columns = pattern(rowStart);
+        double[] values = new double[columns.length];
+
+        for (int slot = 0; slot < indices.length; ++slot) {
+            if (interactions[slot].isEmpty())
+                continue;
+
+            // Row i of the Hessian is its product with the i-th unit vector.
+            Arrays.fill(direction, 0.0);
+            direction[slot] = 1.0;
+            sweep(vars, direction, product);
+
+            int k = rowStart[indices[slot]];
+            for (int other = interactions[slot].nextSetBit(0); other >= 0;
+                    other = interactions[slot].nextSetBit(other + 1))
+                values[k++] = product[other];
+        }
+
+        return new SparseMatrix(variableCount, variableCount, rowStart, columns,
+                values);
+    }
+
+
+    /**
+     * Get the structure of the Hessian, with every stored entry set to one.
+     *
+     * @return The sparsity pattern of the Hessian.
+     */
+    public SparseMatrix getPattern() {
+        int[] rowStart = new int[variableCount + 1];
+        int[] columns = pattern(rowStart);
+        double[] ones = new double[columns.length];
+        Arrays.fill(ones, 1.0);
+        return new SparseMatrix(variableCount, variableCount, rowStart, columns,
+                ones);
+    }
+
+
+    /**
+     * Builds the compressed row structure of the Hessian.
+     *
+     * @param rowStart Array that the index of the first entry of each row is
+     *         written to, followed by the number of entries.
+     *
+     * @return The column of each entry.
+     */
+    private int[] pattern(int[] rowStart) {
+        int[] counts = new int[variableCount];
+        for (int slot = 0; slot < indices.length; ++slot)
+            counts[indices[slot]] = interactions[slot].cardinality();
+        for (int row = 0; row < variableCount; ++row)
+            rowStart[row + 1] = rowStart[row] + counts[row];
+
+        // The slots of the program are in the same order as the variables,
+        // so the columns of each row are increasing.
+        int[] columns = new int[rowStart[variableCount]];
+        for (int slot = 0; slot < indices.length; ++slot) {
+            int k = rowStart[indices[slot]];
+            for (int other = interactions[slot].nextSetBit(0); other >= 0;
+                    other = interactions[slot].nextSetBit(other + 1))
+                columns[k++] = indices[other];
+        }
+        return columns;
+    }
+
+
+    /**
+     * Finds the pairs of variables that meet in a nonlinear operation. Only
+     * those pairs can have a nonzero second derivative.
+     *
+     * @param program The program.
+     *
+     * @return The variables that each variable interacts with, by slot.
+     */
+    private static BitSet[] findInteractions(Program program) {
+        int[] code = program.code;
+        BitSet[] interactions = new BitSet[program.variables.length];
+        for (int slot = 0; slot < interactions.length; ++slot)
+            interactions[slot] = new BitSet();
+
+        // Variables that each register depends on.
+        BitSet[] depends = new BitSet[program.registerCount];
+        BitSet none = new BitSet();
+
+        for (int pc = 0; pc < code.length; pc += Program.WIDTH) {
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+
+            switch (code[pc]) {
+            case Program.CONSTANT:
+                depends[dst] = none;
+                break;
+            case Program.VARIABLE:
+                depends[dst] = new BitSet();
+                depends[dst].set(a);
+                break;
+            case Program.NEGATE:
+                depends[dst] = depends[a];
+                break;
+            case Program.ADD:
+            case Program.SUBTRACT:
+                depends[dst] = union(depends[a], depends[b]);
+                break;
+            case Program.MULTIPLY:
+                interact(interactions, depends[a], depends[b]);
+                depends[dst] = union(depends[a], depends[b]);
+                break;
+            case Program.DIVIDE:
+                interact(interactions, depends[a], depends[b]);
+                interact(interactions, depends[b], depends[b]);
+                depends[dst] = union(depends[a], depends[b]);
+                break;
+            case Program.POWER:
+                depends[dst] = union(depends[a], depends[b]);
+                interact(interactions, depends[dst], depends[dst]);
+                break;
+            case Program.SIN:
+            case Program.COS:
+            case Program.TAN:
+            case Program.LN:
+                interact(interactions, depends[a], depends[a]);
+                depends[dst] = depends[a];
+                break;
+            }
+        }
+
+        return interactions;
+    }
+
+
+    private static BitSet union(BitSet first, BitSet second) {
+        if (second.isEmpty())
+            return first;
+        if (first.isEmpty())
+            return second;
+        BitSet union = (BitSet)first.clone();
+        union.or(second);
+        return union;
+    }
+
+
+    /**
+     * Records that every variable in one set interacts with every variable in
+     * another.
+     */
+    private static void interact(BitSet[] interactions, BitSet first,
+            BitSet second) {
+        for (int i = first.nextSetBit(0); i >= 0; i = first.nextSetBit(i + 1))
+            interactions[i].or(second);
+        for (int i = second.nextSetBit(0); i >= 0; i = second.nextSetBit(i + 1))
+            interactions[i].or(first);
+    }
+
+
+    /**
+     * Computes a Hessian-vector product over the slots of the program. The
+     * values and their tangents along the vector are computed in a forward
+     * pass, and then the adjoints and their tangents in a reverse pass. The
+     * tangent of the gradient is the product.
+     *
+     * @param vars The values of the variables, by slot.
+     * @param dir The vector, by slot.
+     * @param out Array that the product is written to, by slot.
+     */
+    private void sweep(double[] vars, double[] dir, double[] out) {
+
+        final int[] code = program.code;
+        final double[] r = registers;
+        final double[] t = tangents;
+        final double[] adj = adjoints;
+        final double[] adt = adjointTangents;
+
+        forward.evaluate(vars, dir, r, t);
+
+        Arrays.fill(out, 0, indices.length, 0.0);
+        Arrays.fill(adj, 0, program.registerCount, 0.0);
+        Arrays.fill(adt, 0, program.registerCount, 0.0);
+        adj[program.result] = 1.0;
+
+        for (int pc = code.length - Program.WIDTH; pc >= 0;
+                pc -= Program.WIDTH) {
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+            double g = adj[dst];
+            double gt = adt[dst];
+
+            switch (code[pc]) {
+            case Program.CONSTANT:
+                break;
+            case Program.VARIABLE:
+                out[a] += gt;
+                break;
+            case Program.NEGATE:
+                adj[a] -= g;
+                adt[a] -= gt;
+                break;
+            case Program.ADD:
+                adj[a] += g;
+                adt[a] += gt;
+                adj[b] += g;
+                adt[b] += gt;
+                break;
+            case Program.SUBTRACT:
+                adj[a] += g;
+                adt[a] += gt;
+                adj[b] -= g;
+                adt[b] -= gt;
+                break;
+            case Program.MULTIPLY:
+                adj[a] += g * r[b];
+                adt[a] += gt * r[b] + g * t[b];
+                adj[b] += g * r[a];
+                adt[b] += gt * r[a] + g * t[a];
+                break;
+            case Program.DIVIDE: {
+                double q = r[dst];
+                adj[a] += g / r[b];
+                adt[a] += (gt - g * t[b] / r[b]) / r[b];
+                adj[b] -= g * q / r[b];
+                adt[b] -= (gt * q + g * t[dst] - g * q * t[b] / r[b]) / r[b];
+                break;
+            }
+            case Program.POWER: {
+                // d/da a^b = b * a^(b - 1)
+                double lower = Math.pow(r[a], r[b] - 1);
+                double k = r[b] * lower;
+                double kt = t[a] == 0.0 ? 0.0
+                        : r[b] * (r[b] - 1) * Math.pow(r[a], r[b] - 2) * t[a];
+                if (t[b] != 0.0)
+                    kt += t[b] * lower * (1 + r[b] * Math.log(r[a]));
+                adj[a] += g * k;
+                adt[a] += gt * k + g * kt;
+
+                // d/db a^b = a^b * ln(a), which is only needed if the
+                // exponent is not constant.
+                if (code[b * Program.WIDTH] != Program.CONSTANT) {
+                    double ln = Math.log(r[a]);
+                    double m = r[dst] * ln;
+                    double mt = t[dst] * ln + r[dst] * t[a] / r[a];
+                    adj[b] += g * m;
+                    adt[b] += gt * m + g * mt;
+                }
+                break;
+            }
+            case Program.SIN: {
+                double cos = Math.cos(r[a]);
+                adj[a] += g * cos;
+                adt[a] += gt * cos - g * Math.sin(r[a]) * t[a];
+                break;
+            }
+            case Program.COS: {
+                double sin = Math.sin(r[a]);
+                adj[a] -= g * sin;
+                adt[a] -= gt * sin + g * Math.cos(r[a]) * t[a];
+                break;
+            }
+            case Program.TAN: {
+                double cos = Math.cos(r[a]);
+                double k = 1 / (cos * cos);
+                adj[a] += g * k;
+                adt[a] += gt * k + g * 2 * r[dst] * k * t[a];
+                break;
+            }
+            case Program.LN:
+                adj[a] += g / r[a];
+                adt[a] += (gt - g * t[a] / r[a]) / r[a];
+                break;
+            }
+        }
+    }
+}
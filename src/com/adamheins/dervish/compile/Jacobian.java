@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.adamheins.dervish.function.Function;
+
+/**
+ * Evaluates the Jacobian of a system of Functions. The variables that each
+ * function depends on are found once, when the Jacobian is constructed, and
+ * every other entry of its row is structurally zero. Each row is computed by a
+ * single reverse-mode sweep over a Program that reads only the variables the
+ * function depends on, so the cost of evaluation is proportional to the size
+ * of the functions rather than to the number of functions times the number of
+ * variables.
+ *
+ * The compiled plan and its working arrays are reused by every evaluation, so
+ * a Jacobian must not be evaluated by more than one thread at a time.
+ *
+ * @author Adam
+ */
+public class Jacobian {
+
+    private final int variableCount;
+
+    // Program and gradient evaluator for each row.
+    private final Program[] programs;
+    private final Gradient[] gradients;
+
+    // Structure of the result: index of the first entry of each row, and the
+    // column of each entry.
+    private final int[] rowStart;
+    private final int[] columns;
+
+    // Working arrays, large enough for any row.
+    private final double[] vars;
+    private final double[] gradient;
+    private final double[] registers;
+    private final double[] adjoints;
+
+
+    /**
+     * Constructor.
+     *
+     * @param functions The functions of the system, one for each row.
+     * @param variables The variables, one for each column.
+     *
+     * @throws CompilationException If a function contains a variable that is
+     *         not in the list of variables.
+     */
+    public Jacobian(List<Function> functions, List<String> variables) {
+        variableCount = variables.size();
+
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+        for (int i = 0; i < variables.size(); ++i)
+            indices.put(variables.get(i), i);
+
+        FunctionCompiler compiler = new FunctionCompiler(variables);
+        programs = new Program[functions.size()];
+        gradients = new Gradient[functions.size()];
+        rowStart = new int[functions.size() + 1];
+
+        int entries = 0;
+        int maxVariables = 0;
+        int maxRegisters = 0;
+        for (int row = 0; row < programs.length; ++row) {
+            programs[row] = compiler.assembleDependencies(functions.get(row));
+            gradients[row] = new Gradient(programs[row]);
+            rowStart[row] = entries;
+
+            entries += programs[row].variables.length;
+            maxVariables = Math.max(maxVariables,
+                    programs[row].variables.length);
+            maxRegisters = Math.max(maxRegisters,
+                    programs[row].registerCount);
+        }
+        rowStart[programs.length] = entries;
+
+        columns = new int[entries];
+        for (int row = 0; row < programs.length; ++row) {
+            String[] names = programs[row].variables;
+            for (int k = 0; k < names.length; ++k)
+                columns[rowStart[row] + k] = indices.get(names[k]);
+        }
+
+        vars = new double[maxVariables];
+        gradient = new double[maxVariables];
+        registers = new double[maxRegisters];
+        adjoints = new double[maxRegisters];
+    }
+
+
+    /**
+     * Evaluates the Jacobian.
+     *
+     * @param point The values of the variables, in the order they were given.
+     *
+     * @return The Jacobian, with an entry stored for each variable that each
+     *         function depends on.
+     */
+    public SparseMatrix evaluate(double[] point) {
+        double[] values = new double[columns.length];
+        evaluate(point, values);
+        return new SparseMatrix(programs.length, variableCount, rowStart,
+                columns, values);
+    }
+
+
+    /**
+     * Evaluates the Jacobian into an existing array of entries, without
+     * allocating.
+     *
+     * @param point The values of the variables, in the order they were given.
+     * @param values Array that the stored entries are written to, in row
+     *         order. It must be at least {@link #getEntryCount()} long.
+     */
+    public void evaluate(double[] point, double[] values) {
+        for (int row = 0; row < programs.length; ++row) {
+            int start = rowStart[row];
+            int count = rowStart[row + 1] - start;
+
+            for (int k = 0; k < count; ++k)
+                vars[k] = point[columns[start + k]];
+            gradients[row].evaluate(vars, gradient, registers, adjoints);
+            System.arraycopy(gradient, 0, values, start, count);
+        }
+    }
+
+
+    /**
+     * Get the structure of the Jacobian, with every stored entry set to one.
+     *
+     * @return The sparsity pattern of the Jacobian.
+     */
+    public SparseMatrix getPattern() {
+        double[] ones = new double[columns.length];
+        Arrays.fill(ones, 1.0);
+        return new SparseMatrix(programs.length, variableCount, rowStart,
+                columns, ones);
+    }
+
+
+    /**
+     * Get the number of entries that are not structurally zero.
+     *
+     * @return The number of stored entries.
+     */
+    public int getEntryCount() {
+        return columns.length;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import com.adamheins.dervish.function.Cos;
+import com.adamheins.dervish.function.Divide;
+import com.adamheins.dervish.function.Exponent;
+import com.adamheins.dervish.function.Function;
+import com.adamheins.dervish.function.Ln;
+import com.adamheins.dervish.function.Log;
+import com.adamheins.dervish.function.Minus;
+import com.adamheins.dervish.function.Multiply;
+import com.adamheins.dervish.function.Negative;
+import com.adamheins.dervish.function.Number;
+import com.adamheins.dervish.function.Plus;
+import com.adamheins.dervish.function.Sin;
+import com.adamheins.dervish.function.Tan;
+import com.adamheins.dervish.function.Variable;
+
+/**
+ * The numeric operations that a compiled Function may perform.
+ *
+ * @author Adam
+ */
+enum Operation {
+    NUMBER, VARIABLE, NEGATE, ADD, SUBTRACT, MULTIPLY, DIVIDE, POWER, SIN, COS,
+    TAN, LN, LOG;
+
+
+    /**
+     * Determines the operation performed by a Function node.
+     *
+     * @param function The Function.
+     *
+     * @return The operation performed by the Function.
+     *
+     * @throws CompilationException If the type of the Function is not
+     *         supported by the compiler.
+     */
+    static Operation of(Function function) {
+
+        // Subclasses must be checked before their parents.
+        if (function instanceof Number)
+            return NUMBER;
+        if (function instanceof Variable)
+            return VARIABLE;
+        if (function instanceof Negative)
+            return NEGATE;
+        if (function instanceof Plus)
+            return ADD;
+        if (function instanceof Minus)
+            return SUBTRACT;
+        if (function instanceof Multiply)
+            return MULTIPLY;
+        if (function instanceof Divide)
+            return DIVIDE;
+        if (function instanceof Exponent)
+            return POWER;
+        if (function instanceof Sin)
+            return SIN;
+        if (function instanceof Cos)
+            return COS;
+        if (function instanceof Tan)
+            return TAN;
+        if (function instanceof Ln)
+            return LN;
+        if (function instanceof Log)
+            return LOG;
+
+        throw new CompilationException("Cannot compile function of type "
+                + function.getClass().getSimpleName() + ".");
+    }
+
+
+    /**
+     * Get the natural logarithm of the base of a logarithm Function. The
+     * logarithm of a value is its natural logarithm divided by this number.
+     *
+     * @param function The logarithm Function.
+     *
+     * @return The natural logarithm of the base.
+     */
+    static double logBase(Function function) {
+        return Math.log(((Log)function).getBase().doubleValue());
+    }
+
+
+    /**
+     * Check if the operation takes two operands.
+     *
+     * @return True if the operation is binary, false otherwise.
+     */
+    boolean isBinary() {
+        return this == ADD || this == SUBTRACT || this == MULTIPLY
+                || this == DIVIDE || this == POWER;
+    }
+}
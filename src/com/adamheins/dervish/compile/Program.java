@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Function flattened into a linear sequence of register-based instructions,
+ * which is evaluated by a simple interpreter loop using double precision
+ * arithmetic.
+ *
+ * Each instruction is four ints wide: the opcode, the destination register,
+ * and two operands. An operand is either a register, an index into the table
+ * of constants, or a variable slot, depending on the opcode. Every instruction
+ * writes its own register, so after evaluation the register file holds the
+ * value of every node of the function.
+ *
+ * @author Adam
+ */
+public class Program {
+
+    // Opcodes.
+    static final int CONSTANT = 0;
+    static final int VARIABLE = 1;
+    static final int NEGATE = 2;
+    static final int ADD = 3;
+    static final int SUBTRACT = 4;
+    static final int MULTIPLY = 5;
+    static final int DIVIDE = 6;
+    static final int POWER = 7;
+    static final int SIN = 8;
+    static final int COS = 9;
+    static final int TAN = 10;
+    static final int LN = 11;
+
+    // Number of ints per instruction.
+    static final int WIDTH = 4;
+
+    // The instructions.
+    final int[] code;
+
+    // Table of constants referenced by CONSTANT instructions.
+    final double[] constants;
+
+    // Names of the variables, in the order of their slots.
+    final String[] variables;
+
+    // Number of registers used by the program.
+    final int registerCount;
+
+    // Register that holds the result after evaluation.
+    final int result;
+
+
+    /**
+     * Constructor.
+     *
+     * @param code The instructions.
+     * @param constants The table of constants.
+     * @param variables The names of the variables in the order of their slots.
+     * @param registerCount The number of registers used.
+     * @param result The register holding the result.
+     */
+    Program(int[] code, double[] constants, String[] variables,
+            int registerCount, int result) {
+        this.code = code;
+        this.constants = constants;
+        this.variables = variables;
+        this.registerCount = registerCount;
+        this.result = result;
+    }
+
+
+    /**
+     * Evaluates the program. A new register file is allocated; callers that
+     * evaluate the program repeatedly should supply their own with
+     * {@link #evaluate(double[], double[])}.
+     *
+     * @param vars The values of the variables, indexed by slot.
+     *
+     * @return The value of the function.
+     */
+    public double evaluate(double[] vars) {
+        return evaluate(vars, new double[registerCount]);
+    }
+
+
+    /**
+     * Evaluates the program using the given register file.
+     *
+     * @param vars The values of the variables, indexed by slot.
+     * @param registers The register file, which must be at least
+     *         {@link #getRegisterCount()} long.
+     *
+     * @return The value of the function.
+     */
+    public double evaluate(double[] vars, double[] registers) {
+
+        final int[] code = this.code;
+        final double[] constants = this.constants;
+        final double[] r = registers;
+
+        for (int pc = 0; pc < code.length; pc += WIDTH) {
+            int dst = code[pc + 1];
+            int a = code[pc + 2];
+            int b = code[pc + 3];
+
+            switch (code[pc]) {
+            case CONSTANT:
+                r[dst] = constants[a];
+                break;
+            case VARIABLE:
+                r[dst] = vars[a];
+                break;
+            case NEGATE:
+                r[dst] = -r[a];
+                break;
+            case ADD:
+                r[dst] = r[a] + r[b];
+                break;
+            case SUBTRACT:
+                r[dst] = r[a] - r[b];
+                break;
+            case MULTIPLY:
+                r[dst] = r[a] * r[b];
+                break;
+            case DIVIDE:
+                r[dst] = r[a] / r[b];
+                break;
+            case POWER:
+                r[dst] = Math.pow(r[a], r[b]);
+                break;
+            case SIN:
+                r[dst] = Math.sin(r[a]);
+                break;
+            case COS:
+                r[dst] = Math.cos(r[a]);
+                break;
+            case TAN:
+                r[dst] = Math.tan(r[a]);
+                break;
+            case LN:
+                r[dst] = Math.log(r[a]);
+                break;
+            }
+        }
+
+        return r[result];
+    }
+
+
+    /**
+     * Get the slots of the variables that the program actually reads.
+     *
+     * @return The slots, in increasing order.
+     */
+    int[] dependencies() {
+        boolean[] used = new boolean[variables.length];
+        int count = 0;
+        for (int pc = 0; pc < code.length; pc += WIDTH) {
+            if (code[pc] == VARIABLE && !used[code[pc + 2]]) {
+                used[code[pc + 2]] = true;
+                count++;
+            }
+        }
+
+        int[] slots = new int[count];
+        for (int slot = 0, i = 0; slot < used.length; ++slot) {
+            if (used[slot])
+                slots[i++] = slot;
+        }
+        return slots;
+    }
+
+
+    /**
+     * Get the variables of the program in the order of their slots.
+     *
+     * @return The names of the variables.
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+
+    /**
+     * Get the number of registers the program uses.
+     *
+     * @return The number of registers.
+     */
+    public int getRegisterCount() {
+        return registerCount;
+    }
+
+
+    /**
+     * Get the number of instructions in the program.
+     *
+     * @return The number of instructions.
+     */
+    public int size() {
+        return code.length / WIDTH;
+    }
+}
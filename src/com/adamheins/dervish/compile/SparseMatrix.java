@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.compile;
+
+import java.util.Arrays;
+
+/**
+ * A matrix stored in compressed sparse row format. Only the entries that are
+ * not structurally zero are stored; every other entry is zero no matter where
+ * the matrix is evaluated. Entries that are stored may still happen to be
+ * zero at a particular point.
+ *
+ * @author Adam
+ */
+public class SparseMatrix {
+
+    private final int rowCount;
+    private final int columnCount;
+
+    // Index of the first stored entry of each row, followed by the total
+    // number of stored entries.
+    private final int[] rowStart;
+
+    // Column of each stored entry. Columns are increasing within each row.
+    private final int[] columns;
+
+    // Value of each stored entry.
+    private final double[] values;
+
+
+    /**
+     * Constructor.
+     *
+     * @param rowCount The number of rows.
+     * @param columnCount The number of columns.
+     * @param rowStart The index of the first entry of each row, followed by
+     *         the number of entries.
+     * @param columns The column of each entry.
+     * @param values The value of each entry.
+     */
+    SparseMatrix(int rowCount, int columnCount, int[] rowStart, int[] columns,
+            double[] values) {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+
+    /**
+     * Get an entry of the matrix.
+     *
+     * @param row The row of the entry.
+     * @param column The column of the entry.
+     *
+     * @return The value of the entry, which is zero if it is not stored.
+     *
+     * @throws IndexOutOfBoundsException If the row or column is outside of the
+     *         matrix.
+     */
+    public double get(int row, int column) {
+        if (row < 0 || row >= rowCount || column < 0 || column >= columnCount)
+            throw new IndexOutOfBoundsException("Entry (" + row + ", " + column
+                    + ") is outside of the matrix.");
+
+        int index = Arrays.binarySearch(columns, rowStart[row],
+                rowStart[row + 1], column);
+        return index < 0 ? 0.0 : values[index];
+    }
+
+
+    /**
+     * Check if an entry is stored, that is, if it is not structurally zero.
+     *
+     * @param row The row of the entry.
+     * @param column The column of the entry.
+     *
+     * @return True if the entry is stored, false otherwise.
+     */
+    public boolean isStored(int row, int column) {
+        if (row < 0 || row >= rowCount)
+            return false;
+        return Arrays.binarySearch(columns, rowStart[row], rowStart[row + 1],
+                column) >= 0;
+    }
+
+
+    /**
+     * Get the columns of the entries stored in a row.
+     *
+     * @param row The row.
+     *
+     * @return The columns, in increasing order.
+     */
+    public int[] getColumns(int row) {
+        return Arrays.copyOfRange(columns, rowStart[row], rowStart[row + 1]);
+    }
+
+
+    /**
+     * Get the values of the entries stored in a row.
+     *
+     * @param row The row.
+     *
+     * @return The values, in the same order as {@link #getColumns(int)}.
+     */
+    public double[] getValues(int row) {
+        return Arrays.copyOfRange(values, rowStart[row], rowStart[row + 1]);
+    }
+
+
+    /**
+     * Get the number of rows of the matrix.
+     *
+     * @return The number of rows.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+
+    /**
+     * Get the number of columns of the matrix.
+     *
+     * @return The number of columns.
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+
+    /**
+     * Get the number of entries that are stored.
+     *
+     * @return The number of stored entries.
+     */
+    public int getEntryCount() {
+        return columns.length;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < rowCount; ++row) {
+            for (int k = rowStart[row]; k < rowStart[row + 1]; ++k) {
+                sb.append('(').append(row).append(", ").append(columns[k])
+                        .append(") = ").append(values[k]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
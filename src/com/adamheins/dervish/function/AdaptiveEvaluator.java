@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Map;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+import org.apfloat.Aprational;
+import org.apfloat.AprationalMath;
+
+/**
+ * Evaluates Functions to a requested number of correct significant digits,
+ * using no more precision than is needed.
+ *
+ * The function is first bounded using double interval arithmetic. If both
+ * bounds round to the same number, that number is correct and is returned
+ * without any arbitrary precision arithmetic. Otherwise the function is
+ * evaluated with Apfloat at rising precision until two successive results
+ * agree on the requested digits.
+ *
+ * @author Adam
+ */
+public class AdaptiveEvaluator {
+
+    // Most significant digits that a double can be relied upon to hold.
+    private static final int DOUBLE_DIGITS = 15;
+
+    // Digits beyond those requested used by the first Apfloat evaluation.
+    private static final int GUARD_DIGITS = 5;
+
+    // Number of times the precision is doubled before giving up on agreement.
+    private static final int MAX_ESCALATIONS = 8;
+
+    private final int digits;
+
+
+    /**
+     * Constructor.
+     *
+     * @param digits The number of correct significant digits required.
+     *
+     * @throws IllegalArgumentException If the number of digits is not
+     *         positive.
+     */
+    public AdaptiveEvaluator(int digits) {
+        if (digits < 1)
+            throw new IllegalArgumentException("At least one digit must be"
+                    + " required.");
+        this.digits = digits;
+    }
+
+
+    /**
+     * Evaluates a Function, substituting values for all variables in the
+     * passed map. If the result is a number, it is rounded to the requested
+     * number of digits; otherwise, it is the same as the result of evaluate
+     * with the current precision.
+     *
+     * @param function The Function to evaluate.
+     * @param varMap A map of variable names and the Functions that should be
+     *         substituted into them.
+     *
+     * @return The evaluated Function.
+     *
+     * @throws EvaluationException If the Function cannot be evaluated.
+     */
+    public Function evaluate(Function function, Map<String, Function> varMap) {
+
+        if (digits <= DOUBLE_DIGITS) {
+            Interval interval = new IntervalContext(varMap).boundOf(function);
+            Function result = round(interval);
+            if (result != null)
+                return result;
+        }
+
+        // The interval was too wide, so escalate to arbitrary precision.
+        Function previous = null;
+        long precision = digits + GUARD_DIGITS;
+        for (int i = 0; ; ++i) {
+            Function value = function.evaluate(varMap, new Precision(precision,
+                    false));
+
+            // Results that are not numbers are not rounded, so they are
+            // evaluated as usual.
+            if (!(value instanceof Number))
+                return function.evaluate(varMap);
+
+            // Exact results do not change with the precision.
+            Apfloat number = (Apfloat)value.getValue();
+            if (ExactArithmetic.isExact(number))
+                return new Number(AprationalMath.round((Aprational)number,
+                        digits, Function.ROUNDING_MODE)).intern();
+
+            Function result = new Number(ApfloatMath.round(number, digits,
+                    Function.ROUNDING_MODE)).intern();
+            if (result.equals(previous) || i == MAX_ESCALATIONS)
+                return result;
+
+            previous = result;
+            precision *= 2;
+        }
+    }
+
+
+    /**
+     * Rounds an interval to the requested number of digits.
+     *
+     * @param interval The interval.
+     *
+     * @return The number that every value in the interval rounds to, or null
+     *         if there is none.
+     */
+    private Function round(Interval interval) {
+
+        if (interval.lo == 0.0 && interval.hi == 0.0)
+            return Number.ZERO;
+
+        // The number of significant digits of values around zero is unknown.
+        if (Double.isInfinite(interval.lo) || Double.isInfinite(interval.hi)
+                || interval.contains(0.0))
+            return null;
+
+        MathContext context = new MathContext(digits, Function.ROUNDING_MODE);
+        BigDecimal lo = new BigDecimal(interval.lo).round(context);
+        BigDecimal hi = new BigDecimal(interval.hi).round(context);
+        if (lo.compareTo(hi) != 0)
+            return null;
+
+        return new Number(new Apfloat(lo, digits)).intern();
+    }
+}
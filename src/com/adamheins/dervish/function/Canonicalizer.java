@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apfloat.Apfloat;
+import org.apfloat.Aprational;
+
+/**
+ * Rewrites Functions into a canonical form. Chains of additions and
+ * subtractions are flattened into a single sum, in which like terms are
+ * collected by adding their signed coefficients. Chains of multiplications
+ * and divisions are likewise flattened into a single product, in which all
+ * numbers are folded into one coefficient and repeated factors are collected
+ * into powers. The terms of sums and the factors of products are sorted, so
+ * Functions that only differ by the order of their operands have the same
+ * canonical form.
+ *
+ * Since each Function has at most two children, a flattened sum or product
+ * is rebuilt as a left-leaning chain of binary operators in canonical order.
+ *
+ * @author Adam
+ */
+public class Canonicalizer {
+
+    // Orders the terms of sums and the factors of products.
+    private static final Comparator<Function> ORDER
+            = new Comparator<Function>() {
+        @Override
+        public int compare(Function a, Function b) {
+            return compareFunctions(a, b);
+        }
+    };
+
+    private Canonicalizer() {
+    }
+
+
+    /**
+     * Rewrites a Function into canonical form. Numeric subexpressions are
+     * evaluated, but variables are not substituted.
+     *
+     * @param function The Function.
+     *
+     * @return The canonical form of the Function.
+     *
+     * @throws EvaluationException If the Function divides by zero.
+     */
+    public static Function canonicalize(Function function) {
+
+        Map<Function, Function> canonical = new IdentityHashMap<Function,
+                Function>();
+
+        // Rewrite the tree in post-order, so that the children of each node
+        // are canonical before the node itself.
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Function root = function.intern();
+        funcStack.push(root);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.peek();
+
+            if (canonical.containsKey(current)) {
+                funcStack.pop();
+                continue;
+            }
+
+            if (current.isLeaf() && !(current instanceof Polynomial)) {
+                funcStack.pop();
+                canonical.put(current, current.intern());
+                continue;
+            }
+
+            // The temporaries of a let expression are substituted, since
+            // their subexpressions may collect with the rest of the body.
+            // Likewise, Polynomials are opened into their terms.
+            if (current instanceof Let || current instanceof Polynomial) {
+                Function body = current instanceof Let ? current.evaluate()
+                        : ((Polynomial)current).toFunction().intern();
+                if (!canonical.containsKey(body)) {
+                    funcStack.push(body);
+                    continue;
+                }
+                funcStack.pop();
+                canonical.put(current, canonical.get(body));
+                continue;
+            }
+
+            Function first = current.getFirstChild();
+            Function second = current.getSecondChild();
+
+            boolean ready = true;
+            if (second != null && !canonical.containsKey(second)) {
+                funcStack.push(second);
+                ready = false;
+            }
+            if (!canonical.containsKey(first)) {
+                funcStack.push(first);
+                ready = false;
+            }
+            if (!ready)
+                continue;
+
+            funcStack.pop();
+            canonical.put(current, rewrite(current, canonical.get(first),
+                    second == null ? null : canonical.get(second)));
+        }
+
+        return canonical.get(root);
+    }
+
+
+    /**
+     * Rewrites a node whose children are already canonical.
+     *
+     * @param node The node.
+     * @param first The canonical first child.
+     * @param second The canonical second child, or null for unary operators.
+     *
+     * @return The canonical form of the node.
+     */
+    private static Function rewrite(Function node, Function first,
+            Function second) {
+
+        if (node instanceof Plus || node instanceof Minus
+                || node instanceof Negative) {
+            Map<Function, Product> terms = new HashMap<Function, Product>();
+            addTerms(terms, first, node instanceof Negative);
+            if (second != null)
+                addTerms(terms, second, node instanceof Minus);
+            return sum(terms);
+        }
+
+        if (node instanceof Multiply || node instanceof Divide) {
+            Product product = new Product();
+            product.multiply(first, false);
+            product.multiply(second, node instanceof Divide);
+            return product.toFunction();
+        }
+
+        return node.combine(first, second);
+    }
+
+
+    /**
+     * Adds the terms of a canonical Function to a sum.
+     *
+     * @param terms The terms of the sum, keyed by their monomials.
+     * @param function The Function to add.
+     * @param negate True if the Function is subtracted, false otherwise.
+     */
+    private static void addTerms(Map<Function, Product> terms,
+            Function function, boolean negate) {
+
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Deque<Boolean> negateStack = new ArrayDeque<Boolean>();
+        funcStack.push(function);
+        negateStack.push(negate);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.pop();
+            boolean negative = negateStack.pop();
+
+            if (current instanceof Plus || current instanceof Minus) {
+                funcStack.push(current.getSecondChild());
+                negateStack.push(negative != current instanceof Minus);
+                funcStack.push(current.getFirstChild());
+                negateStack.push(negative);
+                continue;
+            }
+            if (current instanceof Negative) {
+                funcStack.push(current.getFirstChild());
+                negateStack.push(!negative);
+                continue;
+            }
+
+            Product term = new Product();
+            term.multiply(current, false);
+            if (negative)
+                term.coefficient = term.coefficient.negate();
+
+            Function monomial = term.monomial();
+            Product like = terms.get(monomial);
+            if (like == null)
+                terms.put(monomial, term);
+            else
+                like.coefficient = ExactArithmetic.add(like.coefficient,
+                        term.coefficient);
+        }
+    }
+
+
+    /**
+     * Builds a sum from its terms, which are ordered by their monomials. The
+     * constant term comes first, as the coefficient does in a product.
+     *
+     * @param terms The terms of the sum, keyed by their monomials.
+     *
+     * @return The sum.
+     */
+    private static Function sum(Map<Function, Product> terms) {
+
+        Product constant = terms.remove(Number.ONE);
+        List<Function> monomials = new ArrayList<Function>(terms.keySet());
+        Collections.sort(monomials, ORDER);
+
+        List<Product> ordered = new ArrayList<Product>();
+        if (constant != null)
+            ordered.add(constant);
+        for (Function monomial : monomials)
+            ordered.add(terms.get(monomial));
+
+        Function sum = null;
+        for (Product term : ordered) {
+            if (term.coefficient.signum() == 0)
+                continue;
+
+            // Terms after the first are subtracted rather than added if their
+            // coefficients are negative.
+            if (sum == null) {
+                sum = term.toFunction();
+            } else if (term.coefficient.signum() < 0) {
+                term.coefficient = term.coefficient.negate();
+                sum = new Minus().combine(sum, term.toFunction());
+            } else {
+                sum = new Plus().combine(sum, term.toFunction());
+            }
+        }
+
+        return sum == null ? Number.ZERO : sum;
+    }
+
+
+    /**
+     * Compares two canonical Functions. Numbers come first, then variables,
+     * then operators, each of which is ordered by its value and then by its
+     * children.
+     *
+     * @param a The first Function.
+     * @param b The second Function.
+     *
+     * @return A negative number, zero or a positive number if the first
+     *         Function comes before, with or after the second.
+     */
+    private static int compareFunctions(Function a, Function b) {
+
+        if (a == b)
+            return 0;
+
+        int rankDifference = rank(a) - rank(b);
+        if (rankDifference != 0)
+            return rankDifference;
+
+        if (a instanceof Number && !(a instanceof Constant)
+                && !(b instanceof Constant))
+            return ((Apfloat)a.getValue()).compareTo((Apfloat)b.getValue());
+
+        // Leaves are ordered by name, and operators by their symbol.
+        if (a.isLeaf())
+            return a.toString().compareTo(b.toString());
+        int valueDifference = a.value.toString().compareTo(b.value.toString());
+        if (valueDifference != 0)
+            return valueDifference;
+
+        int firstDifference = compareFunctions(a.getFirstChild(),
+                b.getFirstChild());
+        if (firstDifference != 0 || a.getSecondChild() == null)
+            return firstDifference;
+        return compareFunctions(a.getSecondChild(), b.getSecondChild());
+    }
+
+
+    private static int rank(Function function) {
+        if (function instanceof Constant)
+            return 1;
+        if (function instanceof Number)
+            return 0;
+        if (function instanceof Variable)
+            return 2;
+        return 3;
+    }
+
+
+    /**
+     * A product of a numeric coefficient and powers of other factors.
+     */
+    private static class Product {
+
+        Apfloat coefficient = Apfloat.ONE;
+
+        // The numeric exponent of each factor.
+        final Map<Function, Apfloat> powers = new HashMap<Function, Apfloat>();
+
+
+        /**
+         * Multiplies the product by a canonical Function, or divides the
+         * product by it.
+         *
+         * @param function The Function.
+         * @param divide True to divide by the Function, false to multiply.
+         */
+        void multiply(Function function, boolean divide) {
+
+            Deque<Function> funcStack = new ArrayDeque<Function>();
+            Deque<Boolean> divideStack = new ArrayDeque<Boolean>();
+            funcStack.push(function);
+            divideStack.push(divide);
+
+            while (!funcStack.isEmpty()) {
+                Function current = funcStack.pop();
+                boolean inverse = divideStack.pop();
+
+                if (current instanceof Number
+                        && !(current instanceof Constant)) {
+                    Apfloat value = (Apfloat)current.getValue();
+                    coefficient = inverse ? ExactArithmetic.divide(
+                            coefficient, value) : ExactArithmetic.multiply(
+                            coefficient, value);
+                } else if (current instanceof Multiply
+                        || current instanceof Divide) {
+                    funcStack.push(current.getSecondChild());
+                    divideStack.push(inverse != current instanceof Divide);
+                    funcStack.push(current.getFirstChild());
+                    divideStack.push(inverse);
+                } else if (current instanceof Negative) {
+                    coefficient = coefficient.negate();
+                    funcStack.push(current.getFirstChild());
+                    divideStack.push(inverse);
+                } else if (hasIntegerExponent(current)) {
+                    Apfloat exponent = (Apfloat)current.getSecondChild()
+                            .getValue();
+                    raise(current.getFirstChild(), inverse ? exponent.negate()
+                            : exponent);
+                } else {
+                    raise(current, inverse ? Apfloat.ONE.negate()
+                            : Apfloat.ONE);
+                }
+            }
+        }
+
+
+        /**
+         * Check if a Function is a power with an integer exponent. Only such
+         * powers are collected with the other powers of their base, since
+         * adding fractional exponents changes where the product is defined:
+         * x^0.5*x^0.5 is undefined for negative x, but x is not.
+         *
+         * @param function The Function.
+         *
+         * @return True if the Function is a power with an integer exponent,
+         *         false otherwise.
+         */
+        private static boolean hasIntegerExponent(Function function) {
+            if (!(function instanceof Exponent))
+                return false;
+            Function exponent = function.getSecondChild();
+            if (!(exponent instanceof Number) || exponent instanceof Constant)
+                return false;
+            Apfloat value = (Apfloat)exponent.getValue();
+            return value.compareTo(value.truncate()) == 0;
+        }
+
+
+        private void raise(Function factor, Apfloat exponent) {
+            Apfloat power = powers.get(factor);
+            powers.put(factor, power == null ? exponent : power.add(exponent));
+        }
+
+
+        /**
+         * Get the product without its coefficient.
+         *
+         * @return The monomial.
+         */
+        Function monomial() {
+            Product monomial = new Product();
+            monomial.powers.putAll(powers);
+            return monomial.toFunction();
+        }
+
+
+        /**
+         * Builds the product. Factors with negative exponents are divided out
+         * of the rest, and a negative coefficient is carried by the first
+         * factor.
+         *
+         * @return The product.
+         */
+        Function toFunction() {
+
+            if (coefficient.signum() == 0)
+                return Number.ZERO;
+
+            List<Function> factors = new ArrayList<Function>(powers.keySet());
+            Collections.sort(factors, ORDER);
+
+            Function numerator = null;
+            Function denominator = null;
+
+            // Exact coefficients are written as fractions, unless they are
+            // terminating decimals, which are kept as they were entered.
+            Apfloat magnitude = coefficient;
+            Apfloat divisor = Apfloat.ONE;
+            if (ExactArithmetic.isExact(coefficient)
+                    && Decimal.valueOf(coefficient) == null) {
+                magnitude = ((Aprational)coefficient).numerator();
+                divisor = ((Aprational)coefficient).denominator();
+            }
+            boolean negative = magnitude.signum() < 0;
+            if (negative)
+                magnitude = magnitude.negate();
+            if (!magnitude.equals(Apfloat.ONE))
+                numerator = Number.valueOf(negative ? magnitude.negate()
+                        : magnitude);
+            if (!divisor.equals(Apfloat.ONE))
+                denominator = Number.valueOf(divisor);
+
+            for (Function factor : factors) {
+                Apfloat exponent = powers.get(factor);
+                if (exponent.signum() > 0)
+                    numerator = multiply(numerator, power(factor, exponent));
+                else if (exponent.signum() < 0)
+                    denominator = multiply(denominator, power(factor,
+                            exponent.negate()));
+            }
+
+            // Without a numeric factor to carry it, the sign is a negation.
+            if (negative && magnitude.equals(Apfloat.ONE))
+                numerator = new Negative().combine(numerator == null
+                        ? Number.ONE : numerator, null);
+
+            if (numerator == null)
+                numerator = Number.ONE;
+            if (denominator == null)
+                return numerator;
+            return new Divide().combine(numerator, denominator);
+        }
+
+
+        private static Function multiply(Function product, Function factor) {
+            if (product == null)
+                return factor;
+            return new Multiply().combine(product, factor);
+        }
+
+
+        private static Function power(Function factor, Apfloat exponent) {
+            if (exponent.equals(Apfloat.ONE))
+                return factor;
+            return new Exponent().combine(factor, Number.valueOf(exponent));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Common subexpression elimination. Subexpressions that appear more than once
+ * in a Function are bound to temporaries by a Let, so that they are only
+ * evaluated once.
+ *
+ * @author Adam
+ */
+public class CommonSubexpressions {
+
+    private CommonSubexpressions() {
+    }
+
+
+    /**
+     * Eliminates common subexpressions from a Function. Numbers and variables
+     * are never bound to temporaries, since they are no cheaper to look up
+     * than to evaluate.
+     *
+     * @param function The Function.
+     *
+     * @return A Let binding each repeated subexpression to a temporary, or
+     *         the canonical instance of the Function if nothing is repeated.
+     */
+    public static Function eliminate(Function function) {
+
+        // Identical subtrees become the same object once interned, so
+        // repeated subexpressions are nodes with more than one parent.
+        Function root = function.intern();
+        Map<Function, Integer> uses = countUses(root);
+
+        List<Function> bindings = new ArrayList<Function>();
+        Map<Function, Function> rebuilt = new IdentityHashMap<Function,
+                Function>();
+
+        // Rebuild the tree in post-order, so that the binding of each
+        // subexpression comes after the bindings it refers to.
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        funcStack.push(root);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.peek();
+
+            if (rebuilt.containsKey(current)) {
+                funcStack.pop();
+                continue;
+            }
+
+            if (current.isLeaf()) {
+                funcStack.pop();
+                rebuilt.put(current, current);
+                continue;
+            }
+
+            Function first = current.getFirstChild();
+            Function second = current.getSecondChild();
+
+            boolean ready = true;
+            if (second != null && !rebuilt.containsKey(second)) {
+                funcStack.push(second);
+                ready = false;
+            }
+            if (first != null && !rebuilt.containsKey(first)) {
+                funcStack.push(first);
+                ready = false;
+            }
+            if (!ready)
+                continue;
+
+            funcStack.pop();
+
+            Function newFirst = first == null ? null : rebuilt.get(first);
+            Function newSecond = second == null ? null : rebuilt.get(second);
+
+            // Only copy nodes with a descendant that was replaced.
+            Function replacement = current;
+            if (newFirst != first || newSecond != second) {
+                replacement = current.emptyCopy();
+                replacement.first = newFirst;
+                replacement.second = newSecond;
+            }
+
+            if (current != root && uses.get(current) > 1) {
+                bindings.add(replacement);
+                replacement = new Temporary(bindings.size() - 1);
+            }
+
+            rebuilt.put(current, replacement);
+        }
+
+        if (bindings.isEmpty())
+            return root;
+
+        return new Let(bindings.toArray(new Function[bindings.size()]),
+                rebuilt.get(root));
+    }
+
+
+    /**
+     * Counts the number of parents of each node.
+     *
+     * @param root The root of the tree.
+     *
+     * @return Map of nodes to the number of their parents.
+     */
+    private static Map<Function, Integer> countUses(Function root) {
+
+        Map<Function, Integer> uses = new IdentityHashMap<Function, Integer>();
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+
+        uses.put(root, 1);
+        funcStack.push(root);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.pop();
+            if (current.isLeaf())
+                continue;
+
+            for (Function child : new Function[] {current.getFirstChild(),
+                    current.getSecondChild()}) {
+                if (child == null)
+                    continue;
+
+                // The children of each node are only visited the first time
+                // it is reached.
+                Integer count = uses.get(child);
+                uses.put(child, count == null ? 1 : count + 1);
+                if (count == null)
+                    funcStack.push(child);
+            }
+        }
+
+        return uses;
+    }
+}
@@ -7,24 +7,102 @@
 
 package com.adamheins.dervish.function;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+
 /**
- * Class defining mathematical constants.
+ * Class defining mathematical constants. The value of a constant is computed
+ * when it is first needed at each precision, and then cached.
  *
  * @author Adam
  */
-public class Constant extends Number {
+public abstract class Constant extends Number {
 
-    public static final Constant E = new Constant("2.71828182845904523536",
-            "e");
-    public static final Constant PI = new Constant("3.14159265358979323846",
-            "pi");
+    public static final Constant E = new Constant("e") {
+        @Override
+        Apfloat compute(long precision) {
+            return ApfloatMath.exp(new Apfloat(1, precision));
+        }
+    };
+    public static final Constant PI = new Constant("pi") {
+        @Override
+        Apfloat compute(long precision) {
+            return ApfloatMath.pi(precision);
+        }
+    };
 
     // The string representing the constant.
     private String strValue;
 
-    private Constant(String value, String strValue) {
-        super(value);
+    // Value of the constant at each internal precision.
+    private final ConcurrentMap<Long, Apfloat> values;
+
+
+    private Constant(String strValue) {
+        super(Apfloat.ZERO);
         this.strValue = strValue;
+        this.values = new ConcurrentHashMap<Long, Apfloat>();
+    }
+
+
+    /**
+     * Computes the value of the constant.
+     *
+     * @param precision The precision to compute the value to.
+     *
+     * @return The value of the constant.
+     */
+    abstract Apfloat compute(long precision);
+
+
+    /**
+     * Get the value of the constant at the current precision.
+     *
+     * @return The value of the constant.
+     */
+    @Override
+    public Object getValue() {
+        long precision = Precision.get().internal();
+        Apfloat value = values.get(precision);
+        if (value == null) {
+            value = compute(precision);
+            values.putIfAbsent(precision, value);
+        }
+        return value;
+    }
+
+
+    @Override
+    boolean identical(Function other) {
+
+        // Each constant has a single instance.
+        return this == other;
+    }
+
+
+    @Override
+    Decimal decimal() {
+
+        // The value depends on the precision, so it is never compact.
+        return null;
+    }
+
+
+    @Override
+    int computeHash() {
+        return strValue.hashCode();
+    }
+
+
+    @Override
+    public int hashCode() {
+
+        // Equal Numbers have equal hashes, so unlike the structural hash,
+        // this depends on the value at the current precision.
+        return hashOf(doubleValue());
     }
 
 
@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 import org.apfloat.ApfloatMath;
 
@@ -25,22 +23,48 @@ public class Cos extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-        Function child = getFirstChild().evaluate(varMap);
+    Function combine(Function child, Function second) {
 
         if (child instanceof Number) {
-            Apfloat result = ApfloatMath.cos((Apfloat)child.getValue());
-            return new Number(precisionRound(result));
+            Apfloat result = ApfloatMath.cos(finite((Apfloat)child.getValue()));
+            return new Number(precisionRound(result)).intern();
         }
 
         Function me = new Cos();
         me.setFirstChild(child);
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Cos();
     }
 
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber child = context.dualOf(getFirstChild());
+        Apfloat value = precisionRound(ApfloatMath.cos(finite(child.value)));
+        if (child.derivative.signum() == 0)
+            return new DualNumber(value, Apfloat.ZERO);
+
+        Apfloat derivative = ApfloatMath.sin(finite(child.value)).negate()
+                .multiply(child.derivative);
+        return new DualNumber(value, precisionRound(derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).cos();
+    }
+
+
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
         Function mult = new Multiply();
         Function sin = new Sin();
         Function neg = new Negative();
@@ -48,7 +72,7 @@ public class Cos extends Function {
         sin.setFirstChild(getFirstChild().evaluate());
         neg.setFirstChild(sin);
         mult.setFirstChild(neg);
-        mult.setSecondChild(getFirstChild().differentiateInternal(var));
+        mult.setSecondChild(firstDerivative);
 
         return mult;
     }
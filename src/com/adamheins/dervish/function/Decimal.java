@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+import org.apfloat.Apint;
+import org.apfloat.Aprational;
+
+/**
+ * Exact value of a Number that is a terminating decimal, held as an unscaled
+ * integer and a power of ten. Most numbers are small integers or short
+ * decimals, such as those that are typed, whose unscaled values fit in a
+ * long. Arithmetic on them is done with overflow-checked long arithmetic,
+ * without creating any other objects, and only falls back to BigIntegers on
+ * overflow. Either way, no Apfloats are created, and unlike the fractions of
+ * Apfloat, decimals are never reduced by a gcd.
+ *
+ * Decimals are always normalized, so that equal values are held the same
+ * way: the scale is never negative, it is zero or the unscaled value does
+ * not end in a zero, and the unscaled value is held in a long if it fits.
+ *
+ * @author Adam
+ */
+final class Decimal {
+
+    // Largest power of ten that fits in a long.
+    private static final int LONG_POWERS = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[LONG_POWERS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i)
+            POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+    }
+
+    // Powers of ten that are exact as doubles.
+    private static final double[] DOUBLE_POWERS_OF_TEN = {1e0, 1e1, 1e2,
+            1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+            1e15, 1e16, 1e17, 1e18};
+
+    private static final BigInteger FIVE = BigInteger.valueOf(5);
+
+    private static final double LOG10_OF_TWO = Math.log10(2);
+
+    static final Decimal ONE = new Decimal(1, null, 0);
+
+    // The value is unscaled / 10^scale, where the unscaled value is held in
+    // big if it does not fit in a long.
+    final long unscaled;
+    final BigInteger big;
+    final int scale;
+
+
+    private Decimal(long unscaled, BigInteger big, int scale) {
+        this.unscaled = unscaled;
+        this.big = big;
+        this.scale = scale;
+    }
+
+
+    /**
+     * Get the Decimal with the value unscaled / 10^scale.
+     *
+     * @param unscaled The unscaled value.
+     * @param scale The scale, which must not be negative.
+     *
+     * @return The normalized Decimal.
+     */
+    static Decimal valueOf(long unscaled, int scale) {
+        while (scale > 0 && unscaled % 10 == 0) {
+            unscaled /= 10;
+            --scale;
+        }
+        return new Decimal(unscaled, null, scale);
+    }
+
+
+    /**
+     * Get the Decimal with the value unscaled / 10^scale.
+     *
+     * @param unscaled The unscaled value.
+     * @param scale The scale, which must not be negative.
+     *
+     * @return The normalized Decimal.
+     */
+    static Decimal valueOf(BigInteger unscaled, int scale) {
+        if (unscaled.bitLength() < Long.SIZE)
+            return valueOf(unscaled.longValue(), scale);
+        while (scale > 0) {
+            BigInteger[] quotient = unscaled.divideAndRemainder(
+                    BigInteger.TEN);
+            if (quotient[1].signum() != 0)
+                break;
+            unscaled = quotient[0];
+            --scale;
+        }
+        if (unscaled.bitLength() < Long.SIZE)
+            return new Decimal(unscaled.longValue(), null, scale);
+        return new Decimal(0, unscaled, scale);
+    }
+
+
+    /**
+     * Get the Decimal with the same value as an exact Apfloat.
+     *
+     * @param value The value.
+     *
+     * @return The Decimal, or null if the value is inexact or is a fraction
+     *         that does not terminate.
+     */
+    static Decimal valueOf(Apfloat value) {
+        if (!ExactArithmetic.isExact(value))
+            return null;
+        Aprational rational = (Aprational)value;
+        Decimal numerator = integer(rational.numerator());
+        if (value instanceof Apint)
+            return numerator;
+        try {
+            return numerator.divide(integer(rational.denominator()));
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Parses a decimal number from part of a string.
+     *
+     * @param str The string.
+     * @param start The index of the first character of the number.
+     * @param end The index after the last character of the number.
+     *
+     * @return The Decimal.
+     *
+     * @throws NumberFormatException If the characters are not a number.
+     */
+    static Decimal parse(String str, int start, int end) {
+
+        // Short numbers are read digit by digit into a long, without
+        // copying the characters.
+        if (end - start <= LONG_POWERS) {
+            int index = start;
+            boolean negative = false;
+            if (index < end && (str.charAt(index) == '-'
+                    || str.charAt(index) == '+')) {
+                negative = str.charAt(index) == '-';
+                ++index;
+            }
+
+            long unscaled = 0;
+            int scale = 0;
+            boolean point = false;
+            boolean digits = false;
+            for (; index < end; ++index) {
+                char ch = str.charAt(index);
+                if (ch == '.' && !point) {
+                    point = true;
+                    continue;
+                }
+                int digit = Character.digit(ch, 10);
+                if (digit < 0)
+                    break;
+                unscaled = 10 * unscaled + digit;
+                digits = true;
+                if (point)
+                    ++scale;
+            }
+
+            // Numbers in other forms, such as with exponents, are read
+            // below.
+            if (index == end && digits)
+                return valueOf(negative ? -unscaled : unscaled, scale);
+        }
+
+        BigDecimal decimal = new BigDecimal(str.substring(start, end));
+        if (decimal.scale() < 0)
+            return valueOf(decimal.unscaledValue().multiply(BigInteger.TEN
+                    .pow(-decimal.scale())), 0);
+        return valueOf(decimal.unscaledValue(), decimal.scale());
+    }
+
+
+    Decimal add(Decimal other) {
+        int resultScale = Math.max(scale, other.scale);
+        if (big == null && other.big == null && Math.abs(scale
+                - other.scale) <= LONG_POWERS) {
+            try {
+                return valueOf(Math.addExact(rescale(resultScale), other
+                        .rescale(resultScale)), resultScale);
+            } catch (ArithmeticException e) {
+                // Overflowed, so add as BigIntegers.
+            }
+        }
+        return valueOf(bigRescale(resultScale).add(other.bigRescale(
+                resultScale)), resultScale);
+    }
+
+
+    Decimal subtract(Decimal other) {
+        int resultScale = Math.max(scale, other.scale);
+        if (big == null && other.big == null && Math.abs(scale
+                - other.scale) <= LONG_POWERS) {
+            try {
+                return valueOf(Math.subtractExact(rescale(resultScale), other
+                        .rescale(resultScale)), resultScale);
+            } catch (ArithmeticException e) {
+                // Overflowed, so subtract as BigIntegers.
+            }
+        }
+        return valueOf(bigRescale(resultScale).subtract(other.bigRescale(
+                resultScale)), resultScale);
+    }
+
+
+    Decimal multiply(Decimal other) {
+        if (big == null && other.big == null) {
+            try {
+                return valueOf(Math.multiplyExact(unscaled, other.unscaled),
+                        scale + other.scale);
+            } catch (ArithmeticException e) {
+                // Overflowed, so multiply as BigIntegers.
+            }
+        }
+        return valueOf(bigUnscaled().multiply(other.bigUnscaled()), scale
+                + other.scale);
+    }
+
+
+    /**
+     * Divides this Decimal by another. The quotient is a terminating decimal
+     * if, in lowest terms, the divisor has no prime factors other than two
+     * and five, in which case it can be written over a power of ten.
+     *
+     * @throws ArithmeticException If the divisor is zero, or the quotient
+     *         does not terminate.
+     */
+    Decimal divide(Decimal other) {
+        if (other.signum() == 0)
+            throw new ArithmeticException("Division by zero.");
+
+        if (big == null && other.big == null && unscaled != Long.MIN_VALUE
+                && other.unscaled != Long.MIN_VALUE) {
+            long divisor = gcd(Math.abs(unscaled), Math.abs(other.unscaled));
+            long numerator = unscaled / divisor;
+            long denominator = other.unscaled / divisor;
+            if (denominator < 0) {
+                numerator = -numerator;
+                denominator = -denominator;
+            }
+
+            long remainder = denominator;
+            int twos = Long.numberOfTrailingZeros(remainder);
+            remainder >>= twos;
+            int fives = 0;
+            while (remainder % 5 == 0) {
+                remainder /= 5;
+                ++fives;
+            }
+            if (remainder != 1)
+                throw new ArithmeticException("Non-terminating decimal.");
+
+            int places = Math.max(twos, fives);
+            int resultScale = scale - other.scale + places;
+            if (places <= LONG_POWERS && -resultScale <= LONG_POWERS) {
+                try {
+                    long quotient = Math.multiplyExact(numerator,
+                            POWERS_OF_TEN[places] / denominator);
+                    if (resultScale >= 0)
+                        return valueOf(quotient, resultScale);
+                    return valueOf(Math.multiplyExact(quotient,
+                            POWERS_OF_TEN[-resultScale]), 0);
+                } catch (ArithmeticException e) {
+                    // Overflowed, so divide as BigIntegers.
+                }
+            }
+        }
+
+        BigInteger numerator = bigUnscaled();
+        BigInteger denominator = other.bigUnscaled();
+        BigInteger divisor = numerator.gcd(denominator);
+        numerator = numerator.divide(divisor);
+        denominator = denominator.divide(divisor);
+        if (denominator.signum() < 0) {
+            numerator = numerator.negate();
+            denominator = denominator.negate();
+        }
+
+        int twos = denominator.getLowestSetBit();
+        BigInteger remainder = denominator.shiftRight(twos);
+        int fives = 0;
+        while (true) {
+            BigInteger[] quotient = remainder.divideAndRemainder(FIVE);
+            if (quotient[1].signum() != 0)
+                break;
+            remainder = quotient[0];
+            ++fives;
+        }
+        if (!remainder.equals(BigInteger.ONE))
+            throw new ArithmeticException("Non-terminating decimal.");
+
+        int places = Math.max(twos, fives);
+        BigInteger quotient = numerator.multiply(BigInteger.TEN.pow(places)
+                .divide(denominator));
+        int resultScale = scale - other.scale + places;
+        if (resultScale >= 0)
+            return valueOf(quotient, resultScale);
+        return valueOf(quotient.multiply(BigInteger.TEN.pow(-resultScale)),
+                0);
+    }
+
+
+    Decimal negate() {
+        if (big == null && unscaled != Long.MIN_VALUE)
+            return new Decimal(-unscaled, null, scale);
+        return valueOf(bigUnscaled().negate(), scale);
+    }
+
+
+    /**
+     * Raises this Decimal to an integer power by repeated squaring.
+     *
+     * @param exponent The exponent.
+     * @param maxDigits The largest number of digits of the power.
+     *
+     * @throws ArithmeticException If the power would have too many digits,
+     *         or does not terminate or is undefined because the exponent is
+     *         negative.
+     */
+    Decimal pow(long exponent, long maxDigits) {
+        double digits = Math.max(big == null ? Math.log10(Math.abs(
+                (double)unscaled)) : big.bitLength() * LOG10_OF_TWO, scale);
+        if (Math.abs((double)exponent) * digits > maxDigits)
+            throw new ArithmeticException("Too many digits.");
+        if (exponent < 0)
+            return ONE.divide(pow(Math.negateExact(exponent), maxDigits));
+
+        Decimal result = ONE;
+        Decimal base = this;
+        for (long k = exponent; k > 0; k >>= 1) {
+            if ((k & 1) != 0)
+                result = result.multiply(base);
+            if (k > 1)
+                base = base.multiply(base);
+        }
+        return result;
+    }
+
+
+    /**
+     * Check if this Decimal is an integer that fits in a long.
+     *
+     * @return True if it is such an integer, false otherwise.
+     */
+    boolean isLong() {
+        return scale == 0 && big == null;
+    }
+
+
+    int signum() {
+        return big == null ? Long.signum(unscaled) : big.signum();
+    }
+
+
+    /**
+     * Get roughly the number of digits of the numerator or the denominator
+     * of this Decimal, whichever has more.
+     *
+     * @return The number of digits.
+     */
+    long size() {
+        long digits = big == null ? LONG_POWERS + 1 : (long)(big.bitLength()
+                * LOG10_OF_TWO) + 1;
+        return Math.max(digits, scale);
+    }
+
+
+    /**
+     * Get the value of this Decimal as an exact Apfloat.
+     *
+     * @return The exact value.
+     */
+    Apfloat toApfloat() {
+        Apint integer = big == null ? ExactArithmetic.valueOf(unscaled)
+                : new Apint(big);
+        if (scale == 0)
+            return integer;
+        return new Aprational(integer, scale <= LONG_POWERS ? ExactArithmetic
+                .valueOf(POWERS_OF_TEN[scale]) : new Apint(BigInteger.TEN.pow(
+                scale)));
+    }
+
+
+    /**
+     * Get the value of this Decimal as an inexact Apfloat.
+     *
+     * @param precision The precision of the Apfloat.
+     *
+     * @return The value, to the given precision.
+     */
+    Apfloat toApfloat(long precision) {
+        Apfloat value = big == null ? new Apfloat(unscaled, precision)
+                : new Apfloat(big, precision);
+        return ApfloatMath.scale(value, -scale);
+    }
+
+
+    /**
+     * Get the nearest double to this Decimal. Both parts of the quotient are
+     * exact as doubles if the unscaled value has at most 53 bits, so that
+     * the quotient is correctly rounded; otherwise, BigDecimal rounds it.
+     *
+     * @return The nearest double.
+     */
+    double doubleValue() {
+        if (big == null && scale == 0)
+            return unscaled;
+        if (big == null && scale <= LONG_POWERS && Math.abs(unscaled)
+                < 1L << 53)
+            return unscaled / DOUBLE_POWERS_OF_TEN[scale];
+        return new BigDecimal(bigUnscaled(), scale).doubleValue();
+    }
+
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Decimal))
+            return false;
+        Decimal decimal = (Decimal)other;
+        if (unscaled != decimal.unscaled || scale != decimal.scale)
+            return false;
+        return big == null ? decimal.big == null : big.equals(decimal.big);
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = big == null ? (int)(unscaled ^ (unscaled >>> 32))
+                : big.hashCode();
+        return 31 * hash + scale;
+    }
+
+
+    @Override
+    public String toString() {
+        if (big != null)
+            return new BigDecimal(big, scale).toPlainString();
+
+        String digits = Long.toString(unscaled);
+        if (scale == 0)
+            return digits;
+
+        StringBuilder str = new StringBuilder();
+        if (unscaled < 0) {
+            str.append('-');
+            digits = digits.substring(1);
+        }
+        int point = digits.length() - scale;
+        if (point <= 0) {
+            str.append("0.");
+            for (int i = point; i < 0; ++i)
+                str.append('0');
+            str.append(digits);
+        } else {
+            str.append(digits, 0, point).append('.').append(digits, point,
+                    digits.length());
+        }
+        return str.toString();
+    }
+
+
+    /**
+     * Get a Decimal with the value of an integer.
+     */
+    private static Decimal integer(Apint integer) {
+        if (integer.size() <= LONG_POWERS)
+            return new Decimal(integer.longValue(), null, 0);
+        return valueOf(integer.toBigInteger(), 0);
+    }
+
+
+    /**
+     * Get the unscaled value of this Decimal at a larger scale, which is at
+     * most LONG_POWERS larger.
+     *
+     * @throws ArithmeticException If the value overflows.
+     */
+    private long rescale(int newScale) {
+        return Math.multiplyExact(unscaled, POWERS_OF_TEN[newScale - scale]);
+    }
+
+
+    /**
+     * Get the unscaled value of this Decimal at a larger scale as a
+     * BigInteger.
+     */
+    private BigInteger bigRescale(int newScale) {
+        if (newScale == scale)
+            return bigUnscaled();
+        return bigUnscaled().multiply(BigInteger.TEN.pow(newScale - scale));
+    }
+
+
+    private BigInteger bigUnscaled() {
+        return big == null ? BigInteger.valueOf(unscaled) : big;
+    }
+
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 
 /**
@@ -24,16 +22,10 @@ public class Divide extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        Function first = getFirstChild().evaluate(varMap);
-        Function second = getSecondChild().evaluate(varMap);
+    Function combine(Function first, Function second) {
 
         if (first instanceof Number && second instanceof Number) {
-            Apfloat firstValue = (Apfloat)first.getValue();
-            Apfloat secondValue = (Apfloat)second.getValue();
-            Apfloat result = firstValue.divide(secondValue);
-            return new Number(result);
+            return Number.divide((Number)first, (Number)second);
         }
 
         if (second.equals(Number.ONE)) {
@@ -48,20 +40,48 @@ public class Divide extends Function {
         me.setFirstChild(first);
         me.setSecondChild(second);
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Divide();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber first = context.dualOf(getFirstChild());
+        DualNumber second = context.dualOf(getSecondChild());
+        Apfloat denominator = finite(second.value);
+
+        // Quotient rule.
+        Apfloat numerator = first.derivative.multiply(second.value)
+                .subtract(first.value.multiply(second.derivative));
+        return new DualNumber(first.value.divide(denominator),
+                numerator.divide(denominator.multiply(denominator)));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).divide(context.boundOf(
+                getSecondChild()));
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
         Function mult1 = new Multiply();
-        mult1.setFirstChild(getFirstChild().differentiateInternal(var));
+        mult1.setFirstChild(firstDerivative);
         mult1.setSecondChild(getSecondChild());
 
         Function mult2 = new Multiply();
         mult2.setFirstChild(getFirstChild());
-        mult2.setSecondChild(getSecondChild().differentiateInternal(var));
+        mult2.setSecondChild(secondDerivative);
 
         Function mult3 = new Multiply();
         mult3.setFirstChild(getSecondChild());
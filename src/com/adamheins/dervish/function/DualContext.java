@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * State of a single forward-mode evaluation of a Function.
+ *
+ * @author Adam
+ */
+class DualContext {
+
+    // Values of the variables.
+    final Map<String, Function> varMap;
+
+    // Direction in which the derivative is taken.
+    final Map<String, Function> direction;
+
+    // Results for nodes that have already been evaluated, so that shared
+    // subtrees are only evaluated once.
+    private final Map<Function, DualNumber> memo;
+
+
+    DualContext(Map<String, Function> varMap, Map<String, Function> direction) {
+        this.varMap = varMap;
+        this.direction = direction;
+        this.memo = new IdentityHashMap<Function, DualNumber>();
+    }
+
+
+    /**
+     * Evaluates a node and its directional derivative.
+     *
+     * @param function The node.
+     *
+     * @return The value and directional derivative of the node.
+     */
+    DualNumber dualOf(Function function) {
+        DualNumber result = memo.get(function);
+        if (result == null) {
+            result = function.dual(this);
+            memo.put(function, result);
+        }
+        return result;
+    }
+}
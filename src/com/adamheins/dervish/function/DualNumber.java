@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import org.apfloat.Apfloat;
+
+/**
+ * The value of a Function at a point, together with its directional
+ * derivative at that point.
+ *
+ * @author Adam
+ */
+public final class DualNumber {
+
+    final Apfloat value;
+    final Apfloat derivative;
+
+
+    DualNumber(Apfloat value, Apfloat derivative) {
+
+        // The rules of differentiation are mostly inexact, so values are
+        // carried at the current precision.
+        this.value = Function.finite(value);
+        this.derivative = Function.finite(derivative);
+    }
+
+
+    /**
+     * Get the value of the Function.
+     *
+     * @return The value.
+     */
+    public Number getValue() {
+        return (Number)new Number(value).intern();
+    }
+
+
+    /**
+     * Get the directional derivative of the Function.
+     *
+     * @return The directional derivative.
+     */
+    public Number getDerivative() {
+        return (Number)new Number(derivative).intern();
+    }
+
+
+    @Override
+    public String toString() {
+        return getValue() + ", " + getDerivative();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State of a single evaluation of a Function. The Functions to substitute for
+ * variables are held in arrays sorted by the indices of the variables in the
+ * VariableTable, so looking up a variable does not involve its name, and the
+ * cost of setting up an evaluation depends only on the number of variables
+ * that are substituted.
+ *
+ * @author Adam
+ */
+class EvaluationContext {
+
+    // Up to this many substituted variables are searched one by one, rather
+    // than through a set of bits as long as the VariableTable.
+    private static final int SPARSE_LIMIT = 8;
+
+    private static final int[] NO_INDICES = new int[0];
+    private static final Function[] NO_FUNCTIONS = new Function[0];
+
+    // The indices of the substituted variables in the VariableTable, in
+    // increasing order.
+    private final int[] indices;
+
+    // The Function to substitute for each of the variables.
+    private final Function[] bindings;
+
+    // Values of the variables that have already been met, so that the
+    // Function substituted for each variable is only evaluated once, however
+    // many times the variable appears.
+    private final Function[] values;
+
+    // The set of substituted variables, where there are too many to search
+    // one by one, or null otherwise.
+    private final BitSet substituted;
+
+    // The bindings by name, for let expressions, which are evaluated with
+    // maps. Built only when needed if the bindings were given by slot.
+    private Map<String, Function> varMap;
+
+
+    /**
+     * Constructor.
+     *
+     * @param varMap A map of variable names and the Functions that should be
+     *         substituted into them, which may be null.
+     */
+    EvaluationContext(Map<String, Function> varMap) {
+        int count = varMap == null ? 0 : varMap.size();
+        int[] indices = new int[count];
+        Function[] functions = new Function[count];
+
+        // Names without an index are left out, since no Variable has them.
+        int size = 0;
+        if (varMap != null) {
+            for (Map.Entry<String, Function> entry : varMap.entrySet()) {
+                int index = VariableTable.INSTANCE.find(entry.getKey());
+                if (index >= 0) {
+                    indices[size] = index;
+                    functions[size] = entry.getValue();
+                    ++size;
+                }
+            }
+        }
+
+        this.indices = size == 0 ? NO_INDICES : new int[size];
+        this.bindings = size == 0 ? NO_FUNCTIONS : new Function[size];
+        this.values = size == 0 ? NO_FUNCTIONS : new Function[size];
+        sort(indices, functions, size);
+        this.substituted = setOf(this.indices);
+        this.varMap = varMap;
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param bindings The Functions that should be substituted into the
+     *        variables, indexed by slot, where null entries are not
+     *        substituted.
+     * @param symbols The table that gives the slots of the variables.
+     *
+     * @throws IndexOutOfBoundsException If a Function is given for a slot
+     *         that no variable has.
+     */
+    EvaluationContext(Function[] bindings, SymbolTable symbols) {
+        int[] indices = new int[bindings.length];
+        Function[] functions = new Function[bindings.length];
+
+        int size = 0;
+        for (int slot = 0; slot < bindings.length; ++slot) {
+            if (bindings[slot] != null) {
+                indices[size] = symbols.indexOf(slot);
+                functions[size] = bindings[slot];
+                ++size;
+            }
+        }
+
+        this.indices = size == 0 ? NO_INDICES : new int[size];
+        this.bindings = size == 0 ? NO_FUNCTIONS : new Function[size];
+        this.values = size == 0 ? NO_FUNCTIONS : new Function[size];
+        sort(indices, functions, size);
+        this.substituted = setOf(this.indices);
+    }
+
+
+    /**
+     * Fills the indices and bindings of this context from those given, in
+     * increasing order of index.
+     *
+     * @param indices The indices of the variables, in any order.
+     * @param functions The Function to substitute for each variable.
+     * @param size The number of variables.
+     */
+    private void sort(int[] indices, Function[] functions, int size) {
+
+        // Each index is paired with its position in the high and low halves
+        // of a long, so that sorting the pairs orders the positions by index.
+        long[] pairs = new long[size];
+        for (int i = 0; i < size; ++i)
+            pairs[i] = ((long)indices[i] << 32) | i;
+        Arrays.sort(pairs);
+
+        for (int i = 0; i < size; ++i) {
+            int position = (int)pairs[i];
+            this.indices[i] = indices[position];
+            this.bindings[i] = functions[position];
+        }
+    }
+
+
+    /**
+     * Get the set of the substituted variables, if there are too many of
+     * them to search one by one.
+     *
+     * @param indices The indices of the substituted variables.
+     *
+     * @return The set of the variables, or null if there are few of them.
+     */
+    private static BitSet setOf(int[] indices) {
+        if (indices.length <= SPARSE_LIMIT)
+            return null;
+        BitSet set = new BitSet();
+        for (int index : indices)
+            set.set(index);
+        return set;
+    }
+
+
+    /**
+     * Check if any of a set of variables is substituted.
+     *
+     * @param variables The set of variables, as indices in the VariableTable.
+     *
+     * @return True if one of the variables is substituted, false otherwise.
+     */
+    boolean substitutes(BitSet variables) {
+        if (substituted != null)
+            return variables.intersects(substituted);
+        for (int index : indices) {
+            if (variables.get(index))
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Get the position of a variable among the substituted variables.
+     *
+     * @param variable The variable.
+     *
+     * @return The position, or a negative number if the variable is not
+     *         substituted.
+     */
+    private int positionOf(Variable variable) {
+        int index = variable.index;
+        if (indices.length > SPARSE_LIMIT)
+            return Arrays.binarySearch(indices, index);
+        for (int i = 0; i < indices.length; ++i) {
+            if (indices[i] == index)
+                return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Get the value of a variable, which is the evaluated Function
+     * substituted for it, or the variable itself if there is none.
+     *
+     * @param variable The variable.
+     *
+     * @return The value of the variable.
+     */
+    Function valueOf(Variable variable) {
+        int position = positionOf(variable);
+        if (position < 0)
+            return variable.intern();
+        if (values[position] == null)
+            values[position] = bindings[position].evaluateIn(this);
+        return values[position];
+    }
+
+
+    /**
+     * Get the Function bound to a variable, without evaluating it.
+     *
+     * @param variable The variable.
+     *
+     * @return The bound Function, or null if the variable is not substituted.
+     */
+    Function bindingOf(Variable variable) {
+        int position = positionOf(variable);
+        return position < 0 ? null : bindings[position];
+    }
+
+
+    /**
+     * Get the bindings of the evaluation by name.
+     *
+     * @return A map of variable names and the Functions that should be
+     *         substituted into them.
+     */
+    Map<String, Function> varMap() {
+        if (varMap == null) {
+            varMap = new HashMap<String, Function>();
+            for (int i = 0; i < indices.length; ++i)
+                varMap.put(VariableTable.INSTANCE.nameOf(indices[i]),
+                        bindings[i]);
+        }
+        return varMap;
+    }
+}
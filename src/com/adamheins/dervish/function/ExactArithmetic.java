@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+import org.apfloat.Apint;
+import org.apfloat.Aprational;
+import org.apfloat.AprationalMath;
+
+/**
+ * Arithmetic on the values of Numbers. Exact values are held as rationals,
+ * and the sum, difference, product, quotient and integer powers of exact
+ * values are exact as well. Once an inexact value, such as the result of a
+ * transcendental function, is involved, the result is inexact and limited to
+ * the current precision.
+ *
+ * Exact values are always in lowest terms, and those that are integers are
+ * held as such, so that equal values are held the same way. Exact results
+ * whose numerators or denominators grow beyond twice the internal precision
+ * are converted to inexact values at that precision, since repeated
+ * operations on a decimal such as 1.03 would otherwise grow them without
+ * bound.
+ *
+ * Most exact values are small integers or short decimals, whose numerators
+ * and denominators fit in a long. Arithmetic on such values is done with
+ * overflow-checked long arithmetic, and only falls back to arbitrary
+ * precision on overflow. Small integers are shared rather than allocated.
+ *
+ * @author Adam
+ */
+final class ExactArithmetic {
+
+    // Largest number of digits of a numerator or denominator that is
+    // certain to fit in a long.
+    private static final long LONG_DIGITS = 18;
+
+    // Number of digits to which fractions that do not terminate are
+    // converted to doubles.
+    private static final long DOUBLE_DIGITS = 20;
+
+    // Smallest bound on the number of digits of the numerator or denominator
+    // of an exact result.
+    private static final long MIN_EXACT_DIGITS = 2 * LONG_DIGITS;
+
+    // Range of the integers that are shared.
+    static final int CACHE_LOW = -128;
+    static final int CACHE_HIGH = 1024;
+
+    private static final Apint[] CACHE = new Apint[CACHE_HIGH - CACHE_LOW
+            + 1];
+    static {
+        for (int i = 0; i < CACHE.length; ++i)
+            CACHE[i] = new Apint(CACHE_LOW + i);
+    }
+
+    private static final Apint TWO = valueOf(2);
+    private static final Apint FIVE = valueOf(5);
+
+    private ExactArithmetic() {
+    }
+
+
+    /**
+     * Check if a value is exact.
+     *
+     * @param value The value.
+     *
+     * @return True if the value is exact, false otherwise.
+     */
+    static boolean isExact(Apfloat value) {
+        return value instanceof Aprational;
+    }
+
+
+    /**
+     * Parses a decimal number as an exact value.
+     *
+     * @param value The string representation of the number.
+     *
+     * @return The exact value.
+     *
+     * @throws NumberFormatException If the string is not a number.
+     */
+    static Apfloat parse(String value) {
+        return parse(value, 0, value.length());
+    }
+
+
+    /**
+     * Parses a decimal number from part of a string as an exact value.
+     *
+     * @param str The string.
+     * @param start The index of the first character of the number.
+     * @param end The index after the last character of the number.
+     *
+     * @return The exact value.
+     *
+     * @throws NumberFormatException If the characters are not a number.
+     */
+    static Apfloat parse(String str, int start, int end) {
+        return Decimal.parse(str, start, end).toApfloat();
+    }
+
+
+    /**
+     * Converts a value with infinite precision, which is necessarily a
+     * terminating decimal, to an exact value. Other values are unchanged.
+     *
+     * @param value The value.
+     *
+     * @return The value, as an exact value if it has infinite precision.
+     */
+    static Apfloat exact(Apfloat value) {
+        if (value instanceof Aprational)
+            return reduce((Aprational)value);
+        if (value.precision() != Apfloat.INFINITE)
+            return value;
+        return parse(value.toString(true));
+    }
+
+
+    /**
+     * Check if two values are the same number. An inexact value holds a
+     * finite number of digits, so it is compared with an exact value as the
+     * exact value of those digits, rather than by rounding the exact value to
+     * its precision, which would not be transitive.
+     *
+     * @param first The first value.
+     * @param second The second value.
+     *
+     * @return True if the values are the same number, false otherwise.
+     */
+    static boolean equal(Apfloat first, Apfloat second) {
+        if (isExact(first) == isExact(second))
+            return first.equals(second);
+        if (isExact(first))
+            return first.equals(parse(second.toString(true)));
+        return parse(first.toString(true)).equals(second);
+    }
+
+
+    static Apfloat add(Apfloat first, Apfloat second) {
+        if (isSmall(first) && isSmall(second)) {
+            long a = numerator(first);
+            long b = denominator(first);
+            long c = numerator(second);
+            long d = denominator(second);
+            try {
+                if (b == 1 && d == 1)
+                    return valueOf(Math.addExact(a, c));
+                return fraction(Math.addExact(Math.multiplyExact(a, d),
+                        Math.multiplyExact(c, b)), Math.multiplyExact(b, d));
+            } catch (ArithmeticException e) {
+                // Overflowed, so add with arbitrary precision.
+            }
+        }
+        if (isExact(first) && isExact(second))
+            return bounded(((Aprational)first).add((Aprational)second));
+        return Function.finite(first).add(Function.finite(second));
+    }
+
+
+    static Apfloat subtract(Apfloat first, Apfloat second) {
+        if (isSmall(first) && isSmall(second)) {
+            long a = numerator(first);
+            long b = denominator(first);
+            long c = numerator(second);
+            long d = denominator(second);
+            try {
+                if (b == 1 && d == 1)
+                    return valueOf(Math.subtractExact(a, c));
+                return fraction(Math.subtractExact(Math.multiplyExact(a, d),
+                        Math.multiplyExact(c, b)), Math.multiplyExact(b, d));
+            } catch (ArithmeticException e) {
+                // Overflowed, so subtract with arbitrary precision.
+            }
+        }
+        if (isExact(first) && isExact(second))
+            return bounded(((Aprational)first).subtract(
+                    (Aprational)second));
+        return Function.finite(first).subtract(Function.finite(second));
+    }
+
+
+    static Apfloat multiply(Apfloat first, Apfloat second) {
+        if (isSmall(first) && isSmall(second)) {
+            try {
+                return fraction(Math.multiplyExact(numerator(first),
+                        numerator(second)), Math.multiplyExact(
+                        denominator(first), denominator(second)));
+            } catch (ArithmeticException e) {
+                // Overflowed, so multiply with arbitrary precision.
+            }
+        }
+        if (isExact(first) && isExact(second))
+            return bounded(((Aprational)first).multiply(
+                    (Aprational)second));
+        return Function.finite(first).multiply(Function.finite(second));
+    }
+
+
+    /**
+     * Divides one value by another.
+     *
+     * @throws EvaluationException If the divisor is zero.
+     */
+    static Apfloat divide(Apfloat first, Apfloat second) {
+        if (second.signum() == 0)
+            throw new EvaluationException("Division by zero.");
+        if (isSmall(first) && isSmall(second)) {
+            try {
+                return fraction(Math.multiplyExact(numerator(first),
+                        denominator(second)), Math.multiplyExact(
+                        denominator(first), numerator(second)));
+            } catch (ArithmeticException e) {
+                // Overflowed, so divide with arbitrary precision.
+            }
+        }
+        if (isExact(first) && isExact(second))
+            return bounded(((Aprational)first).divide((Aprational)second));
+        return Function.finite(first).divide(Function.finite(second));
+    }
+
+
+    /**
+     * Raises a value to a power. The result is exact if the base is exact,
+     * the exponent is an integer, and the result is not too large to be
+     * kept exactly.
+     * Otherwise, the result is computed at the current precision, but is not
+     * rounded.
+     *
+     * @throws EvaluationException If zero is raised to a negative power.
+     */
+    static Apfloat pow(Apfloat base, Apfloat exponent) {
+
+        boolean integer = exponent instanceof Apint
+                && exponent.compareTo(new Apint(Long.MAX_VALUE)) <= 0
+                && exponent.compareTo(new Apint(-Long.MAX_VALUE)) >= 0;
+        if (integer && base.signum() == 0 && exponent.signum() < 0)
+            throw new EvaluationException("Division by zero.");
+
+        if (integer && isSmall(base)) {
+            try {
+                return power(numerator(base), denominator(base), exponent
+                        .longValue());
+            } catch (ArithmeticException e) {
+                // Overflowed, so raise with arbitrary precision.
+            }
+        }
+
+        if (integer && isExact(base)) {
+            Aprational rational = (Aprational)base;
+            double digits = Math.max(digits(rational.numerator()), digits(
+                    rational.denominator()));
+            long power = Math.abs(exponent.longValue());
+            if (power * digits <= exactDigits())
+                return bounded(AprationalMath.pow(rational, exponent
+                        .longValue()));
+        }
+
+        if (integer)
+            return ApfloatMath.pow(Function.finite(base), exponent.longValue());
+        return ApfloatMath.pow(Function.finite(base), Function.finite(
+                exponent));
+    }
+
+
+    /**
+     * Converts a value to the nearest double. Apfloat does not always round
+     * its conversions to the nearest double, and may convert the same number
+     * differently depending on how it is held, so values that are decimals
+     * are converted through their digits instead.
+     *
+     * @param value The value.
+     *
+     * @return The nearest double. Exact fractions that do not terminate are
+     *         first rounded to a decimal.
+     */
+    static double doubleValue(Apfloat value) {
+        if (value instanceof Apint && value.size() <= LONG_DIGITS)
+            return value.longValue();
+        return Double.parseDouble(decimal(value, DOUBLE_DIGITS).toString(
+                false));
+    }
+
+
+    /**
+     * Converts a value to a decimal. Exact values that are terminating
+     * decimals are converted exactly, and other values are converted to the
+     * given precision.
+     *
+     * @param value The value.
+     * @param precision The precision of values that cannot be converted
+     *         exactly.
+     *
+     * @return The decimal.
+     */
+    static Apfloat decimal(Apfloat value, long precision) {
+        if (!isExact(value) || value instanceof Apint)
+            return value;
+
+        // A fraction is a terminating decimal if its denominator has no
+        // prime factors other than two and five, in which case it can be
+        // written over a power of ten.
+        Aprational rational = (Aprational)value;
+        Apint denominator = rational.denominator();
+        long twos = 0;
+        while (denominator.mod(TWO).signum() == 0) {
+            denominator = denominator.divide(TWO);
+            ++twos;
+        }
+        long fives = 0;
+        while (denominator.mod(FIVE).signum() == 0) {
+            denominator = denominator.divide(FIVE);
+            ++fives;
+        }
+        if (!denominator.equals(Apint.ONE))
+            return value.precision(precision);
+
+        long places = Math.max(twos, fives);
+        Aprational scaled = rational.multiply(AprationalMath.pow(
+                new Apint(10), places));
+        return ApfloatMath.scale(scaled.truncate(), -places);
+    }
+
+
+    /**
+     * Get an integer as an exact value. Small integers are shared.
+     *
+     * @param value The integer.
+     *
+     * @return The exact value.
+     */
+    static Apint valueOf(long value) {
+        if (value >= CACHE_LOW && value <= CACHE_HIGH)
+            return CACHE[(int)(value - CACHE_LOW)];
+        return new Apint(value);
+    }
+
+
+    /**
+     * Check if a value is exact, and its numerator and denominator fit in a
+     * long.
+     */
+    private static boolean isSmall(Apfloat value) {
+        return value instanceof Aprational
+                && ((Aprational)value).numerator().size() <= LONG_DIGITS
+                && ((Aprational)value).denominator().size() <= LONG_DIGITS;
+    }
+
+
+    private static long numerator(Apfloat value) {
+        return ((Aprational)value).numerator().longValue();
+    }
+
+
+    private static long denominator(Apfloat value) {
+        return ((Aprational)value).denominator().longValue();
+    }
+
+
+    /**
+     * Creates an exact value from a fraction of longs.
+     *
+     * @param numerator The numerator.
+     * @param denominator The denominator, which must not be zero.
+     *
+     * @return The exact value, in lowest terms.
+     *
+     * @throws ArithmeticException If the fraction overflows a long.
+     */
+    private static Apfloat fraction(long numerator, long denominator) {
+        if (denominator < 0) {
+            numerator = Math.negateExact(numerator);
+            denominator = Math.negateExact(denominator);
+        }
+        long divisor = gcd(numerator < 0 ? Math.negateExact(numerator)
+                : numerator, denominator);
+        numerator /= divisor;
+        denominator /= divisor;
+        if (denominator == 1)
+            return valueOf(numerator);
+        return new Aprational(valueOf(numerator), valueOf(denominator));
+    }
+
+
+    /**
+     * Raises a fraction of longs to an integer power by repeated squaring.
+     *
+     * @throws ArithmeticException If the power overflows a long.
+     */
+    private static Apfloat power(long numerator, long denominator,
+            long exponent) {
+        long resultNumerator = 1;
+        long resultDenominator = 1;
+        for (long k = Math.abs(exponent); k > 0; k >>= 1) {
+            if ((k & 1) != 0) {
+                resultNumerator = Math.multiplyExact(resultNumerator,
+                        numerator);
+                resultDenominator = Math.multiplyExact(resultDenominator,
+                        denominator);
+            }
+            if (k > 1) {
+                numerator = Math.multiplyExact(numerator, numerator);
+                denominator = Math.multiplyExact(denominator, denominator);
+            }
+        }
+        if (exponent < 0)
+            return fraction(resultDenominator, resultNumerator);
+        return fraction(resultNumerator, resultDenominator);
+    }
+
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+
+    /**
+     * Reduces an exact result, and converts it to an inexact value at the
+     * internal precision if its numerator or denominator is too large.
+     */
+    private static Apfloat bounded(Aprational value) {
+        long limit = exactDigits();
+        if (value.numerator().size() <= limit && value.denominator().size()
+                <= limit)
+            return reduce(value);
+        return value.precision(Precision.get().internal());
+    }
+
+
+    /**
+     * Get the largest number of digits of the numerator or denominator of an
+     * exact result.
+     *
+     * @return The number of digits.
+     */
+    static long exactDigits() {
+        return Math.max(MIN_EXACT_DIGITS, 2 * Precision.get().internal());
+    }
+
+
+    /**
+     * Get the number of decimal digits of an integer, as a fraction, so that
+     * the number of digits of its powers can be estimated.
+     */
+    private static double digits(Apint value) {
+
+        // Large integers have too many digits for the fraction to matter.
+        if (value.size() > LONG_DIGITS)
+            return value.size();
+        return Math.log10(Math.abs(value.doubleValue()));
+    }
+
+
+    /**
+     * Reduces an exact value to an integer if its denominator is one.
+     */
+    private static Aprational reduce(Aprational value) {
+        if (value instanceof Apint || !value.denominator().equals(Apint.ONE))
+            return value;
+        return value.numerator();
+    }
+}
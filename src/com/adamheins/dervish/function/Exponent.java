@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 import org.apfloat.ApfloatMath;
 
@@ -25,16 +23,10 @@ public class Exponent extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        Function first = getFirstChild().evaluate(varMap);
-        Function second = getSecondChild().evaluate(varMap);
+    Function combine(Function first, Function second) {
 
         if (first instanceof Number && second instanceof Number) {
-            Apfloat firstValue = (Apfloat)first.getValue();
-            Apfloat secondValue = (Apfloat)second.getValue();
-            Apfloat result = ApfloatMath.pow(firstValue, secondValue);
-            return new Number(precisionRound(result));
+            return Number.pow((Number)first, (Number)second);
         }
 
         if (second.equals(Number.ZERO)) {
@@ -51,21 +43,66 @@ public class Exponent extends Function {
         me.setFirstChild(first);
         me.setSecondChild(second);
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Exponent();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber first = context.dualOf(getFirstChild());
+        DualNumber second = context.dualOf(getSecondChild());
+
+        Apfloat value = precisionRound(ApfloatMath.pow(finite(first.value),
+                second.value));
+
+        // Same formula as derivative. Terms with a zero factor are
+        // skipped, since the logarithm of the base may not be defined.
+        Apfloat derivative = Apfloat.ZERO;
+        if (second.derivative.signum() != 0)
+            derivative = derivative.add(value.multiply(second.derivative)
+                    .multiply(ApfloatMath.log(finite(first.value))));
+        if (first.derivative.signum() != 0)
+            derivative = derivative.add(ApfloatMath.pow(finite(first.value),
+                    second.value.subtract(Apfloat.ONE)).multiply(second.value)
+                    .multiply(first.derivative));
+
+        return new DualNumber(value, precisionRound(derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).pow(context.boundOf(
+                getSecondChild()));
+    }
+
+
+    @Override
+    Function differentiand() {
+
+        // The derivative is built from the evaluated base and exponent.
+        Function differentiand = new Exponent();
+        differentiand.first = getFirstChild().evaluate();
+        differentiand.second = getSecondChild().evaluate();
+        return differentiand;
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDer,
+            Function secondDer) {
 
         // Formula for d/dx(f(x)^g(x)):
         // f(x)^g(x)*d/dx(g(x))*ln(f(x))+f(x)^(g(x)-1)*g(x)*d/dx(f(x))
 
-        Function first = getFirstChild().evaluate();
-        Function second = getSecondChild().evaluate();
-
-        Function firstDer = first.differentiateInternal(var);
-        Function secondDer = second.differentiateInternal(var);
+        Function first = getFirstChild();
+        Function second = getSecondChild();
 
         Function exp1 = new Exponent();
         exp1.setFirstChild(first);
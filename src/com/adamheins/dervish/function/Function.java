@@ -8,9 +8,12 @@
 package com.adamheins.dervish.function;
 
 import java.math.RoundingMode;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,16 +27,6 @@ import org.apfloat.ApfloatMath;
  */
 public abstract class Function {
 
-    // Precision of the results of operations that generate less precise results
-    // than the operands. One example is division, which can take
-    // infinite-precision integers and produce finite-precision fractional
-    // numbers. This is the precision that values retain internally.
-    protected static final int INTERNAL_PRECISION = 21;
-
-    // Outward-facing precision. This is the lowest possible precision to
-    // which the external user may be exposed.
-    protected static final int EXTERNAL_PRECISION = 20;
-
     // The rounding mode for numbers that need rounding.
     protected static final RoundingMode ROUNDING_MODE = RoundingMode.HALF_UP;
 
@@ -50,6 +43,30 @@ public abstract class Function {
     protected Function first;
     protected Function second;
 
+    // True if this is the canonical instance of the Function held by the
+    // intern table. Canonical Functions are shared, so they must never be
+    // modified.
+    boolean interned;
+
+    // Structural hash of the Function, which is cached once it is interned.
+    int hash;
+
+    // Number of nodes in the subtree, which is cached once it is interned.
+    private int size;
+
+    // Variables in the subtree, as indices in the VariableTable, which are
+    // computed when it is interned.
+    BitSet freeVariables;
+
+    // True if this canonical Function was returned by evaluate, in which case
+    // evaluating it again without substituting any of its variables would
+    // return it unchanged.
+    boolean evaluated;
+
+    // The value of this canonical Function if it has no variables, once it
+    // has been evaluated.
+    private volatile Folding folding;
+
 
     /**
      * Constructor.
@@ -68,6 +85,7 @@ public abstract class Function {
 
         first = null;
         second = null;
+        interned = false;
     }
 
 
@@ -77,12 +95,141 @@ public abstract class Function {
      * variables are present or all variables have a number substituted, it will
      * be reduced to a number.
      *
+     * Operators are evaluated with an explicit stack rather than recursively,
+     * so that trees of any depth can be evaluated. Each operator is combined
+     * from its evaluated children, while leaves and let expressions evaluate
+     * themselves. Subtrees that have already been evaluated and contain none
+     * of the substituted variables are returned as they are, and canonical
+     * subtrees without variables are only folded once for each precision.
+     *
      * @param varMap A map of variable names and the Functions that should be
      *         substituted into them.
      *
      * @return The evaluated Function.
      */
-    public abstract Function evaluate(Map<String, Function> varMap);
+    public Function evaluate(Map<String, Function> varMap) {
+        return evaluateIn(new EvaluationContext(varMap));
+    }
+
+
+    /**
+     * Evaluates the function, with the Functions to substitute for variables
+     * given by slot rather than by name, so that no names are looked up.
+     *
+     * @param bindings The Functions that should be substituted into the
+     *        variables, each at the slot of its variable in the table.
+     *        Variables whose slots are past the end of the array or hold
+     *        null are not substituted.
+     * @param symbols The table that gives the slots of the variables.
+     *
+     * @return The evaluated Function.
+     *
+     * @throws IndexOutOfBoundsException If a Function is given for a slot
+     *         that no variable in the table has.
+     */
+    public Function evaluate(Function[] bindings, SymbolTable symbols) {
+        return evaluateIn(new EvaluationContext(bindings, symbols));
+    }
+
+
+    /**
+     * Evaluates the function as part of an evaluation, in which the Function
+     * substituted for each variable is only evaluated once.
+     *
+     * @param context The evaluation.
+     *
+     * @return The evaluated Function.
+     */
+    Function evaluateIn(EvaluationContext context) {
+
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Deque<Boolean> expandedStack = new ArrayDeque<Boolean>();
+        Deque<Function> valueStack = new ArrayDeque<Function>();
+
+        Precision precision = Precision.get();
+
+        funcStack.push(this);
+        expandedStack.push(false);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.pop();
+            boolean expanded = expandedStack.pop();
+
+            if (!expanded && current.evaluated
+                    && !context.substitutes(current.freeVariables)) {
+                valueStack.push(current);
+                continue;
+            }
+
+            if (!expanded && current.folding != null
+                    && current.folding.precision.equals(precision)) {
+                valueStack.push(current.folding.value);
+                continue;
+            }
+
+            if (current.isLeaf() || current instanceof Let) {
+                valueStack.push(current.fold(precision, current.substitute(
+                        context)));
+                continue;
+            }
+
+            // Visit the children first, and then this node again once their
+            // values are on the value stack.
+            if (!expanded) {
+                funcStack.push(current);
+                expandedStack.push(true);
+                if (current.second != null) {
+                    funcStack.push(current.second);
+                    expandedStack.push(false);
+                }
+                funcStack.push(current.first);
+                expandedStack.push(false);
+                continue;
+            }
+
+            Function second = current.second == null ? null
+                    : valueStack.pop();
+            Function first = valueStack.pop();
+            valueStack.push(current.fold(precision, current.combine(first,
+                    second)));
+        }
+
+        return valueStack.pop();
+    }
+
+
+    /**
+     * Evaluates a leaf or let expression as part of an evaluation.
+     *
+     * @param context The evaluation.
+     *
+     * @return The evaluated Function.
+     */
+    Function substitute(EvaluationContext context) {
+        return evaluate(context.varMap());
+    }
+
+
+    /**
+     * Records the value to which this Function was evaluated. The value is
+     * marked as evaluated, and if this Function is canonical and has no
+     * variables, the value is kept for later evaluations at the same
+     * precision. Canonical Functions are never modified, so the value cannot
+     * go out of date.
+     *
+     * @param precision The precision at which this Function was evaluated.
+     * @param value The value of this Function.
+     *
+     * @return The value.
+     */
+    private Function fold(Precision precision, Function value) {
+        if (!value.interned)
+            return value;
+        value.evaluated = true;
+        if (interned && freeVariables.isEmpty())
+            folding = new Folding(precision, value);
+        return value;
+    }
 
 
     /**
@@ -91,19 +238,246 @@ public abstract class Function {
      * @return The evaluated Function.
      */
     public Function evaluate() {
-        return evaluate(null);
+        return evaluate((Map<String, Function>)null);
     }
 
 
+    /**
+     * Evaluates the function with the given precision, rather than that of the
+     * current thread.
+     *
+     * @param varMap A map of variable names and the Functions that should be
+     *         substituted into them.
+     * @param precision The precision with which to evaluate.
+     *
+     * @return The evaluated Function.
+     */
+    public Function evaluate(Map<String, Function> varMap,
+            Precision precision) {
+        Precision previous = Precision.get();
+        Precision.set(precision);
+        try {
+            return evaluate(varMap);
+        } finally {
+            Precision.set(previous);
+        }
+    }
+
+
+    /**
+     * Evaluates the function in parallel, using the common fork-join pool.
+     * Large independent subtrees are evaluated concurrently. The result is
+     * the same as that of {@link #evaluate(Map)}.
+     *
+     * @param varMap A map of variable names and the Functions that should be
+     *         substituted into them.
+     *
+     * @return The evaluated Function.
+     */
+    public Function evaluateParallel(Map<String, Function> varMap) {
+        return new ParallelEvaluator().evaluate(this, varMap);
+    }
+
+
+    /**
+     * Rewrites the Function into a canonical form, in which like terms of
+     * sums and repeated factors of products are collected. Functions that are
+     * equal up to the order and grouping of their sums and products have the
+     * same canonical form.
+     *
+     * @return The canonical form of the Function.
+     */
+    public Function canonicalize() {
+        return Canonicalizer.canonicalize(this);
+    }
+
+
+    /**
+     * Replaces the polynomial subtrees of the Function with Polynomials, which
+     * are evaluated and differentiated more cheaply than the equivalent trees
+     * of ordinary operators.
+     *
+     * @return The Function with its polynomial subtrees collected.
+     */
+    public Function collectPolynomials() {
+        return Polynomial.collect(this);
+    }
+
+
+    /**
+     * Bounds the value of this Function using double interval arithmetic.
+     *
+     * @param context The state of the evaluation.
+     *
+     * @return An interval containing the value.
+     */
+    abstract Interval bound(IntervalContext context);
+
+
+    /**
+     * Reduces this Function given the evaluated values of its children. This
+     * is the part of evaluate that remains once the children have been
+     * evaluated, which lets them be evaluated elsewhere. No variables are
+     * substituted, so leaves are their own values.
+     *
+     * @param first The evaluated first child, or null if there is none.
+     * @param second The evaluated second child, or null if there is none.
+     *
+     * @return The evaluated Function.
+     */
+    abstract Function combine(Function first, Function second);
+
+
     /**
      * Calculates the derivative of the subtree that has this Node at its root.
      * Used internally within the class.
      *
+     * Like evaluate, operators are differentiated with an explicit stack, so
+     * trees of any depth can be differentiated. The derivative of each
+     * operator is built from those of its children, while leaves and let
+     * expressions differentiate themselves. Canonical subtrees that do not
+     * contain the variable have a derivative of zero, and are not visited.
+     *
      * @param var - The variable to take the derivative with respect to.
      *
      * @return The derivative function.
      */
-    protected abstract Function differentiateInternal(String var);
+    protected Function differentiateInternal(String var) {
+
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Deque<Boolean> expandedStack = new ArrayDeque<Boolean>();
+        Deque<Function> derivativeStack = new ArrayDeque<Function>();
+
+        int index = VariableTable.INSTANCE.find(var);
+
+        funcStack.push(this);
+        expandedStack.push(false);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.pop();
+            boolean expanded = expandedStack.pop();
+
+            if (!expanded && current.interned && (index < 0
+                    || !current.freeVariables.get(index))) {
+                derivativeStack.push(Number.ZERO);
+                continue;
+            }
+
+            // Leaves and let expressions have no children to differentiate
+            // first.
+            if (current.isLeaf() || current instanceof Let) {
+                derivativeStack.push(current.derivative(index, null, null));
+                continue;
+            }
+
+            // Visit the children of the node to be differentiated first, and
+            // then the node again once their derivatives are on the stack.
+            if (!expanded) {
+                Function differentiand = current.differentiand();
+                funcStack.push(differentiand);
+                expandedStack.push(true);
+                if (differentiand.second != null) {
+                    funcStack.push(differentiand.second);
+                    expandedStack.push(false);
+                }
+                funcStack.push(differentiand.first);
+                expandedStack.push(false);
+                continue;
+            }
+
+            Function secondDerivative = current.second == null ? null
+                    : derivativeStack.pop();
+            Function firstDerivative = derivativeStack.pop();
+            derivativeStack.push(current.derivative(index, firstDerivative,
+                    secondDerivative));
+        }
+
+        return derivativeStack.pop();
+    }
+
+
+    /**
+     * Get the Function whose derivative is built in place of this one's.
+     * Normally this is the Function itself, but operators whose derivatives
+     * are built from simplified children may substitute a copy with those
+     * children.
+     *
+     * @return The Function to differentiate.
+     */
+    Function differentiand() {
+        return this;
+    }
+
+
+    /**
+     * Builds the derivative of this Function from the derivatives of its
+     * children. This is the part of differentiateInternal that remains once
+     * the children have been differentiated. Leaves and let expressions have
+     * no children that are differentiated, and build their derivatives from
+     * the variable alone.
+     *
+     * @param index The index in the VariableTable of the variable to take
+     *        the derivative with respect to, or -1 if it has none.
+     * @param firstDerivative The derivative of the first child, or null if
+     *         there is none.
+     * @param secondDerivative The derivative of the second child, or null if
+     *         there is none.
+     *
+     * @return The derivative function.
+     */
+    abstract Function derivative(int index, Function firstDerivative,
+            Function secondDerivative);
+
+
+    /**
+     * Evaluates the function and its directional derivative at a point in a
+     * single pass, without building the derivative as a Function. The rules
+     * used are the same as those of differentiate.
+     *
+     * @param varMap A map of variable names to their values. Every variable
+     *         of the function must have a value that evaluates to a number.
+     * @param direction A map of variable names to the component of the
+     *         direction along each. Variables that are not in the map have a
+     *         component of zero.
+     *
+     * @return The value and directional derivative.
+     *
+     * @throws EvaluationException If a variable has no numeric value.
+     */
+    public DualNumber evaluateDual(Map<String, Function> varMap,
+            Map<String, Function> direction) {
+        return new DualContext(varMap, direction).dualOf(this);
+    }
+
+
+    /**
+     * Evaluates the function and its derivative with respect to a single
+     * variable at a point.
+     *
+     * @param varMap A map of variable names to their values.
+     * @param var The variable to take the derivative with respect to.
+     *
+     * @return The value and derivative.
+     *
+     * @throws EvaluationException If a variable has no numeric value.
+     */
+    public DualNumber evaluateDual(Map<String, Function> varMap, String var) {
+        Map<String, Function> direction = new HashMap<String, Function>();
+        direction.put(var, Number.ONE);
+        return evaluateDual(varMap, direction);
+    }
+
+
+    /**
+     * Evaluates this node and its directional derivative, given those of its
+     * children. Used internally within the class.
+     *
+     * @param context The state of the evaluation, through which the values
+     *         of children are found.
+     *
+     * @return The value and directional derivative.
+     */
+    abstract DualNumber dual(DualContext context);
 
 
     /**
@@ -127,7 +501,7 @@ public abstract class Function {
     public List<String> getVariables() {
 
         List<String> varList = new ArrayList<String>();
-        Deque<Function> funcStack = new LinkedList<Function>();
+        Deque<Function> funcStack = new ArrayDeque<Function>();
 
         funcStack.push(this);
 
@@ -139,10 +513,13 @@ public abstract class Function {
                 continue;
             } else if (current instanceof Number) {
                 continue;
+            } else if (current instanceof Polynomial) {
+                varList.addAll(current.getVariables());
+                continue;
             }
 
             funcStack.push(current.getFirstChild());
-            if (getSecondChild() != null)
+            if (current.getSecondChild() != null)
                 funcStack.push(current.getSecondChild());
         }
 
@@ -196,6 +573,7 @@ public abstract class Function {
      * @param child The Function to add as the first child of this Function.
      */
     public void setFirstChild(Function child) {
+        checkMutable();
         first = child;
     }
 
@@ -206,110 +584,278 @@ public abstract class Function {
      * @param child The Function to add as the second child of this Function.
      */
     public void setSecondChild(Function child) {
+        checkMutable();
         second = child;
     }
 
 
     /**
-     * Get the value of the Function.
+     * Get the canonical instance of this Function. Identical Functions share
+     * the same canonical instance, which allows large trees with repeated
+     * subtrees to be stored compactly and compared quickly. All Functions
+     * returned by evaluate are canonical.
      *
-     * @return The value of the Function.
+     * This Function and its descendants are not changed, and may still be
+     * modified afterwards. Operators that are not already canonical are
+     * copied into the table, while leaves, which can always be modified,
+     * may become canonical themselves.
+     *
+     * @return The canonical instance of this Function.
      */
-    Object getValue() {
-        return value;
+    public Function intern() {
+
+        if (interned)
+            return this;
+
+        // Leaves have no children to visit, and are the most common
+        // Functions to intern, since every result of arithmetic is one.
+        if (isLeaf())
+            return InternTable.INSTANCE.intern(this);
+
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Deque<Boolean> expandedStack = new ArrayDeque<Boolean>();
+        Deque<Function> canonicalStack = new ArrayDeque<Function>();
+
+        funcStack.push(this);
+        expandedStack.push(false);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.pop();
+            boolean expanded = expandedStack.pop();
+
+            // Let expressions also intern their bindings.
+            if (current.interned || current instanceof Let) {
+                canonicalStack.push(current.intern());
+                continue;
+            }
+            if (current.isLeaf()) {
+                canonicalStack.push(InternTable.INSTANCE.intern(current));
+                continue;
+            }
+
+            if (!expanded) {
+                funcStack.push(current);
+                expandedStack.push(true);
+                if (current.second != null) {
+                    funcStack.push(current.second);
+                    expandedStack.push(false);
+                }
+                if (current.first != null) {
+                    funcStack.push(current.first);
+                    expandedStack.push(false);
+                }
+                continue;
+            }
+
+            Function second = current.second == null ? null
+                    : canonicalStack.pop();
+            Function first = current.first == null ? null
+                    : canonicalStack.pop();
+            canonicalStack.push(InternTable.INSTANCE.intern(current, first,
+                    second));
+        }
+
+        return canonicalStack.pop();
     }
 
 
-    @Override
-    public String toString() {
+    /**
+     * Creates a new Function of the same type and value as this one, but with
+     * no children.
+     *
+     * @return The new Function.
+     */
+    abstract Function emptyCopy();
 
-        String str = getFirstChild().toString();
 
-        if (first.precedence.compareTo(precedence) <= 0)
-            str = "(" + str + ")";
+    /**
+     * Get the number of nodes in the tree that has this Function at its root.
+     * Shared subtrees are counted once for each time they appear. The count is
+     * cached for canonical Functions, which cannot change.
+     *
+     * @return The number of nodes, or Integer.MAX_VALUE if there are more.
+     */
+    int size() {
 
-        // Check if this is a unary operator, which only has its first child
-        // populated.
-        if (second == null)
-            return value + "(" + str + ")";
+        if (size != 0)
+            return size;
 
-        // Add the operator.
-        str += value;
+        Map<Function, Integer> sizes = new IdentityHashMap<Function, Integer>();
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        funcStack.push(this);
 
-        // Add the string representing the second child.
-        if (second.precedence.compareTo(precedence) <= 0)
-            str += "(" + getSecondChild().toString() + ")";
-        else
-            str += getSecondChild().toString();
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.peek();
+            if (sizeOf(current, sizes) != 0) {
+                funcStack.pop();
+                continue;
+            }
+
+            long total = 1;
+            if (!current.isLeaf() && current.first != null) {
+
+                // Count the children first.
+                int firstSize = sizeOf(current.first, sizes);
+                int secondSize = current.second == null ? 1
+                        : sizeOf(current.second, sizes);
+                if (secondSize == 0)
+                    funcStack.push(current.second);
+                if (firstSize == 0)
+                    funcStack.push(current.first);
+                if (firstSize == 0 || secondSize == 0)
+                    continue;
+
+                total += firstSize;
+                if (current.second != null)
+                    total += secondSize;
+            }
 
-        return str;
+            funcStack.pop();
+            int count = (int)Math.min(total, Integer.MAX_VALUE);
+            if (current.interned)
+                current.size = count;
+            else
+                sizes.put(current, count);
+        }
+
+        return sizeOf(this, sizes);
     }
 
 
-    @Override
-    public boolean equals(Object other) {
+    private static int sizeOf(Function function, Map<Function, Integer> sizes) {
+        if (function.size != 0)
+            return function.size;
+        Integer size = sizes.get(function);
+        return size == null ? 0 : size;
+    }
 
-        if (other instanceof Function)
-            return equalsFunction((Function)other);
+
+    /**
+     * Computes the set of variables in this Function once it is canonical,
+     * from those of its children, which are canonical as well.
+     *
+     * @return The set of variables, as indices in the VariableTable.
+     */
+    BitSet computeFreeVariables() {
+        if (isLeaf() || first == null)
+            return VariableTable.NONE;
+        return VariableTable.union(first.freeVariables, second == null
+                ? null : second.freeVariables);
+    }
+
+
+    /**
+     * Check if this Function is a leaf of the tree, such as a number or a
+     * variable. The children of leaves are ignored.
+     *
+     * @return True if this Function is a leaf, false otherwise.
+     */
+    boolean isLeaf() {
         return false;
     }
 
 
     /**
-     * Check if these two children are equal, with each having the possibility
-     * to be null.
+     * Check if this Function and another are identical, which is stricter
+     * than equality. Identical Functions are of the same class and have the
+     * same value and the very same children.
      *
-     * @param thisChild One of the children to compare.
-     * @param otherChild The other child to compare.
+     * @param other The other Function.
      *
-     * @return True if the children are equal, false otherwise.
+     * @return True if the Functions are identical, false otherwise.
      */
-    private boolean childEqual(Function thisChild, Function otherChild) {
-        boolean notNullEqual = thisChild != null && otherChild != null
-                && thisChild.equals(otherChild);
-        boolean bothNull = thisChild == null && otherChild == null;
-        return notNullEqual || bothNull;
+    boolean identical(Function other) {
+        if (getClass() != other.getClass() || !value.equals(other.value))
+            return false;
+        return isLeaf() || (first == other.first && second == other.second);
     }
 
 
     /**
-     * Check if this function and the other function have equal children
-     * in the same order.
+     * Computes the structural hash of this Function. Functions that are equal
+     * have the same hash, so the hash of a commutative Function does not
+     * depend on the order of its children.
      *
-     * @param other The other function.
-     *
-     * @return True if the children have equal values in the same order, false
-     *         otherwise.
+     * @return The structural hash.
      */
-    private boolean childrenExactlyEqual(Function other) {
-        boolean firstChildrenEqual = childEqual(getFirstChild(),
-                other.getFirstChild());
-        boolean secondChildrenEqual = childEqual(getSecondChild(),
-                other.getSecondChild());
-        return firstChildrenEqual && secondChildrenEqual;
+    int computeHash() {
+        if (isLeaf())
+            return value.hashCode();
+        return computeHash(first, second);
     }
 
 
     /**
-     * Check if this function and the other function have equal children
-     * in the opposite order.
+     * Computes the structural hash that this Function would have with the
+     * given children.
      *
-     * @param other The other function.
+     * @param first The first child, or null if there is none.
+     * @param second The second child, or null if there is none.
      *
-     * @return True if the children have equal values in the opposite order,
-     *         false otherwise.
+     * @return The structural hash.
      */
-    private boolean childrenCommutativelyEqual(Function other) {
-        boolean firstChildrenEqual = childEqual(getFirstChild(),
-                other.getSecondChild());
-        boolean secondChildrenEqual = childEqual(getSecondChild(),
-                other.getFirstChild());
-        return firstChildrenEqual && secondChildrenEqual;
+    int computeHash(Function first, Function second) {
+        int valueHash = value.hashCode();
+        int firstHash = first == null ? 0 : first.hashCode();
+        int secondHash = second == null ? 0 : second.hashCode();
+        int childHash = commutative ? firstHash + secondHash
+                : 31 * firstHash + secondHash;
+        return 31 * valueHash + childHash;
+    }
+
+
+    /**
+     * Throws an exception if this Function is canonical, and therefore must
+     * not be modified. The children of leaves are ignored, so leaves may
+     * always be modified.
+     */
+    private void checkMutable() {
+        if (interned && !isLeaf())
+            throw new IllegalStateException("Cannot modify a canonical"
+                    + " Function.");
+    }
+
+
+    /**
+     * Get the value of the Function.
+     *
+     * @return The value of the Function.
+     */
+    Object getValue() {
+        return value;
+    }
+
+
+    @Override
+    public String toString() {
+        return FunctionPrinter.toString(this);
+    }
+
+
+    @Override
+    public boolean equals(Object other) {
+
+        if (other instanceof Function)
+            return equalsFunction((Function)other);
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        if (interned)
+            return hash;
+        return computeHash();
     }
 
 
     /**
-     * Tests for equality between this and another Function.
+     * Tests for equality between this and another Function. Functions are
+     * equal if they have equal values and equal children, which for
+     * commutative Functions may be in either order.
+     *
+     * The children are compared with an explicit stack of comparisons rather
+     * than recursively, so that trees of any depth can be compared.
      *
      * @param other The other Function with which to determine equality.
      *
@@ -317,36 +863,139 @@ public abstract class Function {
      */
     private boolean equalsFunction(Function other) {
 
-        // Values are not equal, functions are not equal.
-        if (!getValue().equals(other.getValue()))
-            return false;
+        Deque<Comparison> comparisons = new ArrayDeque<Comparison>();
+        comparisons.push(new Comparison(this, other));
+
+        // Result of the most recently completed comparison.
+        boolean result = false;
+
+        while (!comparisons.isEmpty()) {
+            Comparison current = comparisons.peek();
+            Function a = current.a;
+            Function b = current.b;
+
+            if (current.stage == Comparison.VALUES) {
+                if (a == b || a == null || b == null) {
+                    result = a == b;
+                    comparisons.pop();
+                    continue;
+                }
+
+                // Functions with their own equality are compared by it.
+                if (a instanceof Number || a instanceof Let) {
+                    result = a.equals(b);
+                    comparisons.pop();
+                    continue;
+                }
+
+                // Canonical Functions have cached hashes, which differ for
+                // most Functions that are not equal. Functions with unequal
+                // values are not equal.
+                if ((a.interned && b.interned && a.hash != b.hash)
+                        || !a.getValue().equals(b.getValue())) {
+                    result = false;
+                    comparisons.pop();
+                    continue;
+                }
+
+                current.stage = Comparison.FIRST;
+                comparisons.push(new Comparison(a.first, b.first));
+            } else if (current.stage == Comparison.FIRST && result) {
+                current.stage = Comparison.SECOND;
+                comparisons.push(new Comparison(a.second, b.second));
+            } else if (current.stage <= Comparison.SECOND && !result
+                    && a.commutative) {
+
+                // The children may be equal in the opposite order.
+                current.stage = Comparison.SWAPPED_FIRST;
+                comparisons.push(new Comparison(a.first, b.second));
+            } else if (current.stage == Comparison.SWAPPED_FIRST && result) {
+                current.stage = Comparison.SWAPPED_SECOND;
+                comparisons.push(new Comparison(a.second, b.first));
+            } else {
+
+                // The last comparison of children decides this one.
+                comparisons.pop();
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * A pending comparison of two Functions, either of which may be null,
+     * and the stage it has reached.
+     */
+    private static class Comparison {
 
-        // The two functions are exactly equal.
-        boolean childrenExactlyEqual = childrenExactlyEqual(other);
+        // Stages of a comparison. The values are compared first, then the
+        // children in the same order, and then in the opposite order.
+        static final int VALUES = 0;
+        static final int FIRST = 1;
+        static final int SECOND = 2;
+        static final int SWAPPED_FIRST = 3;
+        static final int SWAPPED_SECOND = 4;
 
-        // The two functions may not be in the exact same form, but could still
-        // be mathematically equal.
-        if (commutative && !childrenExactlyEqual) {
-            boolean childrenCommutativelyEqual
-                    = childrenCommutativelyEqual(other);
-            return childrenExactlyEqual || childrenCommutativelyEqual;
+        final Function a;
+        final Function b;
+        int stage;
+
+
+        Comparison(Function a, Function b) {
+            this.a = a;
+            this.b = b;
+            this.stage = VALUES;
         }
+    }
 
-        return childrenExactlyEqual;
+
+    /**
+     * The value of a Function without variables at a given precision.
+     */
+    private static final class Folding {
+
+        final Precision precision;
+        final Function value;
+
+        Folding(Precision precision, Function value) {
+            this.precision = precision;
+            this.value = value;
+        }
     }
 
 
     /**
      * Rounds the value to eliminate floating point imprecisions. Then set the
-     * precision back to the original.
+     * precision back to the original. If rounding is deferred, the value is
+     * only limited to the internal precision.
      *
      * @param result The value to round.
      *
      * @return The rounded value.
      */
-    protected Apfloat precisionRound(Apfloat result) {
-        return ApfloatMath.round(result, EXTERNAL_PRECISION, ROUNDING_MODE)
-                .precision(INTERNAL_PRECISION);
+    protected static Apfloat precisionRound(Apfloat result) {
+        Precision precision = Precision.get();
+        if (precision.isDeferred())
+            return result.precision(Math.min(result.precision(),
+                    precision.internal()));
+        return ApfloatMath.round(result, precision.getDigits(), ROUNDING_MODE)
+                .precision(precision.internal());
+    }
+
+
+    /**
+     * Gives an exact value a finite precision, so that it can be used in
+     * inexact operations.
+     *
+     * @param value The value.
+     *
+     * @return The value with a finite precision.
+     */
+    protected static Apfloat finite(Apfloat value) {
+        if (value.precision() == Apfloat.INFINITE)
+            return value.precision(Precision.get().internal());
+        return value;
     }
 
 
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A file of serialized Functions, which is memory-mapped when it is opened.
+ * Only the header of the file is read when it is opened; each Function is
+ * read the first time it is requested, so large libraries can be opened
+ * quickly and only the Functions that are used are ever loaded.
+ *
+ * The file starts with a magic number, the format version of the records and
+ * the number of Functions, followed by the offset of each Function's record
+ * from the start of the file, and then the records themselves, which are in
+ * the format of FunctionSerializer.
+ *
+ * @author Adam
+ */
+public class FunctionLibrary {
+
+    // The magic number that starts a library: "DRVL".
+    static final int MAGIC = 0x4452564C;
+
+    // The mapped file.
+    private final ByteBuffer buffer;
+
+    // The offset of the record of each Function.
+    private final int[] offsets;
+
+    // The Functions that have been read so far.
+    private final Function[] functions;
+
+
+    private FunctionLibrary(ByteBuffer buffer, int[] offsets) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.functions = new Function[offsets.length];
+    }
+
+
+    /**
+     * Writes a library of Functions to a file, replacing the file if it
+     * already exists.
+     *
+     * @param path The path of the file.
+     * @param functions The Functions, in the order of their indices in the
+     *        library.
+     *
+     * @throws IOException If the file cannot be written, or the library
+     *         would be larger than 2 GB.
+     */
+    public static void write(Path path, List<Function> functions)
+            throws IOException {
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+
+        // The records start after the header and the table of offsets.
+        long headerSize = 12 + 4L * functions.size();
+        int[] offsets = new int[functions.size()];
+        for (int i = 0; i < offsets.length; ++i) {
+            long offset = headerSize + records.size();
+            if (offset > Integer.MAX_VALUE)
+                throw new IOException("Library is too large.");
+            offsets[i] = (int)offset;
+            FunctionSerializer.writeRecord(records, functions.get(i));
+        }
+        if (headerSize + records.size() > Integer.MAX_VALUE)
+            throw new IOException("Library is too large.");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FunctionSerializer.VERSION);
+            out.writeInt(offsets.length);
+            for (int offset : offsets)
+                out.writeInt(offset);
+            recordBytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Opens a library by mapping its file into memory.
+     *
+     * @param path The path of the file.
+     *
+     * @return The library.
+     *
+     * @throws IOException If the file cannot be read, or is not a library of
+     *         a supported version.
+     */
+    public static FunctionLibrary open(Path path) throws IOException {
+
+        ByteBuffer buffer;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            // The mapping remains valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } finally {
+            channel.close();
+        }
+
+        FunctionSerializer.checkHeader(buffer, MAGIC);
+        int count = buffer.remaining() < 4 ? -1 : buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4)
+            throw new IOException("Malformed library.");
+
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; ++i) {
+            offsets[i] = buffer.getInt();
+            if (offsets[i] < 0 || offsets[i] > buffer.limit())
+                throw new IOException("Malformed library.");
+        }
+
+        return new FunctionLibrary(buffer, offsets);
+    }
+
+
+    /**
+     * Get the number of Functions in the library.
+     *
+     * @return The number of Functions.
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+
+    /**
+     * Get a Function from the library, reading it if it has not been read
+     * already.
+     *
+     * @param index The index of the Function.
+     *
+     * @return The Function.
+     *
+     * @throws IOException If the record of the Function is malformed.
+     * @throws IndexOutOfBoundsException If there is no Function at the index.
+     */
+    public synchronized Function get(int index) throws IOException {
+        if (functions[index] == null) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(offsets[index]);
+            functions[index] = FunctionSerializer.readRecord(record);
+        }
+        return functions[index];
+    }
+}
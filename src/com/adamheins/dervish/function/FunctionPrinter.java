@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import org.apfloat.Apfloat;
+
+import com.adamheins.dervish.function.Function.Associativity;
+import com.adamheins.dervish.function.Function.Precedence;
+
+/**
+ * Writes Functions as strings to an Appendable, such as a StringBuilder or a
+ * Writer. The string is written piece by piece as the tree is walked, so the
+ * time taken is linear in the length of the string, and large Functions can
+ * be written to a stream without ever holding the whole string in memory.
+ *
+ * Children are only bracketed where the string would otherwise be read
+ * differently: where the child has lower precedence than its parent, or the
+ * same precedence but is on the side of the parent against which it
+ * associates.
+ *
+ * @author Adam
+ */
+public class FunctionPrinter {
+
+    // The destination of the strings.
+    private final Appendable out;
+
+
+    /**
+     * Constructor.
+     *
+     * @param out The Appendable to which Functions are written.
+     */
+    public FunctionPrinter(Appendable out) {
+        this.out = out;
+    }
+
+
+    /**
+     * Writes a Function.
+     *
+     * @param function The Function to write.
+     *
+     * @throws IOException If the Function cannot be written.
+     */
+    public void print(Function function) throws IOException {
+
+        // Pieces of the string that are still to be written, in order. Each
+        // is either a string, or a Function whose string is written in its
+        // place.
+        Deque<Object> pieces = new ArrayDeque<Object>();
+        pieces.push(function);
+
+        while (!pieces.isEmpty()) {
+            Object piece = pieces.pop();
+            if (!(piece instanceof Function)) {
+                out.append((String)piece);
+                continue;
+            }
+
+            Function current = (Function)piece;
+            if (current instanceof Polynomial) {
+                pieces.push(((Polynomial)current).toFunction());
+            } else if (current instanceof Let) {
+                pushLet(pieces, (Let)current);
+            } else if (current.isLeaf()) {
+                out.append(current.toString());
+            } else if (current instanceof Negative) {
+
+                // Negations are always written with their child bracketed.
+                pieces.push(")");
+                pieces.push(current.first);
+                pieces.push("-(");
+            } else if (current.second == null) {
+
+                // Other unary operators are written as functions, whose
+                // brackets already delimit their child.
+                pieces.push(")");
+                pieces.push(current.first);
+                pieces.push(current.value + "(");
+            } else {
+                pushChild(pieces, current, current.second, true);
+                pieces.push(current.value.toString());
+                pushChild(pieces, current, current.first, false);
+            }
+        }
+    }
+
+
+    /**
+     * Get the string of a Function.
+     *
+     * @param function The Function.
+     *
+     * @return The string representing the Function.
+     */
+    public static String toString(Function function) {
+        StringBuilder str = new StringBuilder();
+        try {
+            new FunctionPrinter(str).print(function);
+        } catch (IOException e) {
+
+            // Appending to a StringBuilder never fails.
+            throw new IllegalStateException(e);
+        }
+        return str.toString();
+    }
+
+
+    /**
+     * Pushes the pieces of a child of a binary operator, bracketed if
+     * necessary.
+     *
+     * @param pieces The pieces still to be written.
+     * @param parent The operator.
+     * @param child The child.
+     * @param right True if the child is the second operand, false otherwise.
+     */
+    private static void pushChild(Deque<Object> pieces, Function parent,
+            Function child, boolean right) {
+
+        int difference = precedenceOf(child).compareTo(parent.precedence);
+
+        // Children of the same precedence as their parent are grouped by its
+        // associativity, so only those on the other side need brackets.
+        boolean bracketed = difference < 0 || (difference == 0
+                && right == (parent.associativity == Associativity.LEFT));
+
+        if (bracketed)
+            pieces.push(")");
+        pieces.push(child);
+        if (bracketed)
+            pieces.push("(");
+    }
+
+
+    /**
+     * Pushes the pieces of a let expression, which are its bindings and then
+     * its body.
+     *
+     * @param pieces The pieces still to be written.
+     * @param let The let expression.
+     */
+    private static void pushLet(Deque<Object> pieces, Let let) {
+        List<Function> bindings = let.getBindings();
+        pieces.push(let.getFirstChild());
+        pieces.push(" in ");
+        for (int i = bindings.size() - 1; i >= 0; --i) {
+            pieces.push(bindings.get(i));
+            pieces.push(Let.temporaryName(i) + "=");
+            if (i > 0)
+                pieces.push(", ");
+        }
+        pieces.push("let ");
+    }
+
+
+    /**
+     * Get the precedence with which a Function is bracketed. Negative numbers
+     * are written with a leading minus sign, so they are bracketed like
+     * negations.
+     *
+     * @param function The Function.
+     *
+     * @return The precedence of the Function.
+     */
+    private static Precedence precedenceOf(Function function) {
+        if (function instanceof Number && !(function instanceof Constant)
+                && ((Apfloat)function.getValue()).signum() < 0)
+            return Precedence.MULTIPLICATION;
+        return function.precedence;
+    }
+}
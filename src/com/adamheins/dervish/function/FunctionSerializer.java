@@ -0,0 +1,603 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apfloat.Apfloat;
+import org.apfloat.Apint;
+import org.apfloat.Aprational;
+
+/**
+ * Converts Functions to and from a compact binary format, so that they can be
+ * stored without being printed and parsed again.
+ *
+ * A serialized Function starts with a magic number and a format version,
+ * followed by a record holding the Function. A record is made up of a pool of
+ * the numbers in the Function, a table of its strings, which are variable
+ * names and logarithm bases, and then a post-order stream of opcodes. Each
+ * opcode either pushes a leaf, or pops the children of an operator and pushes
+ * the operator. Subtrees that are shared are written once and then referred
+ * to by their position in the stream, so the size of a record is linear in
+ * the number of distinct nodes of the Function rather than in the length of
+ * its string. All integers are written as variable-length quantities.
+ *
+ * Reading a record rebuilds the Function in one pass over the stream, and
+ * the Function read is canonical. Polynomial nodes are written as their
+ * expanded sums, and so are read back as ordinary operators.
+ *
+ * @author Adam
+ */
+public class FunctionSerializer {
+
+    // The magic number that starts a serialized Function: "DRVF".
+    static final int MAGIC = 0x44525646;
+
+    // The version of the format, which is incremented whenever the format
+    // changes.
+    static final int VERSION = 1;
+
+    // Leaves.
+    private static final int NUMBER = 0;
+    private static final int E = 1;
+    private static final int PI = 2;
+    private static final int VARIABLE = 3;
+    private static final int TEMPORARY = 4;
+
+    // A subtree that has already been read.
+    private static final int REFERENCE = 5;
+
+    // Binary operators.
+    private static final int PLUS = 6;
+    private static final int MINUS = 7;
+    private static final int MULTIPLY = 8;
+    private static final int DIVIDE = 9;
+    private static final int EXPONENT = 10;
+
+    // Unary operators.
+    private static final int NEGATIVE = 11;
+    private static final int SIN = 12;
+    private static final int COS = 13;
+    private static final int TAN = 14;
+    private static final int LN = 15;
+    private static final int LOG = 16;
+
+    // Let expressions, followed by their number of bindings.
+    private static final int LET = 17;
+
+    // Kinds of numbers in the pool.
+    private static final int INTEGER = 0;
+    private static final int RATIONAL = 1;
+    private static final int INEXACT = 2;
+
+    private FunctionSerializer() {
+    }
+
+
+    /**
+     * Serializes a Function.
+     *
+     * @param function The Function.
+     *
+     * @return The bytes of the serialized Function.
+     */
+    public static byte[] serialize(Function function) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeRecord(out, function);
+        } catch (IOException e) {
+
+            // Writing to a byte array never fails.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Deserializes a Function from the current position of a buffer. The
+     * position of the buffer is advanced past the Function.
+     *
+     * @param buffer The buffer.
+     *
+     * @return The Function.
+     *
+     * @throws IOException If the buffer does not hold a serialized Function
+     *         of a supported version.
+     */
+    public static Function deserialize(ByteBuffer buffer) throws IOException {
+        checkHeader(buffer, MAGIC);
+        return readRecord(buffer);
+    }
+
+
+    /**
+     * Checks the magic number and version at the start of a buffer.
+     *
+     * @param buffer The buffer.
+     * @param magic The expected magic number.
+     *
+     * @throws IOException If the magic number or version does not match.
+     */
+    static void checkHeader(ByteBuffer buffer, int magic) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != magic)
+            throw new IOException("Not a serialized Function.");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported format version " + version
+                    + ".");
+    }
+
+
+    /**
+     * Writes the record of a Function.
+     *
+     * @param out The destination of the record.
+     * @param function The Function.
+     *
+     * @throws IOException If the record cannot be written.
+     */
+    static void writeRecord(DataOutputStream out, Function function)
+            throws IOException {
+
+        List<Apfloat> numbers = new ArrayList<Apfloat>();
+        Map<Function, Integer> numberIndices = new IdentityHashMap<Function,
+                Integer>();
+        List<String> strings = new ArrayList<String>();
+        Map<String, Integer> stringIndices = new HashMap<String, Integer>();
+
+        // The position in the stream of each node that has been written.
+        Map<Function, Integer> positions = new IdentityHashMap<Function,
+                Integer>();
+
+        ByteArrayOutputStream opBytes = new ByteArrayOutputStream();
+        DataOutputStream ops = new DataOutputStream(opBytes);
+
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Deque<Boolean> expandedStack = new ArrayDeque<Boolean>();
+        funcStack.push(function);
+        expandedStack.push(false);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.pop();
+            boolean expanded = expandedStack.pop();
+
+            Integer position = positions.get(current);
+            if (position != null) {
+                writeOp(ops, REFERENCE, position);
+                continue;
+            }
+
+            if (current instanceof Polynomial) {
+                funcStack.push(((Polynomial)current).toFunction());
+                expandedStack.push(false);
+                continue;
+            }
+
+            if (!expanded && !current.isLeaf()) {
+                funcStack.push(current);
+                expandedStack.push(true);
+                if (current.second != null) {
+                    funcStack.push(current.second);
+                    expandedStack.push(false);
+                }
+                funcStack.push(current.first);
+                expandedStack.push(false);
+
+                // The bindings of a let expression are written before its
+                // body.
+                if (current instanceof Let) {
+                    List<Function> bindings = ((Let)current).getBindings();
+                    for (int i = bindings.size() - 1; i >= 0; --i) {
+                        funcStack.push(bindings.get(i));
+                        expandedStack.push(false);
+                    }
+                }
+                continue;
+            }
+
+            positions.put(current, positions.size());
+
+            if (current == Constant.E) {
+                ops.writeByte(E);
+            } else if (current == Constant.PI) {
+                ops.writeByte(PI);
+            } else if (current instanceof Number) {
+                Integer index = numberIndices.get(current);
+                if (index == null) {
+                    index = numbers.size();
+                    numbers.add((Apfloat)current.getValue());
+                    numberIndices.put(current, index);
+                }
+                writeOp(ops, NUMBER, index);
+            } else if (current instanceof Temporary) {
+                writeOp(ops, TEMPORARY, ((Temporary)current).index);
+            } else if (current instanceof Variable) {
+                writeOp(ops, VARIABLE, indexOf(strings, stringIndices,
+                        current.value.toString()));
+            } else if (current instanceof Let) {
+                writeOp(ops, LET, ((Let)current).getBindings().size());
+            } else if (current instanceof Log && !(current instanceof Ln)) {
+                writeOp(ops, LOG, indexOf(strings, stringIndices,
+                        ((Log)current).base.toString(true)));
+            } else {
+                ops.writeByte(opcodeOf(current));
+            }
+        }
+
+        writeVarint(out, numbers.size());
+        for (Apfloat number : numbers)
+            writeNumber(out, number);
+
+        writeVarint(out, strings.size());
+        for (String string : strings)
+            writeString(out, string);
+
+        writeVarint(out, positions.size());
+        ops.flush();
+        opBytes.writeTo(out);
+    }
+
+
+    /**
+     * Reads the record of a Function from the current position of a buffer.
+     *
+     * @param buffer The buffer.
+     *
+     * @return The Function.
+     *
+     * @throws IOException If the record is malformed.
+     */
+    static Function readRecord(ByteBuffer buffer) throws IOException {
+        try {
+            return readRecordUnchecked(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated Function.", e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed Function.", e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number.", e);
+        }
+    }
+
+
+    private static Function readRecordUnchecked(ByteBuffer buffer)
+            throws IOException {
+
+        // Each number takes at least its kind and the length of its digits,
+        // and each string and node at least one byte.
+        Function[] numbers = new Function[readCount(buffer, 2)];
+        for (int i = 0; i < numbers.length; ++i)
+            numbers[i] = Number.valueOf(readNumber(buffer));
+
+        String[] strings = new String[readCount(buffer, 1)];
+        for (int i = 0; i < strings.length; ++i)
+            strings[i] = readString(buffer);
+
+        Function[] nodes = new Function[readCount(buffer, 1)];
+        Deque<Function> valueStack = new ArrayDeque<Function>();
+
+        for (int count = 0; count < nodes.length;) {
+            int opcode = buffer.get();
+
+            if (opcode == REFERENCE) {
+                int position = readVarint(buffer);
+                if (position >= count)
+                    throw new IOException("Malformed Function.");
+                valueStack.push(nodes[position]);
+                continue;
+            }
+
+            Function node;
+            switch (opcode) {
+            case NUMBER:
+                node = numbers[readVarint(buffer)];
+                break;
+            case E:
+                node = Constant.E;
+                break;
+            case PI:
+                node = Constant.PI;
+                break;
+            case VARIABLE:
+                node = new Variable(strings[readVarint(buffer)]).intern();
+                break;
+            case TEMPORARY:
+                node = new Temporary(readVarint(buffer)).intern();
+                break;
+            case LET:
+                Function body = pop(valueStack);
+                int bindingCount = readVarint(buffer);
+                if (bindingCount > valueStack.size())
+                    throw new IOException("Malformed Function.");
+                Function[] bindings = new Function[bindingCount];
+                for (int i = bindings.length - 1; i >= 0; --i)
+                    bindings[i] = pop(valueStack);
+                node = new Let(bindings, body).intern();
+                break;
+            case LOG:
+                node = new Log(strings[readVarint(buffer)]);
+                node.first = pop(valueStack);
+                node = node.intern();
+                break;
+            default:
+                node = emptyOperator(opcode);
+                if (opcode >= NEGATIVE) {
+                    node.first = pop(valueStack);
+                } else {
+                    node.second = pop(valueStack);
+                    node.first = pop(valueStack);
+                }
+                node = node.intern();
+            }
+
+            nodes[count++] = node;
+            valueStack.push(node);
+        }
+
+        if (valueStack.size() != 1)
+            throw new IOException("Malformed Function.");
+        return valueStack.pop();
+    }
+
+
+    private static Function pop(Deque<Function> valueStack)
+            throws IOException {
+        if (valueStack.isEmpty())
+            throw new IOException("Malformed Function.");
+        return valueStack.pop();
+    }
+
+
+    /**
+     * Get the opcode of an operator without operands.
+     *
+     * @param function The operator.
+     *
+     * @return The opcode.
+     */
+    private static int opcodeOf(Function function) {
+        if (function instanceof Plus)
+            return PLUS;
+        if (function instanceof Minus)
+            return MINUS;
+        if (function instanceof Multiply)
+            return MULTIPLY;
+        if (function instanceof Divide)
+            return DIVIDE;
+        if (function instanceof Exponent)
+            return EXPONENT;
+        if (function instanceof Negative)
+            return NEGATIVE;
+        if (function instanceof Sin)
+            return SIN;
+        if (function instanceof Cos)
+            return COS;
+        if (function instanceof Tan)
+            return TAN;
+        if (function instanceof Ln)
+            return LN;
+        throw new IllegalArgumentException("Cannot serialize "
+                + function.getClass().getSimpleName() + ".");
+    }
+
+
+    /**
+     * Creates an operator without operands from its opcode.
+     *
+     * @param opcode The opcode.
+     *
+     * @return The operator.
+     *
+     * @throws IOException If the opcode is unknown.
+     */
+    private static Function emptyOperator(int opcode) throws IOException {
+        switch (opcode) {
+        case PLUS:
+            return new Plus();
+        case MINUS:
+            return new Minus();
+        case MULTIPLY:
+            return new Multiply();
+        case DIVIDE:
+            return new Divide();
+        case EXPONENT:
+            return new Exponent();
+        case NEGATIVE:
+            return new Negative();
+        case SIN:
+            return new Sin();
+        case COS:
+            return new Cos();
+        case TAN:
+            return new Tan();
+        case LN:
+            return new Ln();
+        default:
+            throw new IOException("Unknown opcode " + opcode + ".");
+        }
+    }
+
+
+    private static int indexOf(List<String> strings,
+            Map<String, Integer> indices, String string) {
+        Integer index = indices.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            indices.put(string, index);
+        }
+        return index;
+    }
+
+
+    /**
+     * Writes a number. Exact numbers are written as their numerator and
+     * denominator, and inexact numbers as their digits and precision.
+     *
+     * @param out The destination of the number.
+     * @param number The number.
+     *
+     * @throws IOException If the number cannot be written.
+     */
+    private static void writeNumber(DataOutputStream out, Apfloat number)
+            throws IOException {
+        if (number instanceof Apint) {
+            out.writeByte(INTEGER);
+            writeString(out, number.toString(true));
+        } else if (ExactArithmetic.isExact(number)) {
+            out.writeByte(RATIONAL);
+            writeString(out, ((Aprational)number).numerator().toString(true));
+            writeString(out, ((Aprational)number).denominator()
+                    .toString(true));
+        } else {
+            out.writeByte(INEXACT);
+            writeString(out, number.toString(true));
+            writeVarint(out, number.precision());
+        }
+    }
+
+
+    private static Apfloat readNumber(ByteBuffer buffer) throws IOException {
+        int kind = buffer.get();
+        switch (kind) {
+        case INTEGER:
+            return new Apint(readString(buffer));
+        case RATIONAL:
+            return new Aprational(new Apint(readString(buffer)),
+                    new Apint(readString(buffer)));
+        case INEXACT:
+            String digits = readString(buffer);
+            long precision = readLongVarint(buffer);
+            if (precision == 0)
+                throw new IOException("Malformed number.");
+            return new Apfloat(digits, precision);
+        default:
+            throw new IOException("Unknown kind of number " + kind + ".");
+        }
+    }
+
+
+    private static void writeOp(DataOutputStream out, int opcode, long operand)
+            throws IOException {
+        out.writeByte(opcode);
+        writeVarint(out, operand);
+    }
+
+
+    private static void writeString(DataOutputStream out, String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[readCount(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Writes a non-negative integer seven bits at a time, least significant
+     * first. The high bit of each byte is set if more bytes follow.
+     *
+     * @param out The destination of the integer.
+     * @param value The integer.
+     *
+     * @throws IOException If the integer cannot be written.
+     */
+    private static void writeVarint(DataOutputStream out, long value)
+            throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+
+    /**
+     * Reads a non-negative integer written by writeVarint.
+     *
+     * @param buffer The buffer.
+     *
+     * @return The integer.
+     *
+     * @throws IOException If the integer does not fit in an int.
+     */
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        long value = readLongVarint(buffer);
+        if (value > Integer.MAX_VALUE)
+            throw new IOException("Malformed Function.");
+        return (int)value;
+    }
+
+
+    /**
+     * Reads the number of items that follow, before anything is allocated
+     * for them.
+     *
+     * @param buffer The buffer.
+     * @param itemSize The least number of bytes that each item takes.
+     *
+     * @return The number of items.
+     *
+     * @throws IOException If there are not enough bytes left for that many
+     *         items.
+     */
+    private static int readCount(ByteBuffer buffer, int itemSize)
+            throws IOException {
+        int count = readVarint(buffer);
+        if (count > buffer.remaining() / itemSize)
+            throw new IOException("Malformed Function.");
+        return count;
+    }
+
+
+    /**
+     * Reads a non-negative long written by writeVarint.
+     *
+     * @param buffer The buffer.
+     *
+     * @return The integer.
+     *
+     * @throws IOException If the integer does not fit in a long.
+     */
+    private static long readLongVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        // Only the sign bit is left, which is never set.
+        if (buffer.get() != 0)
+            throw new IOException("Malformed Function.");
+        return value;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Table of canonical Functions. Every Function that is interned is either
+ * added to the table or replaced by an identical Function that is already in
+ * it, so identical subtrees are shared rather than duplicated. Functions are
+ * only weakly referenced, so they are removed from the table once they are no
+ * longer used elsewhere.
+ *
+ * Two Functions are identical if they are of the same class, have the same
+ * value and have the very same children. Since children are interned before
+ * their parents, this is equivalent to structural identity of the subtrees.
+ * Unlike equality, identity does not consider commutativity, so a Function
+ * always prints the same way after it is interned.
+ *
+ * The table is split into segments by hash, each with its own lock, so that
+ * the threads of a parallel evaluation, each of which interns the Functions
+ * it builds, rarely wait for one another.
+ *
+ * @author Adam
+ */
+final class InternTable {
+
+    // The one table through which all canonical Functions are built.
+    static final InternTable INSTANCE = new InternTable();
+
+    // Number of segments, each of which is locked separately so that
+    // Functions can be interned by many threads at once. Must be a power of
+    // two.
+    private static final int SEGMENTS = 32;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Segment[] segments;
+
+
+    private InternTable() {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; ++i)
+            segments[i] = new Segment();
+    }
+
+
+    /**
+     * Get the canonical instance of a Function. The children of the Function
+     * must already be canonical.
+     *
+     * @param function The Function.
+     *
+     * @return The Function in the table that is identical to the given one,
+     *         or the given Function itself if there is none, in which case it
+     *         becomes the canonical instance.
+     */
+    Function intern(Function function) {
+        int hash = function.computeHash();
+        return segmentFor(hash).intern(function, hash);
+    }
+
+
+    /**
+     * Get the canonical instance of an operator with the given children,
+     * which must already be canonical. The operator itself is not changed,
+     * and is copied if the table has no instance of it yet.
+     *
+     * @param function The operator, whose children are ignored.
+     * @param first The canonical first child, or null if there is none.
+     * @param second The canonical second child, or null if there is none.
+     *
+     * @return The Function in the table of the same class and value as the
+     *         operator with the given children, which is a new copy of the
+     *         operator if there was none.
+     */
+    Function intern(Function function, Function first, Function second) {
+        int hash = function.computeHash(first, second);
+        return segmentFor(hash).intern(function, first, second, hash);
+    }
+
+
+    /**
+     * Get the number of canonical Functions currently held by the table.
+     *
+     * @return The number of Functions in the table.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+
+    /**
+     * Get the segment that holds the Functions with a given hash. The
+     * segment is chosen by the high bits of the mixed hash, and the bucket
+     * within it by the low bits, so the two choices are independent.
+     */
+    private Segment segmentFor(int hash) {
+        return segments[(hash * 0x9E3779B9) >>> (32 - Integer
+                .numberOfTrailingZeros(SEGMENTS))];
+    }
+
+
+    private static int indexFor(int hash, int length) {
+        return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+
+    /**
+     * Part of the table, with its own lock.
+     */
+    private static final class Segment {
+
+        private Entry[] table;
+        private int size;
+
+        // Queue of entries whose Functions have been garbage collected.
+        private final ReferenceQueue<Function> queue;
+
+
+        Segment() {
+            table = new Entry[INITIAL_CAPACITY];
+            size = 0;
+            queue = new ReferenceQueue<Function>();
+        }
+
+
+        synchronized Function intern(Function function, int hash) {
+
+            expungeStaleEntries();
+
+            int index = indexFor(hash, table.length);
+            for (Entry entry = table[index]; entry != null;
+                    entry = entry.next) {
+                Function candidate = entry.get();
+                if (candidate != null && entry.hash == hash
+                        && candidate.identical(function))
+                    return candidate;
+            }
+
+            add(function, hash, index);
+            return function;
+        }
+
+
+        synchronized Function intern(Function function, Function first,
+                Function second, int hash) {
+
+            expungeStaleEntries();
+
+            int index = indexFor(hash, table.length);
+            for (Entry entry = table[index]; entry != null;
+                    entry = entry.next) {
+                Function candidate = entry.get();
+                if (candidate != null && entry.hash == hash
+                        && candidate.getClass() == function.getClass()
+                        && candidate.first == first
+                        && candidate.second == second
+                        && candidate.value.equals(function.value))
+                    return candidate;
+            }
+
+            Function copy = function.emptyCopy();
+            copy.first = first;
+            copy.second = second;
+            add(copy, hash, index);
+            return copy;
+        }
+
+
+        synchronized int size() {
+            expungeStaleEntries();
+            return size;
+        }
+
+
+        /**
+         * Adds a Function to the segment, making it canonical.
+         *
+         * @param function The Function, which has no identical Function in
+         *         the table.
+         * @param hash The structural hash of the Function.
+         * @param index The index of its bucket.
+         */
+        private void add(Function function, int hash, int index) {
+            function.hash = hash;
+            function.freeVariables = function.computeFreeVariables();
+            function.interned = true;
+            table[index] = new Entry(function, hash, queue, table[index]);
+
+            if (++size > table.length * LOAD_FACTOR)
+                resize();
+        }
+
+
+        /**
+         * Doubles the capacity of the segment.
+         */
+        private void resize() {
+            Entry[] newTable = new Entry[table.length * 2];
+            for (Entry head : table) {
+                Entry entry = head;
+                while (entry != null) {
+                    Entry next = entry.next;
+                    int index = indexFor(entry.hash, newTable.length);
+                    entry.next = newTable[index];
+                    newTable[index] = entry;
+                    entry = next;
+                }
+            }
+            table = newTable;
+        }
+
+
+        /**
+         * Removes entries whose Functions have been garbage collected.
+         */
+        private void expungeStaleEntries() {
+            Object stale;
+            while ((stale = queue.poll()) != null) {
+                Entry entry = (Entry)stale;
+                int index = indexFor(entry.hash, table.length);
+
+                Entry prev = null;
+                Entry current = table[index];
+                while (current != null) {
+                    if (current == entry) {
+                        if (prev == null)
+                            table[index] = current.next;
+                        else
+                            prev.next = current.next;
+                        size--;
+                        break;
+                    }
+                    prev = current;
+                    current = current.next;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Entry in the table, which weakly references a canonical Function.
+     */
+    private static final class Entry extends WeakReference<Function> {
+
+        final int hash;
+        Entry next;
+
+        Entry(Function function, int hash, ReferenceQueue<Function> queue,
+                Entry next) {
+            super(function, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import org.apfloat.Apfloat;
+
+/**
+ * A closed interval of doubles that is guaranteed to contain some exact value.
+ * Every operation rounds its bounds outward, so the result contains the exact
+ * result of the operation on any values in the operands. An interval that
+ * cannot be bounded, such as the result of dividing by an interval containing
+ * zero, is the entire real line.
+ *
+ * @author Adam
+ */
+final class Interval {
+
+    static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY,
+            Double.POSITIVE_INFINITY);
+
+    private static final double TWO_PI = 2 * Math.PI;
+
+    // Margin by which the positions of the extrema of sin, cos and tan are
+    // widened, to allow for the error in the double value of pi.
+    private static final double MARGIN = 1e-9;
+
+    // Largest argument for which the extrema of sin, cos and tan can be
+    // located within the margin.
+    private static final double LARGE = 1e6;
+
+    final double lo;
+    final double hi;
+
+
+    private Interval(double lo, double hi) {
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+
+    /**
+     * Creates an interval, which is the entire line if either bound is NaN.
+     */
+    static Interval of(double lo, double hi) {
+        if (Double.isNaN(lo) || Double.isNaN(hi))
+            return ENTIRE;
+        return new Interval(lo, hi);
+    }
+
+
+    /**
+     * Creates an interval containing an arbitrary precision value.
+     */
+    static Interval of(Apfloat value) {
+        double d = value.doubleValue();
+
+        // Integers of up to 53 bits are exact as doubles. Otherwise, the
+        // conversion is assumed to be off by as much as an ulp.
+        if (Math.abs(d) < 0x1p53 && value.frac().signum() == 0)
+            return point(d);
+        return widen(d, d, 2);
+    }
+
+
+    /**
+     * Creates an interval containing only the given value.
+     */
+    static Interval point(double value) {
+        return of(value, value);
+    }
+
+
+    /**
+     * Creates an interval from bounds that are each within the given number
+     * of units in the last place of the exact bounds.
+     */
+    static Interval widen(double lo, double hi, int ulps) {
+        for (int i = 0; i < ulps; ++i) {
+            lo = Math.nextDown(lo);
+            hi = Math.nextUp(hi);
+        }
+        return of(lo, hi);
+    }
+
+
+    boolean isPoint() {
+        return lo == hi;
+    }
+
+
+    boolean contains(double value) {
+        return lo <= value && value <= hi;
+    }
+
+
+    Interval negate() {
+        return of(-hi, -lo);
+    }
+
+
+    Interval add(Interval other) {
+        return widen(lo + other.lo, hi + other.hi, 1);
+    }
+
+
+    Interval subtract(Interval other) {
+        return widen(lo - other.hi, hi - other.lo, 1);
+    }
+
+
+    Interval multiply(Interval other) {
+        double a = lo * other.lo;
+        double b = lo * other.hi;
+        double c = hi * other.lo;
+        double d = hi * other.hi;
+        return widen(Math.min(Math.min(a, b), Math.min(c, d)),
+                Math.max(Math.max(a, b), Math.max(c, d)), 1);
+    }
+
+
+    Interval divide(Interval other) {
+        if (other.contains(0.0))
+            return ENTIRE;
+        double a = lo / other.lo;
+        double b = lo / other.hi;
+        double c = hi / other.lo;
+        double d = hi / other.hi;
+        return widen(Math.min(Math.min(a, b), Math.min(c, d)),
+                Math.max(Math.max(a, b), Math.max(c, d)), 1);
+    }
+
+
+    Interval pow(Interval exponent) {
+
+        // Integer powers are repeated multiplication, which is defined for
+        // negative bases.
+        if (exponent.isPoint() && exponent.lo == Math.rint(exponent.lo)
+                && Math.abs(exponent.lo) <= Integer.MAX_VALUE) {
+            int n = (int)exponent.lo;
+            Interval result = point(1.0);
+            Interval square = this;
+            for (int k = Math.abs(n); k > 0; k >>= 1) {
+                if ((k & 1) != 0)
+                    result = result.multiply(square);
+                square = square.multiply(square);
+            }
+            return n < 0 ? point(1.0).divide(result) : result;
+        }
+
+        // Otherwise x^y = e^(y*ln(x)), which requires a positive base.
+        if (lo <= 0)
+            return ENTIRE;
+        return exponent.multiply(ln()).exp();
+    }
+
+
+    Interval exp() {
+        return widen(Math.exp(lo), Math.exp(hi), 2);
+    }
+
+
+    Interval ln() {
+        if (lo <= 0)
+            return ENTIRE;
+        return widen(Math.log(lo), Math.log(hi), 2);
+    }
+
+
+    Interval sin() {
+        return periodic(Math.sin(lo), Math.sin(hi), Math.PI / 2);
+    }
+
+
+    Interval cos() {
+        return periodic(Math.cos(lo), Math.cos(hi), 0.0);
+    }
+
+
+    Interval tan() {
+        if (hi - lo >= Math.PI || isLarge() || crosses(Math.PI / 2, Math.PI))
+            return ENTIRE;
+        return widen(Math.tan(lo), Math.tan(hi), 2);
+    }
+
+
+    /**
+     * Bounds a function with period 2*pi that oscillates between -1 and 1,
+     * given its values at the bounds and the position of one of its maxima.
+     */
+    private Interval periodic(double atLo, double atHi, double maximum) {
+        if (hi - lo >= TWO_PI || isLarge())
+            return of(-1.0, 1.0);
+
+        double min = Math.min(atLo, atHi);
+        double max = Math.max(atLo, atHi);
+        Interval result = widen(min, max, 2);
+        min = Math.max(result.lo, -1.0);
+        max = Math.min(result.hi, 1.0);
+
+        if (crosses(maximum, TWO_PI))
+            max = 1.0;
+        if (crosses(maximum + Math.PI, TWO_PI))
+            min = -1.0;
+        return of(min, max);
+    }
+
+
+    private boolean isLarge() {
+        return Math.abs(lo) > LARGE || Math.abs(hi) > LARGE;
+    }
+
+
+    /**
+     * Check if the interval may contain any of the points offset + k*period.
+     */
+    private boolean crosses(double offset, double period) {
+        double k = Math.ceil((lo - MARGIN - offset) / period);
+        return offset + k * period <= hi + MARGIN;
+    }
+
+
+    @Override
+    public String toString() {
+        return "[" + lo + ", " + hi + "]";
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * State of a single interval evaluation of a Function.
+ *
+ * @author Adam
+ */
+class IntervalContext {
+
+    // Values of the variables.
+    final Map<String, Function> varMap;
+
+    // Bounds of nodes that have already been evaluated, so that shared
+    // subtrees are only evaluated once.
+    private final Map<Function, Interval> memo;
+
+
+    IntervalContext(Map<String, Function> varMap) {
+        this.varMap = varMap;
+        this.memo = new IdentityHashMap<Function, Interval>();
+    }
+
+
+    /**
+     * Bounds the value of a node.
+     *
+     * @param function The node.
+     *
+     * @return An interval containing the value of the node.
+     */
+    Interval boundOf(Function function) {
+        Interval result = memo.get(function);
+        if (result == null) {
+            result = function.bound(this);
+            memo.put(function, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Function with subexpressions bound to temporaries. Each binding may refer
+ * to the temporaries of the bindings before it, and the body, which is the
+ * first child, may refer to all of them. Each bound subexpression is
+ * evaluated only once, no matter how many times its temporary is referenced.
+ *
+ * @author Adam
+ */
+public class Let extends Function {
+
+    // The bound subexpressions. The temporary for the binding at index i is
+    // named _i.
+    private final Function[] bindings;
+
+
+    /**
+     * Constructor.
+     *
+     * @param bindings The bound subexpressions.
+     * @param body The Function in which the temporaries are used.
+     */
+    Let(Function[] bindings, Function body) {
+        super("let", Precedence.ADDITION, Associativity.LEFT, false);
+        this.bindings = bindings;
+        this.first = body;
+    }
+
+
+    @Override
+    public Function evaluate(Map<String, Function> varMap) {
+        return getFirstChild().evaluate(scope(varMap));
+    }
+
+
+    @Override
+    Function combine(Function first, Function second) {
+
+        // The evaluated body still refers to the temporaries, which are
+        // replaced by the values of their bindings.
+        return first.evaluate(scope(null));
+    }
+
+
+    /**
+     * Evaluates the bindings, each with the temporaries before it.
+     *
+     * @param varMap A map of variable names and the Functions that should be
+     *         substituted into them, which may be null.
+     *
+     * @return A map of the variables and temporaries to their values.
+     */
+    private Map<String, Function> scope(Map<String, Function> varMap) {
+        Map<String, Function> scope = new HashMap<String, Function>();
+        if (varMap != null)
+            scope.putAll(varMap);
+
+        for (int i = 0; i < bindings.length; ++i)
+            scope.put(temporaryName(i), bindings[i].evaluate(scope));
+
+        return scope;
+    }
+
+
+    @Override
+    protected Function differentiateInternal(String var) {
+        return evaluate().differentiateInternal(var);
+    }
+
+
+    @Override
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
+
+        // No Function contains a variable that is not in the table.
+        if (index < 0)
+            return Number.ZERO;
+        return differentiateInternal(VariableTable.INSTANCE.nameOf(index));
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+
+        // Substituting the temporaries shares their subtrees, each of which
+        // is then only evaluated once.
+        return context.dualOf(evaluate());
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(evaluate());
+    }
+
+
+    @Override
+    public List<String> getVariables() {
+        List<String> varList = new ArrayList<String>();
+        for (Function binding : bindings)
+            varList.addAll(binding.getVariables());
+        varList.addAll(getFirstChild().getVariables());
+
+        // Temporaries are not variables of the Function.
+        List<String> temporaries = new ArrayList<String>();
+        for (int i = 0; i < bindings.length; ++i)
+            temporaries.add(temporaryName(i));
+        varList.removeAll(temporaries);
+
+        return varList;
+    }
+
+
+    /**
+     * Get the bound subexpressions.
+     *
+     * @return The bound subexpressions, in order.
+     */
+    public List<Function> getBindings() {
+        return Arrays.asList(bindings.clone());
+    }
+
+
+    @Override
+    public Function intern() {
+        if (interned)
+            return this;
+
+        // The canonical Let is a new one, so that this one is not changed.
+        Function[] canonical = new Function[bindings.length];
+        for (int i = 0; i < bindings.length; ++i)
+            canonical[i] = bindings[i].intern();
+        return InternTable.INSTANCE.intern(new Let(canonical,
+                getFirstChild().intern()));
+    }
+
+
+    @Override
+    BitSet computeFreeVariables() {
+        BitSet set = (BitSet)getFirstChild().freeVariables.clone();
+        for (Function binding : bindings)
+            set.or(binding.freeVariables);
+
+        // Temporaries are not variables of the Function.
+        for (int i = 0; i < bindings.length; ++i)
+            set.clear(VariableTable.INSTANCE.indexOf(temporaryName(i)));
+
+        return set;
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Let(bindings.clone(), null);
+    }
+
+
+    @Override
+    boolean identical(Function other) {
+        if (!super.identical(other))
+            return false;
+
+        Function[] otherBindings = ((Let)other).bindings;
+        if (bindings.length != otherBindings.length)
+            return false;
+        for (int i = 0; i < bindings.length; ++i) {
+            if (bindings[i] != otherBindings[i])
+                return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    int computeHash() {
+        return 31 * super.computeHash() + Arrays.hashCode(bindings);
+    }
+
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof Let))
+            return false;
+        Let let = (Let)other;
+        return Arrays.equals(bindings, let.bindings)
+                && getFirstChild().equals(let.getFirstChild());
+    }
+
+
+    /**
+     * Get the name of the temporary for a binding.
+     *
+     * @param index The index of the binding.
+     *
+     * @return The name of the temporary.
+     */
+    static String temporaryName(int index) {
+        return "_" + index;
+    }
+}
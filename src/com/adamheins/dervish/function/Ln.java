@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 import org.apfloat.ApfloatMath;
 
@@ -25,27 +23,47 @@ public class Ln extends Log {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        Function child = getFirstChild().evaluate(varMap);
+    Function combine(Function child, Function second) {
 
         if (child instanceof Number) {
-            Apfloat result = ApfloatMath.log(((Apfloat)child.getValue()));
-            return new Number(precisionRound(result));
+            Apfloat result = ApfloatMath.log(finite((Apfloat)child.getValue()));
+            return new Number(precisionRound(result)).intern();
         }
 
         Function me = new Ln();
         me.setFirstChild(child);
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Ln();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber child = context.dualOf(getFirstChild());
+        Apfloat value = precisionRound(ApfloatMath.log(finite(child.value)));
+        Apfloat derivative = child.derivative.divide(finite(child.value));
+        return new DualNumber(value, precisionRound(derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).ln();
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
         Function divide = new Divide();
-        divide.setFirstChild(getFirstChild().differentiateInternal(var));
+        divide.setFirstChild(firstDerivative);
         divide.setSecondChild(getFirstChild().evaluate());
 
         return divide;
@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 import org.apfloat.ApfloatMath;
 
@@ -19,13 +17,13 @@ import org.apfloat.ApfloatMath;
  */
 public class Log extends Function {
 
-    // The base of the logarithm.
+    // The base of the logarithm, which is exact.
     Apfloat base;
 
     public Log(String base) {
         super("log<" + base + ">", Precedence.EXPONENTIATION,
                 Associativity.RIGHT, false);
-        this.base = new Apfloat(base, INTERNAL_PRECISION);
+        this.base = new Apfloat(base, Apfloat.INFINITE);
     }
 
 
@@ -38,38 +36,82 @@ public class Log extends Function {
 
     protected Log(String base, String value) {
         super(value, Precedence.EXPONENTIATION, Associativity.RIGHT, false);
-        this.base = new Apfloat(base, INTERNAL_PRECISION);
+        this.base = new Apfloat(base, Apfloat.INFINITE);
     }
 
 
-    @Override
-    public Function evaluate(Map<String, Function> varMap) {
+    /**
+     * Get the base of this logarithm.
+     *
+     * @return The base of this logarithm.
+     */
+    public Number getBase() {
+        return new Number(base);
+    }
+
+
+    /**
+     * Get the base of this logarithm at the current internal precision.
+     *
+     * @return The base.
+     */
+    private Apfloat base() {
+        return base.precision(Precision.get().internal());
+    }
+
 
-        Function child = getFirstChild().evaluate(varMap);
+    @Override
+    Function combine(Function child, Function second) {
 
         if (child instanceof Number) {
             Apfloat value = ((Apfloat)child.getValue());
-            Apfloat result = ApfloatMath.log(value, base);
-            return new Number(precisionRound(result));
+            Apfloat result = ApfloatMath.log(finite(value), base());
+            return new Number(precisionRound(result)).intern();
         }
 
         Function me = new Log(base);
         me.setFirstChild(child);
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Log(base);
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber child = context.dualOf(getFirstChild());
+        Apfloat value = precisionRound(ApfloatMath.log(finite(child.value),
+                base()));
+        Apfloat derivative = child.derivative.divide(finite(child.value)
+                .multiply(ApfloatMath.log(base())));
+        return new DualNumber(value, precisionRound(derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).ln().divide(Interval.of(base)
+                .ln());
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
-        Apfloat coefficient = Apfloat.ONE.divide(ApfloatMath.log(base));
+        Apfloat coefficient = Apfloat.ONE.divide(ApfloatMath.log(base()));
 
-        Function ln = new Ln();
-        ln.setFirstChild(getFirstChild());
+        Function quotient = new Divide();
+        quotient.setFirstChild(firstDerivative);
+        quotient.setSecondChild(getFirstChild().evaluate());
 
         Function derivative = new Multiply();
-        derivative.setFirstChild(new Number(coefficient.toString(PRETTY)));
-        derivative.setSecondChild(ln);
+        derivative.setFirstChild(Number.valueOf(coefficient));
+        derivative.setSecondChild(quotient);
 
         return derivative;
     }
@@ -7,10 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
-import org.apfloat.Apfloat;
-
 /**
  * Subtraction operator.
  *
@@ -24,22 +20,17 @@ public class Minus extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        // Evaluate children.
-        Function first = getFirstChild().evaluate(varMap);
-        Function second = getSecondChild().evaluate(varMap);
+    Function combine(Function first, Function second) {
 
         // Check for number children, and evaluate.
         if (first instanceof Number && second instanceof Number) {
-            Apfloat firstValue = (Apfloat)first.getValue();
-            Apfloat secondValue = (Apfloat)second.getValue();
-            Apfloat result = firstValue.subtract(secondValue);
-            return new Number(result);
+            return Number.subtract((Number)first, (Number)second);
         }
 
         if (first.equals(Number.ZERO)) {
-            return second;
+            Function negative = new Negative();
+            negative.setFirstChild(second);
+            return negative.intern();
         } else if (second.equals(Number.ZERO)) {
             return first;
         }
@@ -48,15 +39,38 @@ public class Minus extends Function {
         me.setFirstChild(first);
         me.setSecondChild(second);
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Minus();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber first = context.dualOf(getFirstChild());
+        DualNumber second = context.dualOf(getSecondChild());
+        return new DualNumber(first.value.subtract(second.value),
+                first.derivative.subtract(second.derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).subtract(context.boundOf(
+                getSecondChild()));
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
         Function derivative = new Minus();
-        derivative.setFirstChild(getFirstChild().differentiateInternal(var));
-        derivative.setSecondChild(getSecondChild().differentiateInternal(var));
+        derivative.setFirstChild(firstDerivative);
+        derivative.setSecondChild(secondDerivative);
         return derivative;
     }
 }
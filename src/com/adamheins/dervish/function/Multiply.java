@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 
 /**
@@ -24,18 +22,11 @@ public class Multiply extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        // Evaluate children.
-        Function first = getFirstChild().evaluate(varMap);
-        Function second = getSecondChild().evaluate(varMap);
+    Function combine(Function first, Function second) {
 
         // Check for number children, and evaluate.
         if (first instanceof Number && second instanceof Number) {
-            Apfloat firstVal = (Apfloat)first.getValue();
-            Apfloat secondVal = (Apfloat)second.getValue();
-            Apfloat result = firstVal.multiply(secondVal);
-            return new Number(result);
+            return Number.multiply((Number)first, (Number)second);
         }
 
         if (first.equals(Number.ZERO) || second.equals(Number.ZERO)) {
@@ -50,20 +41,46 @@ public class Multiply extends Function {
         me.first = first;
         me.second = second;
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Multiply();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber first = context.dualOf(getFirstChild());
+        DualNumber second = context.dualOf(getSecondChild());
+
+        // Product rule.
+        Apfloat derivative = first.derivative.multiply(second.value)
+                .add(first.value.multiply(second.derivative));
+        return new DualNumber(first.value.multiply(second.value), derivative);
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).multiply(context.boundOf(
+                getSecondChild()));
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
         Function mult1 = new Multiply();
-        mult1.setFirstChild(getFirstChild().differentiateInternal(var));
+        mult1.setFirstChild(firstDerivative);
         mult1.setSecondChild(getSecondChild());
 
         Function mult2 = new Multiply();
         mult2.setFirstChild(getFirstChild());
-        mult2.setSecondChild(getSecondChild().differentiateInternal(var));
+        mult2.setSecondChild(secondDerivative);
 
         Function derivative = new Plus();
         derivative.setFirstChild(mult1);
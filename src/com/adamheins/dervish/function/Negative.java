@@ -7,10 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
-import org.apfloat.Apfloat;
-
 /**
  * Negation operator.
  *
@@ -24,33 +20,43 @@ public class Negative extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        Function child = getFirstChild().evaluate(varMap);
+    Function combine(Function child, Function second) {
 
         if (child instanceof Number) {
-            return new Number(((Apfloat) child.getValue()).negate());
+            return Number.negate((Number)child);
         }
 
         Function me = new Negative();
         me.setFirstChild(child);
 
-        return me;
+        return me.intern();
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function emptyCopy() {
+        return new Negative();
+    }
 
-        Function childDer = getFirstChild().differentiateInternal(var);
-        Function derivative = new Negative();
-        derivative.setFirstChild(childDer);
-        return derivative;
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber child = context.dualOf(getFirstChild());
+        return new DualNumber(child.value.negate(), child.derivative.negate());
     }
 
 
     @Override
-    public String toString() {
-        return "-(" + getFirstChild().toString() + ")";
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).negate();
+    }
+
+
+    @Override
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
+        Function derivative = new Negative();
+        derivative.setFirstChild(firstDerivative);
+        return derivative;
     }
 }
@@ -10,39 +10,226 @@ package com.adamheins.dervish.function;
 import java.util.Map;
 
 import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
 
 /**
  * A function that is a constant number.
  *
+ * Numbers that are exact and are short decimals, which most are, are held
+ * compactly as Decimals, and arithmetic on them is done without creating any
+ * Apfloats. Other Numbers are held as Apfloats, and compact Numbers only
+ * create an Apfloat when one is needed.
+ *
  * @author Adam
  */
 public class Number extends Function {
 
-    public static final Number ZERO = new Number(Apfloat.ZERO);
-    public static final Number ONE = new Number(Apfloat.ONE);
+    public static final Number ZERO = (Number)new Number(Apfloat.ZERO)
+            .intern();
+    public static final Number ONE = (Number)new Number(Apfloat.ONE)
+            .intern();
+
+    // Shared Numbers for small integers, which are the most common.
+    private static final Number[] CACHE = new Number[ExactArithmetic
+            .CACHE_HIGH - ExactArithmetic.CACHE_LOW + 1];
+    static {
+        for (int i = 0; i < CACHE.length; ++i)
+            CACHE[i] = (Number)new Number(Decimal.valueOf(
+                    ExactArithmetic.CACHE_LOW + i, 0)).intern();
+    }
 
+    // Value of a compact Number as an Apfloat, once it has been needed.
+    private volatile Apfloat apfloat;
 
+
+    /**
+     * Constructor. The number is exact, and is kept as a fraction, so that
+     * arithmetic on it is exact as well; operations that are inexact round
+     * their results to the precision in effect when they are evaluated.
+     *
+     * @param value The string representation of the number.
+     */
     public Number(String value) {
-        super(new Apfloat(value, INTERNAL_PRECISION), Precedence.NUMBER,
-                Associativity.LEFT, true);
+        this(value, 0, value.length());
+    }
+
+
+    /**
+     * Constructor for a number that is part of a larger string, such as a
+     * function being parsed. The number is exact, as with
+     * {@link #Number(String)}.
+     *
+     * @param str The string.
+     * @param start The index of the first character of the number.
+     * @param end The index after the last character of the number.
+     */
+    public Number(String str, int start, int end) {
+        super(parse(str, start, end), Precedence.NUMBER, Associativity.LEFT,
+                true);
     }
 
 
     /**
      * Internal constructor for performance purposes. Create a Number directly
      * from an Apfloat, but avoid exposing the internal implementation
-     * (Apfloat).
+     * (Apfloat). Values with infinite precision are exact.
      *
      * @param numValue The value of the number.
      */
     Number(Apfloat value) {
+        super(compact(value), Precedence.NUMBER, Associativity.LEFT, true);
+    }
+
+
+    private Number(Decimal value) {
         super(value, Precedence.NUMBER, Associativity.LEFT, true);
     }
 
 
+    /**
+     * Get the canonical Number with the given value. Numbers for small
+     * integers are shared, and are found without using the intern table.
+     *
+     * @param value The value of the number.
+     *
+     * @return The canonical Number.
+     */
+    static Number valueOf(Apfloat value) {
+        Object compact = compact(value);
+        if (compact instanceof Decimal)
+            return valueOf((Decimal)compact);
+        return (Number)new Number((Apfloat)compact).intern();
+    }
+
+
+    /**
+     * Get the canonical Number with the given exact value. Values with too
+     * many digits are converted to inexact values at the internal precision,
+     * as with the results of ExactArithmetic.
+     *
+     * @param value The value of the number.
+     *
+     * @return The canonical Number.
+     */
+    static Number valueOf(Decimal value) {
+        if (value.size() > ExactArithmetic.exactDigits())
+            return valueOf(value.toApfloat(Precision.get().internal()));
+        if (value.isLong() && value.unscaled >= ExactArithmetic.CACHE_LOW
+                && value.unscaled <= ExactArithmetic.CACHE_HIGH)
+            return CACHE[(int)(value.unscaled - ExactArithmetic.CACHE_LOW)];
+        return (Number)new Number(value).intern();
+    }
+
+
+    static Number add(Number first, Number second) {
+        Decimal firstValue = first.decimal();
+        Decimal secondValue = second.decimal();
+        if (firstValue != null && secondValue != null) {
+            try {
+                return valueOf(firstValue.add(secondValue));
+            } catch (ArithmeticException e) {
+                // Overflowed, so add as Apfloats.
+            }
+        }
+        return valueOf(ExactArithmetic.add(operand(first, second),
+                operand(second, first)));
+    }
+
+
+    static Number subtract(Number first, Number second) {
+        Decimal firstValue = first.decimal();
+        Decimal secondValue = second.decimal();
+        if (firstValue != null && secondValue != null) {
+            try {
+                return valueOf(firstValue.subtract(secondValue));
+            } catch (ArithmeticException e) {
+                // Overflowed, so subtract as Apfloats.
+            }
+        }
+        return valueOf(ExactArithmetic.subtract(operand(first, second),
+                operand(second, first)));
+    }
+
+
+    static Number multiply(Number first, Number second) {
+        Decimal firstValue = first.decimal();
+        Decimal secondValue = second.decimal();
+        if (firstValue != null && secondValue != null) {
+            try {
+                return valueOf(firstValue.multiply(secondValue));
+            } catch (ArithmeticException e) {
+                // Overflowed, so multiply as Apfloats.
+            }
+        }
+        return valueOf(ExactArithmetic.multiply(operand(first, second),
+                operand(second, first)));
+    }
+
+
+    /**
+     * Divides one Number by another.
+     *
+     * @throws EvaluationException If the divisor is zero.
+     */
+    static Number divide(Number first, Number second) {
+        Decimal firstValue = first.decimal();
+        Decimal secondValue = second.decimal();
+        if (firstValue != null && secondValue != null) {
+            try {
+                return valueOf(firstValue.divide(secondValue));
+            } catch (ArithmeticException e) {
+                // Does not terminate, so divide as Apfloats, which also
+                // reports division by zero.
+            }
+        }
+        return valueOf(ExactArithmetic.divide(operand(first, second),
+                operand(second, first)));
+    }
+
+
+    /**
+     * Raises one Number to the power of another. Powers that are inexact are
+     * rounded to the precision.
+     *
+     * @throws EvaluationException If zero is raised to a negative power.
+     */
+    static Number pow(Number base, Number exponent) {
+        Decimal baseValue = base.decimal();
+        Decimal exponentValue = exponent.decimal();
+        if (baseValue != null && exponentValue != null
+                && exponentValue.isLong()) {
+            try {
+                return valueOf(baseValue.pow(exponentValue.unscaled,
+                        ExactArithmetic.exactDigits()));
+            } catch (ArithmeticException e) {
+                // Too large or does not terminate, so raise as Apfloats,
+                // which also reports division by zero.
+            }
+        }
+        Apfloat result = ExactArithmetic.pow(operand(base, exponent),
+                operand(exponent, base));
+        if (!ExactArithmetic.isExact(result))
+            result = precisionRound(result);
+        return valueOf(result);
+    }
+
+
+    static Number negate(Number number) {
+        Decimal value = number.decimal();
+        if (value != null) {
+            try {
+                return valueOf(value.negate());
+            } catch (ArithmeticException e) {
+                // Overflowed, so negate as an Apfloat.
+            }
+        }
+        return valueOf(((Apfloat)number.getValue()).negate());
+    }
+
+
     @Override
     public Function evaluate(Map<String, Function> varMap) {
-        return this;
+        return intern();
     }
 
 
@@ -52,16 +239,223 @@ public class Number extends Function {
     }
 
 
+    @Override
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
+        return Number.ZERO;
+    }
+
+
+    /**
+     * Get the value of this Number as a double. Digits beyond the precision of
+     * a double are lost.
+     *
+     * @return The closest double to the value of this Number.
+     */
+    public double doubleValue() {
+        Decimal value = decimal();
+        if (value != null)
+            return value.doubleValue();
+        return ExactArithmetic.doubleValue((Apfloat)getValue());
+    }
+
+
+    /**
+     * Get the value of this Number as an Apfloat, which compact Numbers
+     * create when first needed.
+     *
+     * @return The value of this Number.
+     */
+    @Override
+    Object getValue() {
+        if (!(value instanceof Decimal))
+            return value;
+        Apfloat result = apfloat;
+        if (result == null) {
+            result = ((Decimal)value).toApfloat();
+            apfloat = result;
+        }
+        return result;
+    }
+
+
+    /**
+     * Get the compact value of this Number.
+     *
+     * @return The compact value, or null if this Number is held as an
+     *         Apfloat.
+     */
+    Decimal decimal() {
+        return value instanceof Decimal ? (Decimal)value : null;
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        return new DualNumber((Apfloat)getValue(), Apfloat.ZERO);
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return Interval.of((Apfloat)getValue());
+    }
+
+
+    @Override
+    boolean isLeaf() {
+        return true;
+    }
+
+
+    @Override
+    Function combine(Function first, Function second) {
+
+        // Leaves have no children, so they are their own values.
+        return intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+
+        // Leaves have no children, so they are their own copies.
+        return this;
+    }
+
+
+    @Override
+    boolean identical(Function other) {
+
+        // Numbers with the same value but different precisions produce
+        // different results when used in calculations. Compact values are
+        // exact, and are only equal to other compact values.
+        if (!super.identical(other))
+            return false;
+        return value instanceof Decimal || ((Apfloat)value).precision()
+                == ((Apfloat)other.value).precision();
+    }
+
+
+    /**
+     * Tests for equality between this and another Number. Numbers are equal
+     * if their values are the same number, whether exact or not, so 1/3 does
+     * not equal 0.3333 at any precision.
+     *
+     * @param other The other Number with which to determine equality.
+     *
+     * @return True if this Number equals the other, false otherwise.
+     */
     @Override
     public boolean equals(Object other) {
+        if (this == other)
+            return true;
         if (!(other instanceof Number))
             return false;
-        return value.equals(((Number)other).getValue());
+        Number number = (Number)other;
+        Decimal value = decimal();
+        Decimal otherValue = number.decimal();
+        if (value != null && otherValue != null)
+            return value.equals(otherValue);
+
+        // Values that are the same number have the same nearest double, so
+        // values whose nearest doubles differ are not compared further.
+        if (doubleValue() != number.doubleValue())
+            return false;
+        return ExactArithmetic.equal((Apfloat)getValue(),
+                (Apfloat)number.getValue());
+    }
+
+
+    @Override
+    public int hashCode() {
+        return interned ? hash : computeHash();
+    }
+
+
+    @Override
+    int computeHash() {
+        return hashOf(doubleValue());
+    }
+
+
+    /**
+     * Computes the hash of a value. Exact and inexact values that are equal
+     * are held differently, so the hash is that of the nearest double, which
+     * is the same for values that are the same number.
+     *
+     * @param value The nearest double to the value.
+     *
+     * @return The hash.
+     */
+    static int hashOf(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return (int)(bits ^ (bits >>> 32));
     }
 
 
     @Override
     public String toString() {
-        return ((Apfloat)value).toString(PRETTY);
+
+        // Exact values that are terminating decimals are written exactly.
+        // Values held to the internal precision, whether inexact or
+        // fractions that do not terminate, are rounded to the precision, so
+        // that their guard digit is not shown. Values evaluated with a
+        // different precision keep their digits.
+        if (decimal() != null)
+            return value.toString();
+        Precision precision = Precision.get();
+        Apfloat value = ExactArithmetic.decimal((Apfloat)getValue(),
+                precision.internal());
+        if (value.precision() > precision.getDigits() && value.precision()
+                <= precision.internal())
+            value = ApfloatMath.round(value, precision.getDigits(),
+                    ROUNDING_MODE);
+        return value.toString(PRETTY);
+    }
+
+
+    /**
+     * Get the value of a Number as an operand of an operation with another.
+     * A compact value used with an inexact one is converted directly to the
+     * internal precision, rather than to a fraction that would then be
+     * divided out.
+     *
+     * @param number The Number.
+     * @param other The other operand.
+     *
+     * @return The value of the Number.
+     */
+    private static Apfloat operand(Number number, Number other) {
+        Decimal value = number.decimal();
+        if (value != null && other.decimal() == null && !ExactArithmetic
+                .isExact((Apfloat)other.getValue()))
+            return value.toApfloat(Precision.get().internal());
+        return (Apfloat)number.getValue();
+    }
+
+
+    /**
+     * Get the value of an exact Number held compactly if possible.
+     *
+     * @param value The value.
+     *
+     * @return The Decimal with the value, or otherwise the value itself.
+     */
+    private static Object compact(Apfloat value) {
+        value = ExactArithmetic.exact(value);
+        Decimal decimal = Decimal.valueOf(value);
+        return decimal == null ? value : decimal;
+    }
+
+
+    /**
+     * Parses a number from part of a string.
+     */
+    private static Object parse(String str, int start, int end) {
+        Decimal decimal = Decimal.parse(str, start, end);
+        if (decimal != null)
+            return decimal;
+        return compact(ExactArithmetic.parse(str, start, end));
     }
 }
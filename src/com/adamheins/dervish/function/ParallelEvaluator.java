@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates large Functions in parallel using a fork-join pool. The children
+ * of a node are evaluated concurrently whenever the node heads a subtree of at
+ * least a threshold number of nodes; smaller subtrees are evaluated
+ * sequentially, since the overhead of a task would outweigh the work. Once the
+ * children are evaluated, the node itself is reduced exactly as it would be by
+ * evaluate, so the result is the very same canonical Function.
+ *
+ * @author Adam
+ */
+public class ParallelEvaluator {
+
+    // Default size of the smallest subtree that is split across tasks.
+    private static final int DEFAULT_THRESHOLD = 4096;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+
+    /**
+     * Constructor. Evaluation uses the common pool and the default threshold.
+     */
+    public ParallelEvaluator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param pool The pool in which to evaluate.
+     * @param threshold The size of the smallest subtree whose children are
+     *         evaluated concurrently.
+     */
+    public ParallelEvaluator(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+
+    /**
+     * Evaluates a Function, substituting values for all variables in the
+     * passed map. The Function itself is not changed, and may still be
+     * modified afterwards.
+     *
+     * @param function The Function to evaluate.
+     * @param varMap A map of variable names and the Functions that should be
+     *         substituted into them.
+     *
+     * @return The evaluated Function.
+     *
+     * @throws EvaluationException If the Function cannot be evaluated.
+     */
+    public Function evaluate(Function function, Map<String, Function> varMap) {
+
+        // Canonical Functions cache the sizes of their subtrees, so interning
+        // first means each size is only counted once. Interning builds a
+        // canonical copy, so the caller's tree is left as it was.
+        return pool.invoke(new Task(function.intern(), varMap,
+                Precision.get()));
+    }
+
+
+    /**
+     * Task that evaluates one subtree.
+     */
+    private class Task extends RecursiveTask<Function> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Function function;
+        private final Map<String, Function> varMap;
+
+        // Precision of the thread that started the evaluation, since each
+        // worker thread has its own.
+        private final Precision precision;
+
+
+        Task(Function function, Map<String, Function> varMap,
+                Precision precision) {
+            this.function = function;
+            this.varMap = varMap;
+            this.precision = precision;
+        }
+
+
+        @Override
+        protected Function compute() {
+            Precision previous = Precision.get();
+            Precision.set(precision);
+            try {
+                return evaluate();
+            } finally {
+                Precision.set(previous);
+            }
+        }
+
+
+        private Function evaluate() {
+
+            // Leaves are evaluated as a whole, as are let expressions, whose
+            // bindings must be evaluated before their body.
+            if (function.isLeaf() || function instanceof Let
+                    || function.size() < threshold)
+                return function.evaluate(varMap);
+
+            Task secondTask = null;
+            if (function.getSecondChild() != null) {
+                secondTask = new Task(function.getSecondChild(), varMap,
+                        precision);
+                secondTask.fork();
+            }
+
+            Function first = new Task(function.getFirstChild(), varMap,
+                    precision).evaluate();
+            Function second = secondTask == null ? null : secondTask.join();
+
+            return function.combine(first, second);
+        }
+    }
+}
@@ -7,10 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
-import org.apfloat.Apfloat;
-
 /**
  * Addition operator.
  *
@@ -24,17 +20,11 @@ public class Plus extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        // Evaluate children.
-        Function first = getFirstChild().evaluate(varMap);
-        Function second = getSecondChild().evaluate(varMap);
+    Function combine(Function first, Function second) {
 
         // Check for number children, and evaluate.
         if (first instanceof Number && second instanceof Number) {
-            Apfloat firstVal = (Apfloat)first.getValue();
-            Apfloat secondVal = (Apfloat)second.getValue();
-            return new Number(firstVal.add(secondVal));
+            return Number.add((Number)first, (Number)second);
         }
 
         // Get rid of unnecessary zero terms.
@@ -48,16 +38,39 @@ public class Plus extends Function {
         me.setFirstChild(first);
         me.setSecondChild(second);
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Plus();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber first = context.dualOf(getFirstChild());
+        DualNumber second = context.dualOf(getSecondChild());
+        return new DualNumber(first.value.add(second.value),
+                first.derivative.add(second.derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).add(context.boundOf(
+                getSecondChild()));
     }
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
         Function derivative = new Plus();
-        derivative.setFirstChild(getFirstChild().differentiateInternal(var));
-        derivative.setSecondChild(getSecondChild().differentiateInternal(var));
+        derivative.setFirstChild(firstDerivative);
+        derivative.setSecondChild(secondDerivative);
         return derivative;
     }
 }
@@ -0,0 +1,971 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
+
+/**
+ * A polynomial in one or more variables, stored sparsely as the exponents of
+ * the variables in each term along with the coefficient of each term. A
+ * polynomial is evaluated using Horner's scheme, which needs one
+ * multiplication per degree rather than a power per term, and is
+ * differentiated term by term.
+ *
+ * Polynomials are leaves of a Function tree. They are created by collecting
+ * the polynomial subtrees of a Function, and are printed as the equivalent
+ * tree of ordinary operators.
+ *
+ * @author Adam
+ */
+public class Polynomial extends Function {
+
+    // Largest number of terms in a collected polynomial. Products and powers
+    // whose expansions would have more terms are not collected.
+    private static final int MAX_TERMS = 1000;
+
+    // The variables, sorted by name.
+    private final Variable[] variables;
+
+    // The exponent of each variable in each term. Terms are sorted in
+    // descending lexicographic order of their exponents, which groups them
+    // by the exponent of each variable in turn for Horner's scheme.
+    private final int[][] exponents;
+
+    // The coefficient of each term, none of which are zero.
+    private final Apfloat[] coefficients;
+
+
+    /**
+     * Constructor.
+     *
+     * @param terms The terms of the polynomial.
+     */
+    private Polynomial(Terms terms) {
+        super(terms, precedenceOf(terms), Associativity.LEFT, true);
+        this.variables = terms.variables;
+        this.exponents = terms.exponents;
+        this.coefficients = terms.coefficients;
+    }
+
+
+    /**
+     * Get the precedence of the operator at the root of the tree that a
+     * polynomial is printed as.
+     */
+    private static Precedence precedenceOf(Terms terms) {
+        if (terms.coefficients.length > 1)
+            return Precedence.ADDITION;
+
+        int factors = 0;
+        for (int exponent : terms.exponents[0]) {
+            if (exponent != 0)
+                ++factors;
+        }
+        if (factors > 1 || !terms.coefficients[0].equals(Apfloat.ONE))
+            return Precedence.MULTIPLICATION;
+        return Precedence.EXPONENTIATION;
+    }
+
+
+    /**
+     * Replaces the polynomial subtrees of a Function with Polynomials. A
+     * polynomial subtree is made only of numbers, variables, addition,
+     * subtraction, multiplication and powers with constant non-negative
+     * integer exponents. Products and powers of sums are expanded, and like
+     * terms are collected.
+     *
+     * @param function The Function.
+     *
+     * @return The Function with its polynomial subtrees collected.
+     */
+    public static Function collect(Function function) {
+
+        Map<Function, Map<Monomial, Apfloat>> polynomials
+                = new IdentityHashMap<Function, Map<Monomial, Apfloat>>();
+        Map<Function, Function> rebuilt = new IdentityHashMap<Function,
+                Function>();
+
+        // Visit the tree in post-order, so that it is known whether the
+        // children of each node are polynomials before the node itself.
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Function root = function.intern();
+        funcStack.push(root);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.peek();
+
+            if (polynomials.containsKey(current)
+                    || rebuilt.containsKey(current)) {
+                funcStack.pop();
+                continue;
+            }
+
+            if (current.isLeaf()) {
+                funcStack.pop();
+                Map<Monomial, Apfloat> terms = leafTerms(current);
+                if (terms == null)
+                    rebuilt.put(current, current);
+                else
+                    polynomials.put(current, terms);
+                continue;
+            }
+
+            // The temporaries of a let expression are substituted, since
+            // they may be part of polynomials in the body.
+            if (current instanceof Let) {
+                Function body = current.evaluate();
+                if (!polynomials.containsKey(body)
+                        && !rebuilt.containsKey(body)) {
+                    funcStack.push(body);
+                    continue;
+                }
+                funcStack.pop();
+                rebuilt.put(current, resolve(body, polynomials, rebuilt));
+                continue;
+            }
+
+            Function first = current.getFirstChild();
+            Function second = current.getSecondChild();
+
+            boolean ready = true;
+            if (second != null && !polynomials.containsKey(second)
+                    && !rebuilt.containsKey(second)) {
+                funcStack.push(second);
+                ready = false;
+            }
+            if (!polynomials.containsKey(first)
+                    && !rebuilt.containsKey(first)) {
+                funcStack.push(first);
+                ready = false;
+            }
+            if (!ready)
+                continue;
+
+            funcStack.pop();
+            Map<Monomial, Apfloat> terms = nodeTerms(current,
+                    polynomials.get(first), polynomials.get(second));
+            if (terms != null) {
+                polynomials.put(current, terms);
+            } else {
+                rebuilt.put(current, current.combine(resolve(first,
+                        polynomials, rebuilt), second == null ? null
+                        : resolve(second, polynomials, rebuilt)));
+            }
+        }
+
+        return resolve(root, polynomials, rebuilt);
+    }
+
+
+    /**
+     * Replaces the Polynomials in a Function with the equivalent trees of
+     * ordinary operators in Horner form, which is how a polynomial is
+     * evaluated by those that only understand the ordinary operators.
+     *
+     * @param function The Function.
+     *
+     * @return The Function without Polynomials.
+     */
+    public static Function expand(Function function) {
+
+        Map<Function, Function> expanded = new IdentityHashMap<Function,
+                Function>();
+
+        Deque<Function> funcStack = new ArrayDeque<Function>();
+        Function root = function.intern();
+        funcStack.push(root);
+
+        while (!funcStack.isEmpty()) {
+            Function current = funcStack.peek();
+
+            if (expanded.containsKey(current)) {
+                funcStack.pop();
+                continue;
+            }
+
+            if (current.isLeaf()) {
+                funcStack.pop();
+                expanded.put(current, current instanceof Polynomial
+                        ? ((Polynomial)current).toHorner() : current);
+                continue;
+            }
+
+            if (current instanceof Let) {
+                Function body = current.evaluate();
+                if (!expanded.containsKey(body)) {
+                    funcStack.push(body);
+                    continue;
+                }
+                funcStack.pop();
+                expanded.put(current, expanded.get(body));
+                continue;
+            }
+
+            Function first = current.getFirstChild();
+            Function second = current.getSecondChild();
+
+            boolean ready = true;
+            if (second != null && !expanded.containsKey(second)) {
+                funcStack.push(second);
+                ready = false;
+            }
+            if (!expanded.containsKey(first)) {
+                funcStack.push(first);
+                ready = false;
+            }
+            if (!ready)
+                continue;
+
+            funcStack.pop();
+            expanded.put(current, current.combine(expanded.get(first),
+                    second == null ? null : expanded.get(second)));
+        }
+
+        return expanded.get(root);
+    }
+
+
+    /**
+     * Get the equivalent tree of ordinary operators, as a sum of products.
+     *
+     * @return The equivalent Function.
+     */
+    public Function toFunction() {
+        return expanded(variables);
+    }
+
+
+    /**
+     * Get the equivalent tree of ordinary operators, in Horner form.
+     *
+     * @return The equivalent Function.
+     */
+    public Function toHorner() {
+        return horner(FUNCTION, Arrays.<Function>asList(variables));
+    }
+
+
+    @Override
+    public Function evaluate(Map<String, Function> varMap) {
+        return substitute(new EvaluationContext(varMap));
+    }
+
+
+    @Override
+    Function substitute(EvaluationContext context) {
+
+        Function[] values = new Function[variables.length];
+        boolean numeric = true;
+        boolean changed = false;
+        boolean simple = true;
+        for (int i = 0; i < variables.length; ++i) {
+            values[i] = context.valueOf(variables[i]);
+            numeric &= values[i] instanceof Number;
+            changed |= values[i] != variables[i];
+            simple &= values[i] instanceof Variable
+                    || (values[i] instanceof Number
+                            && !(values[i] instanceof Constant));
+        }
+
+        if (!changed)
+            return intern();
+
+        if (numeric) {
+            List<Apfloat> numbers = new ArrayList<Apfloat>(values.length);
+            for (Function value : values)
+                numbers.add((Apfloat)value.getValue());
+            return Number.valueOf(horner(APFLOAT, numbers));
+        }
+
+        // Substituting numbers for some of the variables, or renaming them,
+        // leaves a polynomial in the remaining variables.
+        if (simple)
+            return create(substitute(values));
+
+        return expanded(values);
+    }
+
+
+    @Override
+    protected Function differentiateInternal(String var) {
+        return derivative(VariableTable.INSTANCE.find(var), null, null);
+    }
+
+
+    @Override
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
+
+        int position = -1;
+        for (int i = 0; i < variables.length; ++i) {
+            if (variables[i].index == index)
+                position = i;
+        }
+        if (position < 0)
+            return Number.ZERO;
+
+        Map<Monomial, Apfloat> derivative = new HashMap<Monomial, Apfloat>();
+        for (int term = 0; term < coefficients.length; ++term) {
+            int exponent = exponents[term][position];
+            if (exponent == 0)
+                continue;
+
+            SortedMap<String, Integer> powers = new TreeMap<String,
+                    Integer>();
+            for (int i = 0; i < variables.length; ++i) {
+                int power = i == position ? exponent - 1 : exponents[term][i];
+                if (power != 0)
+                    powers.put(variables[i].getName(), power);
+            }
+            derivative.put(new Monomial(powers), ExactArithmetic.multiply(
+                    coefficients[term], ExactArithmetic.valueOf(exponent)));
+        }
+
+        return create(derivative);
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        List<DualNumber> values = new ArrayList<DualNumber>();
+        for (Variable variable : variables)
+            values.add(context.dualOf(variable));
+        return horner(DUAL, values);
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        List<Interval> values = new ArrayList<Interval>();
+        for (Variable variable : variables)
+            values.add(context.boundOf(variable));
+        return horner(INTERVAL, values);
+    }
+
+
+    @Override
+    public List<String> getVariables() {
+        List<String> varList = new ArrayList<String>();
+        for (Variable variable : variables)
+            varList.add(variable.getName());
+        return varList;
+    }
+
+
+    @Override
+    BitSet computeFreeVariables() {
+        BitSet set = new BitSet();
+        for (Variable variable : variables)
+            set.set(variable.index);
+        return set;
+    }
+
+
+    @Override
+    boolean isLeaf() {
+        return true;
+    }
+
+
+    @Override
+    Function combine(Function first, Function second) {
+
+        // No values are substituted, so the polynomial is its own value.
+        return intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+
+        // Leaves have no children, so they are their own copies.
+        return this;
+    }
+
+
+    @Override
+    public String toString() {
+        return toFunction().toString();
+    }
+
+
+    /**
+     * Evaluates the polynomial using Horner's scheme.
+     *
+     * @param arithmetic The arithmetic with which to evaluate.
+     * @param values The value of each variable.
+     *
+     * @return The value of the polynomial.
+     */
+    private <T> T horner(Arithmetic<T> arithmetic, List<T> values) {
+        return horner(arithmetic, values, 0, coefficients.length, 0);
+    }
+
+
+    /**
+     * Evaluates a range of terms using Horner's scheme. The terms all have
+     * the same exponents of the variables before the given one, which are
+     * ignored. The terms are grouped by the exponent of the given variable,
+     * which is factored out of each group in turn.
+     *
+     * @param arithmetic The arithmetic with which to evaluate.
+     * @param values The value of each variable.
+     * @param start The index of the first term.
+     * @param end The index after the last term.
+     * @param var The index of the variable.
+     *
+     * @return The value of the terms, without the earlier variables.
+     */
+    private <T> T horner(Arithmetic<T> arithmetic, List<T> values, int start,
+            int end, int var) {
+
+        // With every variable factored out, only the coefficient is left.
+        if (var == variables.length)
+            return arithmetic.constant(coefficients[start]);
+
+        T result = null;
+        int degree = 0;
+        while (start < end) {
+            int exponent = exponents[start][var];
+            int next = start + 1;
+            while (next < end && exponents[next][var] == exponent)
+                ++next;
+
+            T group = horner(arithmetic, values, start, next, var + 1);
+            if (result == null) {
+                result = group;
+            } else {
+                result = arithmetic.add(arithmetic.multiply(result, arithmetic
+                        .power(values.get(var), degree - exponent)), group);
+            }
+
+            degree = exponent;
+            start = next;
+        }
+
+        if (degree == 0)
+            return result;
+        return arithmetic.multiply(result, arithmetic.power(values.get(var),
+                degree));
+    }
+
+
+    /**
+     * Builds the polynomial as a sum of products, with a value in place of
+     * each variable.
+     *
+     * @param values The value of each variable.
+     *
+     * @return The sum of products.
+     */
+    private Function expanded(Function[] values) {
+
+        Function sum = null;
+        for (int term = 0; term < coefficients.length; ++term) {
+            Apfloat coefficient = coefficients[term];
+
+            // Terms after the first are subtracted rather than added if their
+            // coefficients are negative.
+            boolean subtract = sum != null && coefficient.signum() < 0;
+            if (subtract)
+                coefficient = coefficient.negate();
+
+            // The coefficient leads the product, unless it is minus one, in
+            // which case the product is negated.
+            boolean negate = coefficient.equals(Apfloat.ONE.negate());
+            Function product = negate ? Number.ONE
+                    : FUNCTION.constant(coefficient);
+            for (int i = 0; i < values.length; ++i) {
+                int exponent = exponents[term][i];
+                if (exponent != 0)
+                    product = FUNCTION.multiply(product, FUNCTION.power(
+                            values[i], exponent));
+            }
+            if (negate)
+                product = new Negative().combine(product, null);
+
+            if (sum == null)
+                sum = product;
+            else if (subtract)
+                sum = new Minus().combine(sum, product);
+            else
+                sum = FUNCTION.add(sum, product);
+        }
+
+        return sum;
+    }
+
+
+    /**
+     * Substitutes numbers and variables for the variables of the polynomial.
+     *
+     * @param values The number or variable to substitute for each variable.
+     *
+     * @return The terms of the resulting polynomial.
+     */
+    private Map<Monomial, Apfloat> substitute(Function[] values) {
+
+        Map<Monomial, Apfloat> result = new HashMap<Monomial, Apfloat>();
+        for (int term = 0; term < coefficients.length; ++term) {
+            Apfloat coefficient = coefficients[term];
+            SortedMap<String, Integer> powers = new TreeMap<String,
+                    Integer>();
+
+            for (int i = 0; i < values.length; ++i) {
+                int exponent = exponents[term][i];
+                if (exponent == 0)
+                    continue;
+                if (values[i] instanceof Number) {
+                    coefficient = ExactArithmetic.multiply(coefficient,
+                            APFLOAT.power((Apfloat)values[i].getValue(),
+                            exponent));
+                } else {
+                    String name = ((Variable)values[i]).getName();
+                    Integer power = powers.get(name);
+                    powers.put(name, power == null ? exponent
+                            : power + exponent);
+                }
+            }
+
+            addTerm(result, new Monomial(powers), coefficient);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Resolves a node visited while collecting polynomials to the Function
+     * that replaces it.
+     */
+    private static Function resolve(Function function,
+            Map<Function, Map<Monomial, Apfloat>> polynomials,
+            Map<Function, Function> rebuilt) {
+        Function result = rebuilt.get(function);
+        if (result == null) {
+            result = create(polynomials.get(function));
+            rebuilt.put(function, result);
+        }
+        return result;
+    }
+
+
+    /**
+     * Get the terms of a leaf, if it is a polynomial.
+     *
+     * @param leaf The leaf.
+     *
+     * @return The terms of the leaf, or null if it is not a polynomial.
+     */
+    private static Map<Monomial, Apfloat> leafTerms(Function leaf) {
+
+        Map<Monomial, Apfloat> terms = new HashMap<Monomial, Apfloat>();
+        if (leaf instanceof Variable) {
+            SortedMap<String, Integer> powers = new TreeMap<String,
+                    Integer>();
+            powers.put(((Variable)leaf).getName(), 1);
+            terms.put(new Monomial(powers), Apfloat.ONE);
+        } else if (leaf instanceof Polynomial) {
+            Polynomial polynomial = (Polynomial)leaf;
+            terms = polynomial.substitute(polynomial.variables);
+        } else if (leaf instanceof Number && !(leaf instanceof Constant)) {
+            addTerm(terms, Monomial.ONE, (Apfloat)leaf.getValue());
+        } else {
+
+            // The values of constants depend on the precision, so they are
+            // not collected into coefficients.
+            return null;
+        }
+        return terms;
+    }
+
+
+    /**
+     * Get the terms of an operator, if it is a polynomial.
+     *
+     * @param node The operator.
+     * @param first The terms of its first child, or null if the child is not
+     *         a polynomial.
+     * @param second The terms of its second child, or null if the child is
+     *         not a polynomial.
+     *
+     * @return The terms of the operator, or null if it is not a polynomial.
+     */
+    private static Map<Monomial, Apfloat> nodeTerms(Function node,
+            Map<Monomial, Apfloat> first, Map<Monomial, Apfloat> second) {
+
+        if (first == null)
+            return null;
+        if (node instanceof Negative)
+            return scale(first, Apfloat.ONE.negate());
+
+        if (second == null)
+            return null;
+        if (node instanceof Plus)
+            return add(first, second);
+        if (node instanceof Minus)
+            return add(first, scale(second, Apfloat.ONE.negate()));
+        if (node instanceof Multiply)
+            return multiply(first, second);
+
+        // Only constant non-negative integer powers are polynomials.
+        if (node instanceof Exponent && second.size() <= 1) {
+            Apfloat exponent = second.isEmpty() ? Apfloat.ZERO
+                    : second.get(Monomial.ONE);
+            if (exponent != null && exponent.signum() >= 0
+                    && exponent.frac().signum() == 0
+                    && exponent.compareTo(new Apfloat(MAX_TERMS)) <= 0)
+                return power(first, exponent.intValue());
+        }
+        return null;
+    }
+
+
+    private static Map<Monomial, Apfloat> add(Map<Monomial, Apfloat> first,
+            Map<Monomial, Apfloat> second) {
+        Map<Monomial, Apfloat> result = new HashMap<Monomial, Apfloat>(first);
+        for (Map.Entry<Monomial, Apfloat> term : second.entrySet())
+            addTerm(result, term.getKey(), term.getValue());
+        return result.size() > MAX_TERMS ? null : result;
+    }
+
+
+    private static Map<Monomial, Apfloat> scale(Map<Monomial, Apfloat> terms,
+            Apfloat factor) {
+        Map<Monomial, Apfloat> result = new HashMap<Monomial, Apfloat>();
+        for (Map.Entry<Monomial, Apfloat> term : terms.entrySet())
+            result.put(term.getKey(), ExactArithmetic.multiply(
+                    term.getValue(), factor));
+        return result;
+    }
+
+
+    private static Map<Monomial, Apfloat> multiply(
+            Map<Monomial, Apfloat> first, Map<Monomial, Apfloat> second) {
+        if ((long)first.size() * second.size() > MAX_TERMS * MAX_TERMS)
+            return null;
+
+        Map<Monomial, Apfloat> result = new HashMap<Monomial, Apfloat>();
+        for (Map.Entry<Monomial, Apfloat> a : first.entrySet()) {
+            for (Map.Entry<Monomial, Apfloat> b : second.entrySet())
+                addTerm(result, a.getKey().multiply(b.getKey()),
+                        ExactArithmetic.multiply(a.getValue(), b.getValue()));
+        }
+        return result.size() > MAX_TERMS ? null : result;
+    }
+
+
+    private static Map<Monomial, Apfloat> power(Map<Monomial, Apfloat> base,
+            int exponent) {
+        Map<Monomial, Apfloat> result = new HashMap<Monomial, Apfloat>();
+        result.put(Monomial.ONE, Apfloat.ONE);
+        for (int i = 0; i < exponent && result != null; ++i)
+            result = multiply(result, base);
+        return result;
+    }
+
+
+    private static void addTerm(Map<Monomial, Apfloat> terms,
+            Monomial monomial, Apfloat coefficient) {
+        Apfloat sum = terms.get(monomial);
+        sum = sum == null ? coefficient : ExactArithmetic.add(sum,
+                coefficient);
+        if (sum.signum() == 0)
+            terms.remove(monomial);
+        else
+            terms.put(monomial, sum);
+    }
+
+
+    /**
+     * Creates the simplest Function with the given terms. Polynomials that
+     * are only a number or a variable are returned as such.
+     *
+     * @param terms The terms.
+     *
+     * @return The Function.
+     */
+    private static Function create(Map<Monomial, Apfloat> terms) {
+
+        if (terms.isEmpty())
+            return Number.ZERO;
+
+        if (terms.size() == 1) {
+            Map.Entry<Monomial, Apfloat> term = terms.entrySet().iterator()
+                    .next();
+            Monomial monomial = term.getKey();
+            if (monomial.powers.isEmpty())
+                return Number.valueOf(term.getValue());
+            if (term.getValue().equals(Apfloat.ONE)
+                    && monomial.powers.size() == 1
+                    && monomial.powers.values().contains(1))
+                return new Variable(monomial.powers.firstKey()).intern();
+        }
+
+        TreeSet<String> names = new TreeSet<String>();
+        for (Monomial monomial : terms.keySet())
+            names.addAll(monomial.powers.keySet());
+        Variable[] variables = new Variable[names.size()];
+        int index = 0;
+        for (String name : names)
+            variables[index++] = (Variable)new Variable(name).intern();
+
+        List<int[]> rows = new ArrayList<int[]>();
+        final Map<int[], Apfloat> coefficientOf = new IdentityHashMap<int[],
+                Apfloat>();
+        for (Map.Entry<Monomial, Apfloat> term : terms.entrySet()) {
+            int[] row = new int[variables.length];
+            for (int i = 0; i < variables.length; ++i) {
+                Integer power = term.getKey().powers.get(variables[i]
+                        .getName());
+                row[i] = power == null ? 0 : power;
+            }
+            rows.add(row);
+            coefficientOf.put(row, term.getValue());
+        }
+
+        Collections.sort(rows, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                for (int i = 0; i < a.length; ++i) {
+                    if (a[i] != b[i])
+                        return b[i] - a[i];
+                }
+                return 0;
+            }
+        });
+
+        int[][] exponents = rows.toArray(new int[rows.size()][]);
+        Apfloat[] coefficients = new Apfloat[exponents.length];
+        for (int i = 0; i < exponents.length; ++i)
+            coefficients[i] = coefficientOf.get(exponents[i]);
+
+        return new Polynomial(new Terms(variables, exponents, coefficients))
+                .intern();
+    }
+
+
+    /**
+     * The terms of a polynomial, which are the value of a Polynomial and
+     * determine its equality.
+     */
+    private static final class Terms {
+
+        final Variable[] variables;
+        final int[][] exponents;
+        final Apfloat[] coefficients;
+
+
+        Terms(Variable[] variables, int[][] exponents,
+                Apfloat[] coefficients) {
+            this.variables = variables;
+            this.exponents = exponents;
+            this.coefficients = coefficients;
+        }
+
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Terms))
+                return false;
+            Terms terms = (Terms)other;
+            return Arrays.equals(variables, terms.variables)
+                    && Arrays.deepEquals(exponents, terms.exponents)
+                    && Arrays.equals(coefficients, terms.coefficients);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(variables)
+                    + Arrays.deepHashCode(exponents))
+                    + Arrays.hashCode(coefficients);
+        }
+    }
+
+
+    /**
+     * A product of powers of variables, without a coefficient.
+     */
+    private static final class Monomial {
+
+        static final Monomial ONE = new Monomial(new TreeMap<String,
+                Integer>());
+
+        // The exponent of each variable, none of which are zero.
+        final SortedMap<String, Integer> powers;
+
+
+        Monomial(SortedMap<String, Integer> powers) {
+            this.powers = powers;
+        }
+
+
+        Monomial multiply(Monomial other) {
+            SortedMap<String, Integer> product = new TreeMap<String,
+                    Integer>(powers);
+            for (Map.Entry<String, Integer> power : other.powers.entrySet()) {
+                Integer exponent = product.get(power.getKey());
+                product.put(power.getKey(), exponent == null ? power
+                        .getValue() : exponent + power.getValue());
+            }
+            return new Monomial(product);
+        }
+
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Monomial
+                    && powers.equals(((Monomial)other).powers);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return powers.hashCode();
+        }
+    }
+
+
+    /**
+     * The operations with which Horner's scheme evaluates a polynomial.
+     */
+    private abstract static class Arithmetic<T> {
+        abstract T constant(Apfloat value);
+        abstract T add(T first, T second);
+        abstract T multiply(T first, T second);
+        abstract T power(T base, int exponent);
+    }
+
+
+    // Exact arithmetic on numbers.
+    private static final Arithmetic<Apfloat> APFLOAT
+            = new Arithmetic<Apfloat>() {
+        @Override
+        Apfloat constant(Apfloat value) {
+            return value;
+        }
+
+        @Override
+        Apfloat add(Apfloat first, Apfloat second) {
+            return ExactArithmetic.add(first, second);
+        }
+
+        @Override
+        Apfloat multiply(Apfloat first, Apfloat second) {
+            return ExactArithmetic.multiply(first, second);
+        }
+
+        @Override
+        Apfloat power(Apfloat base, int exponent) {
+            return ExactArithmetic.pow(base, ExactArithmetic.valueOf(exponent));
+        }
+    };
+
+
+    // Arithmetic on values together with their directional derivatives.
+    private static final Arithmetic<DualNumber> DUAL
+            = new Arithmetic<DualNumber>() {
+        @Override
+        DualNumber constant(Apfloat value) {
+            return new DualNumber(value, Apfloat.ZERO);
+        }
+
+        @Override
+        DualNumber add(DualNumber first, DualNumber second) {
+            return new DualNumber(first.value.add(second.value),
+                    first.derivative.add(second.derivative));
+        }
+
+        @Override
+        DualNumber multiply(DualNumber first, DualNumber second) {
+            return new DualNumber(first.value.multiply(second.value),
+                    first.derivative.multiply(second.value).add(
+                            first.value.multiply(second.derivative)));
+        }
+
+        @Override
+        DualNumber power(DualNumber base, int exponent) {
+            Apfloat lower = ApfloatMath.pow(base.value, exponent - 1);
+            return new DualNumber(lower.multiply(base.value),
+                    lower.multiply(new Apfloat(exponent)).multiply(
+                            base.derivative));
+        }
+    };
+
+
+    // Interval arithmetic, for bounding the value.
+    private static final Arithmetic<Interval> INTERVAL
+            = new Arithmetic<Interval>() {
+        @Override
+        Interval constant(Apfloat value) {
+            return Interval.of(value);
+        }
+
+        @Override
+        Interval add(Interval first, Interval second) {
+            return first.add(second);
+        }
+
+        @Override
+        Interval multiply(Interval first, Interval second) {
+            return first.multiply(second);
+        }
+
+        @Override
+        Interval power(Interval base, int exponent) {
+            return base.pow(Interval.point(exponent));
+        }
+    };
+
+
+    // Arithmetic on Functions, which builds trees of ordinary operators.
+    private static final Arithmetic<Function> FUNCTION
+            = new Arithmetic<Function>() {
+        @Override
+        Function constant(Apfloat value) {
+            return Number.valueOf(value);
+        }
+
+        @Override
+        Function add(Function first, Function second) {
+            if (second instanceof Number
+                    && ((Apfloat)second.getValue()).signum() < 0)
+                return new Minus().combine(first, Number.valueOf(((Apfloat)
+                        second.getValue()).negate()));
+            return new Plus().combine(first, second);
+        }
+
+        @Override
+        Function multiply(Function first, Function second) {
+            return new Multiply().combine(first, second);
+        }
+
+        @Override
+        Function power(Function base, int exponent) {
+            return new Exponent().combine(base, Number.valueOf(
+                    ExactArithmetic.valueOf(exponent)));
+        }
+    };
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+/**
+ * The precision with which Functions are evaluated. Each thread has a current
+ * precision, which is used by every evaluation on that thread unless another
+ * is passed for a single call.
+ *
+ * Values are kept with one more digit than the precision, as a guard against
+ * the error of inexact operations. Normally, the results of inexact operations
+ * such as sin or log are rounded to the precision as soon as they are
+ * computed. If rounding is deferred, results keep their guard digit and are
+ * only rounded when they are output, which is cheaper and slightly more
+ * accurate, but exposes the error of the guard digit to comparisons.
+ *
+ * @author Adam
+ */
+public final class Precision {
+
+    // Number of digits kept beyond the precision.
+    private static final int GUARD_DIGITS = 1;
+
+    // The precision used unless another is set.
+    public static final Precision DEFAULT = new Precision(20, false);
+
+    // Precision of each thread.
+    private static final ThreadLocal<Precision> CURRENT
+            = new ThreadLocal<Precision>() {
+        @Override
+        protected Precision initialValue() {
+            return DEFAULT;
+        }
+    };
+
+    // Number of significant digits.
+    private final long digits;
+
+    // True if rounding is deferred until output, false otherwise.
+    private final boolean deferred;
+
+
+    /**
+     * Constructor.
+     *
+     * @param digits The number of significant digits.
+     * @param deferred True if rounding should be deferred until output, false
+     *         if results should be rounded as they are computed.
+     *
+     * @throws IllegalArgumentException If the number of digits is not
+     *         positive.
+     */
+    public Precision(long digits, boolean deferred) {
+        if (digits < 1)
+            throw new IllegalArgumentException("Precision must be at least one"
+                    + " digit.");
+        this.digits = digits;
+        this.deferred = deferred;
+    }
+
+
+    /**
+     * Get the precision of the current thread.
+     *
+     * @return The current precision.
+     */
+    public static Precision get() {
+        return CURRENT.get();
+    }
+
+
+    /**
+     * Set the precision of the current thread.
+     *
+     * @param precision The new precision, or null to restore the default.
+     */
+    public static void set(Precision precision) {
+        if (precision == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(precision);
+    }
+
+
+    /**
+     * Get the number of significant digits.
+     *
+     * @return The number of digits.
+     */
+    public long getDigits() {
+        return digits;
+    }
+
+
+    /**
+     * Check if rounding is deferred until output.
+     *
+     * @return True if rounding is deferred, false otherwise.
+     */
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+
+    /**
+     * Get the number of digits that values retain internally.
+     *
+     * @return The internal precision.
+     */
+    long internal() {
+        return digits + GUARD_DIGITS;
+    }
+
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Precision))
+            return false;
+        Precision precision = (Precision)other;
+        return digits == precision.digits && deferred == precision.deferred;
+    }
+
+
+    @Override
+    public int hashCode() {
+        return (int)(digits ^ (digits >>> 32)) * 2 + (deferred ? 1 : 0);
+    }
+
+
+    @Override
+    public String toString() {
+        return digits + " digits" + (deferred ? ", deferred rounding" : "");
+    }
+}
@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 import org.apfloat.ApfloatMath;
 
@@ -25,30 +23,55 @@ public class Sin extends Function {
 
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        Function child = getFirstChild().evaluate(varMap);
+    Function combine(Function child, Function second) {
 
         if (child instanceof Number) {
-            Apfloat result = ApfloatMath.sin((Apfloat)child.getValue());
-            return new Number(precisionRound(result));
+            Apfloat result = ApfloatMath.sin(finite((Apfloat)child.getValue()));
+            return new Number(precisionRound(result)).intern();
         }
 
         Function me = new Sin();
         me.setFirstChild(child);
 
-        return me;
+        return me.intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
+        return new Sin();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber child = context.dualOf(getFirstChild());
+        Apfloat value = precisionRound(ApfloatMath.sin(finite(child.value)));
+        if (child.derivative.signum() == 0)
+            return new DualNumber(value, Apfloat.ZERO);
+
+        Apfloat derivative = ApfloatMath.cos(finite(child.value))
+                .multiply(child.derivative);
+        return new DualNumber(value, precisionRound(derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).sin();
     }
 
+
     @Override
-    public Function differentiateInternal(String var) {
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
         Function mult = new Multiply();
         Function cos = new Cos();
 
         cos.setFirstChild(getFirstChild().evaluate());
         mult.setFirstChild(cos);
-        mult.setSecondChild(getFirstChild().differentiateInternal(var));
+        mult.setSecondChild(firstDerivative);
 
         return mult;
     }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The variables of a session, each of which is given a slot when it is
+ * declared. Slots are dense and start from zero, so the values of the
+ * variables can be given to {@link Function#evaluate(Function[], SymbolTable)}
+ * in an array no longer than the number of variables in the session.
+ *
+ * @author Adam
+ */
+public class SymbolTable {
+
+    // The slot of each variable.
+    private final Map<String, Integer> slots;
+
+    // The name of the variable in each slot.
+    private final List<String> names;
+
+    // The index in the VariableTable of the variable in each slot.
+    private int[] indices;
+
+
+    /**
+     * Constructor.
+     */
+    public SymbolTable() {
+        slots = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
+        indices = new int[8];
+    }
+
+
+    /**
+     * Get the slot of a variable, giving it the next slot if it does not
+     * already have one.
+     *
+     * @param name The name of the variable.
+     *
+     * @return The slot of the variable.
+     */
+    public synchronized int slotOf(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(name, slot);
+            names.add(name);
+            if (slot == indices.length)
+                indices = Arrays.copyOf(indices, 2 * slot);
+            indices[slot] = VariableTable.INSTANCE.indexOf(name);
+        }
+        return slot;
+    }
+
+
+    /**
+     * Get the slot of a variable without giving it one.
+     *
+     * @param name The name of the variable.
+     *
+     * @return The slot of the variable, or -1 if it has none.
+     */
+    public synchronized int find(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+
+    /**
+     * Get the name of the variable in a slot.
+     *
+     * @param slot The slot.
+     *
+     * @return The name of the variable.
+     *
+     * @throws IndexOutOfBoundsException If no variable has the slot.
+     */
+    public synchronized String nameOf(int slot) {
+        return names.get(slot);
+    }
+
+
+    /**
+     * Get the number of variables in the table, which is one more than the
+     * largest slot.
+     *
+     * @return The number of variables.
+     */
+    public synchronized int size() {
+        return names.size();
+    }
+
+
+    /**
+     * Get the index in the VariableTable of the variable in a slot.
+     *
+     * @param slot The slot.
+     *
+     * @return The index of the variable.
+     */
+    synchronized int indexOf(int slot) {
+        if (slot >= names.size())
+            throw new IndexOutOfBoundsException("No variable has slot "
+                    + slot + ".");
+        return indices[slot];
+    }
+}
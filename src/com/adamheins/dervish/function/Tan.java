@@ -7,8 +7,6 @@
 
 package com.adamheins.dervish.function;
 
-import java.util.Map;
-
 import org.apfloat.Apfloat;
 import org.apfloat.ApfloatMath;
 
@@ -24,19 +22,17 @@ public class Tan extends Function {
     }
 
     @Override
-    public Function evaluate(Map<String, Function> varMap) {
-
-        Function child = getFirstChild().evaluate(varMap);
+    Function combine(Function child, Function second) {
 
         if(child instanceof Number) {
-            Apfloat result = ApfloatMath.tan((Apfloat)child.getValue());
-            return new Number(precisionRound(result));
+            Apfloat result = ApfloatMath.tan(finite((Apfloat)child.getValue()));
+            return new Number(precisionRound(result)).intern();
         }
 
         Function me = new Tan();
         me.setFirstChild(child);
 
-        return me;
+        return me.intern();
     }
 
     /*
@@ -49,10 +45,36 @@ public class Tan extends Function {
 
 
     @Override
-    public Function differentiateInternal(String var) {
+    Function emptyCopy() {
+        return new Tan();
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+        DualNumber child = context.dualOf(getFirstChild());
+        Apfloat value = precisionRound(ApfloatMath.tan(finite(child.value)));
+        if (child.derivative.signum() == 0)
+            return new DualNumber(value, Apfloat.ZERO);
+
+        Apfloat cos = ApfloatMath.cos(finite(child.value));
+        Apfloat derivative = child.derivative.divide(cos.multiply(cos));
+        return new DualNumber(value, precisionRound(derivative));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+        return context.boundOf(getFirstChild()).tan();
+    }
+
+
+    @Override
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
         Function div = new Divide();
-        div.setFirstChild(getFirstChild().differentiateInternal(var));
+        div.setFirstChild(firstDerivative);
 
         Function pow = new Exponent();
         Function child = getFirstChild().evaluate();
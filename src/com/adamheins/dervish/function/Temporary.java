@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.Map;
+
+/**
+ * A reference to a value bound by a Let. Temporaries are named with an
+ * underscore followed by a number, so they cannot clash with user variables.
+ *
+ * @author Adam
+ */
+public class Temporary extends Variable {
+
+    // The index of the binding in its Let.
+    final int index;
+
+
+    /**
+     * Constructor.
+     *
+     * @param index The index of the binding in its Let.
+     */
+    Temporary(int index) {
+        super(Let.temporaryName(index));
+        this.index = index;
+    }
+
+
+    @Override
+    public Function evaluate(Map<String, Function> varMap) {
+
+        // The bound value has already been evaluated, so it is substituted
+        // directly rather than being evaluated again for every reference.
+        if (varMap != null && varMap.containsKey(value))
+            return varMap.get(value);
+        return intern();
+    }
+
+
+    @Override
+    Function substitute(EvaluationContext context) {
+        Function binding = context.bindingOf(this);
+        return binding == null ? intern() : binding;
+    }
+}
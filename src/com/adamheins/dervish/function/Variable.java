@@ -7,8 +7,11 @@
 
 package com.adamheins.dervish.function;
 
+import java.util.BitSet;
 import java.util.Map;
 
+import org.apfloat.Apfloat;
+
 /**
  * A variable function.
  *
@@ -16,16 +19,39 @@ import java.util.Map;
  */
 public class Variable extends Function {
 
+    // The index of this Variable in the VariableTable, by which its value is
+    // found when Functions are evaluated.
+    final int index;
+
+
     public Variable(String value) {
         super(value, Precedence.NUMBER, Associativity.LEFT, true);
+        this.index = VariableTable.INSTANCE.indexOf(value);
+    }
+
+
+    /**
+     * Get the name of this Variable.
+     *
+     * @return The name of this Variable.
+     */
+    public String getName() {
+        return (String)value;
     }
 
 
     @Override
     public Function differentiateInternal(String var) {
+        return derivative(VariableTable.INSTANCE.find(var), null, null);
+    }
+
+
+    @Override
+    Function derivative(int index, Function firstDerivative,
+            Function secondDerivative) {
 
         // Derivative of a variable is 1.
-        if (var.equals(value))
+        if (index == this.index)
             return Number.ONE;
         return Number.ZERO;
     }
@@ -36,10 +62,87 @@ public class Variable extends Function {
 
         // Replaces itself with the appropriate value, or just leaves itself in
         // if a value for this variable is not defined in the map.
-        if (varMap != null && varMap.containsKey(value))
-            return varMap.get(value).evaluate(varMap);
+        return new EvaluationContext(varMap).valueOf(this);
+    }
+
+
+    @Override
+    Function substitute(EvaluationContext context) {
+        return context.valueOf(this);
+    }
+
+
+    @Override
+    DualNumber dual(DualContext context) {
+
+        if (context.varMap == null || !context.varMap.containsKey(value))
+            throw new EvaluationException("Variable '" + value
+                    + "' has no value.");
+
+        // Variables along the direction are independent, so their values are
+        // substituted as they are.
+        if (context.direction != null && context.direction.containsKey(value))
+            return new DualNumber(numericValue(context.varMap.get(value)),
+                    numericValue(context.direction.get(value)));
+
+        // Other variables may be defined in terms of those along the
+        // direction, so the derivative passes through their values.
+        return context.dualOf(context.varMap.get(value));
+    }
+
+
+    @Override
+    Interval bound(IntervalContext context) {
+
+        // A variable without a value could be anything.
+        if (context.varMap == null || !context.varMap.containsKey(value))
+            return Interval.ENTIRE;
+        return context.boundOf(context.varMap.get(value));
+    }
+
+
+    /**
+     * Evaluates the value of a variable to a number.
+     *
+     * @param function The value of the variable.
+     *
+     * @return The number that the value evaluates to.
+     *
+     * @throws EvaluationException If the value does not evaluate to a number.
+     */
+    private Apfloat numericValue(Function function) {
+        Function number = function == null ? null : function.evaluate();
+        if (!(number instanceof Number))
+            throw new EvaluationException("Variable '" + value
+                    + "' has no value.");
+        return (Apfloat)number.getValue();
+    }
+
+
+    @Override
+    BitSet computeFreeVariables() {
+        return VariableTable.singleton(index);
+    }
+
+
+    @Override
+    boolean isLeaf() {
+        return true;
+    }
+
+
+    @Override
+    Function combine(Function first, Function second) {
+
+        // No value is substituted, so the variable is its own value.
+        return intern();
+    }
+
+
+    @Override
+    Function emptyCopy() {
 
-        // If this variable is not defined in the map, just return itself.
+        // Leaves have no children, so they are their own copies.
         return this;
     }
 
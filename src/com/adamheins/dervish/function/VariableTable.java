@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.function;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of the names of variables, each of which is given a small index when
+ * it is first seen. Sets of variables are then stored as sets of bits at
+ * these indices, which are small and quick to intersect, and the values of
+ * variables as arrays in which each variable's value is at its index.
+ *
+ * Names are never removed, so an index always refers to the same variable.
+ *
+ * @author Adam
+ */
+final class VariableTable {
+
+    // The one table through which all variables are indexed.
+    static final VariableTable INSTANCE = new VariableTable();
+
+    // The empty set of variables. Sets of variables are shared between
+    // Functions, so they must never be modified.
+    static final BitSet NONE = new BitSet();
+
+    private final Map<String, Integer> indices;
+
+    // The name of the variable at each index.
+    private final List<String> names;
+
+
+    private VariableTable() {
+        indices = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
+    }
+
+
+    /**
+     * Get the index of a variable, adding it to the table if it is not
+     * already there.
+     *
+     * @param name The name of the variable.
+     *
+     * @return The index of the variable.
+     */
+    synchronized int indexOf(String name) {
+        Integer index = indices.get(name);
+        if (index == null) {
+            index = names.size();
+            indices.put(name, index);
+            names.add(name);
+        }
+        return index;
+    }
+
+
+    /**
+     * Get the name of the variable at an index.
+     *
+     * @param index The index of the variable.
+     *
+     * @return The name of the variable.
+     */
+    synchronized String nameOf(int index) {
+        return names.get(index);
+    }
+
+
+    /**
+     * Get the index of a variable without adding it to the table.
+     *
+     * @param name The name of the variable.
+     *
+     * @return The index of the variable, or -1 if it is not in the table, in
+     *         which case no canonical Function contains it.
+     */
+    synchronized int find(String name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+
+    /**
+     * Get the set of a number of variables. Variables that are not in the
+     * table are left out, since no canonical Function contains them.
+     *
+     * @param names The names of the variables.
+     *
+     * @return The set of the variables.
+     */
+    synchronized BitSet setOf(Collection<String> names) {
+        BitSet set = new BitSet();
+        for (String name : names) {
+            Integer index = indices.get(name);
+            if (index != null)
+                set.set(index);
+        }
+        return set;
+    }
+
+
+    /**
+     * Get the set of a single variable.
+     *
+     * @param index The index of the variable.
+     *
+     * @return The set containing only the variable.
+     */
+    static BitSet singleton(int index) {
+        BitSet set = new BitSet();
+        set.set(index);
+        return set;
+    }
+
+
+    /**
+     * Get the union of two sets of variables. Where one set contains the
+     * other, that set is returned rather than a copy, so Functions over the
+     * same variables share their sets.
+     *
+     * @param a The first set.
+     * @param b The second set, or null if there is none.
+     *
+     * @return The union of the sets.
+     */
+    static BitSet union(BitSet a, BitSet b) {
+        if (b == null || b == a)
+            return a;
+        BitSet union = (BitSet)a.clone();
+        union.or(b);
+        if (union.equals(a))
+            return a;
+        if (union.equals(b))
+            return b;
+        return union;
+    }
+}
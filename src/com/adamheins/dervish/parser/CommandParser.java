@@ -16,7 +16,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apfloat.Apfloat;
+
+import com.adamheins.dervish.compile.BatchEvaluator;
+import com.adamheins.dervish.compile.FunctionCompiler;
+import com.adamheins.dervish.compile.Gradient;
 import com.adamheins.dervish.function.Function;
+import com.adamheins.dervish.function.FunctionPrinter;
+import com.adamheins.dervish.function.Number;
+import com.adamheins.dervish.function.Precision;
+import com.adamheins.dervish.function.SymbolTable;
 
 
 /**
@@ -26,15 +35,23 @@ import com.adamheins.dervish.function.Function;
  */
 public class CommandParser {
 
-    // Map of user defined variables names and values.
-    Map<String, Function> varMap;
+    // Definitions of user defined variables, and their resolved values.
+    DependencyGraph varGraph;
 
     // List of variables that are being used by the program.
     List<String> varList;
 
+    // Parser for functions of the variables in use, which is built again only
+    // when the variables change.
+    private FunctionParser functionParser;
+
+    // Slots of the variables that have been used in this session.
+    private SymbolTable symbols;
+
     // Keywords, which cannot be the names of variables.
     private static final List<String> KEYWORDS = Arrays.asList("use", "forget",
-            "eval", "sub", "diff", "help", "exit", "set", "clear", "show",
+            "eval", "sub", "batch", "diff", "grad", "help", "exit", "set",
+            "clear", "show", "precision",
             "log", "ln", "sin", "cos", "tan", "e", "pi");
 
     // String representing the 'last' variable.
@@ -43,14 +60,19 @@ public class CommandParser {
     // Text to display when the user enters 'help' in the console.
     private String HELP_TEXT;
 
+    // Precision with which the commands of this session are evaluated.
+    private Precision precision;
+
 
     /**
      * Creates a new CommandParser object.
      */
     public CommandParser() {
-        varMap = new HashMap<String, Function>();
+        varGraph = new DependencyGraph();
         varList = new ArrayList<String>();
         varList.add(LAST);
+        symbols = new SymbolTable();
+        precision = Precision.DEFAULT;
 
         // Load text from help file.
         try {
@@ -82,9 +104,10 @@ public class CommandParser {
 
         // Add new variables to the list.
         for (String token : tokens) {
-            if (isComposedOfLetters(token) && !KEYWORDS.contains(token))
+            if (isComposedOfLetters(token) && !KEYWORDS.contains(token)) {
                 varList.add(token);
-            else
+                functionParser = null;
+            } else
                 illegalVariables.add(token);
         }
 
@@ -119,31 +142,34 @@ public class CommandParser {
         if (tokens.get(0).equals("all")) {
             varList = new ArrayList<String>();
             varList.add(LAST);
-            varMap = new HashMap<String, Function>();
+            varGraph.clear();
+            symbols = new SymbolTable();
+            functionParser = null;
         }
 
         // Clear individual variables.
         for (String token : tokens) {
             if (!token.equals(LAST)) {
-                varList.remove(token);
-                if (varMap.containsKey(token))
-                    varMap.remove(token);
+                if (varList.remove(token))
+                    functionParser = null;
+                varGraph.remove(token);
             }
         }
     }
 
 
     /**
-     * Substitutes variables into a function.
+     * Substitutes variables into a function, and writes the evaluated function
+     * with all specified variables substituted into it.
      *
      * @param tokens The list of tokens from the command string.
-     *
-     * @return The evaluated function with all specified variables substituted
-     *         into it.
+     * @param out The Appendable to which the response is written.
      *
      * @throws ParsingException
+     * @throws IOException If the response cannot be written.
      */
-    private String sub(List<String> tokens) throws ParsingException {
+    private void sub(List<String> tokens, Appendable out)
+            throws ParsingException, IOException {
 
         if (tokens.size() == 1)
             throw new ParsingException("Missing argument: sub <function>.");
@@ -151,47 +177,132 @@ public class CommandParser {
         // Remove the 'sub' token.
         tokens.remove(0);
 
-        FunctionParser fp = new FunctionParser(varList);
+        FunctionParser fp = parser();
         Function function = fp.parse(tokens.get(0));
 
         // Remove the <function> token.
         tokens.remove(0);
 
         // Specifying no variables is the same as specifying 'all': all
-        // variables get subbed in.
-        if (tokens.isEmpty())
-            return function.evaluate(varMap).toString();
-        if (tokens.get(0).equals("all"))
-            return function.evaluate(varMap).toString();
-
-        // Create a new map that is a subset of varMap, such that it contains
-        // only the variables indicated by the user.
+        // variables get subbed in. Their resolved values are cached, so only
+        // those whose definitions changed since the last time are resolved.
+        if (tokens.isEmpty() || tokens.get(0).equals("all")) {
+            new FunctionPrinter(out).print(function.evaluate(varGraph.resolve(
+                    function.getVariables())).canonicalize());
+            return;
+        }
+
+        // Create a new map of the definitions of only the variables indicated
+        // by the user.
         Map<String, Function> varSubMap = new HashMap<String, Function>();
         for (int i = 0; i < tokens.size(); ++i) {
-            if (!varMap.containsKey(tokens.get(i)))
+            if (!varGraph.contains(tokens.get(i)))
                 throw new ParsingException("Variable '" + tokens.get(i)
                         + "' has no value.");
-            varSubMap.put(tokens.get(i), varMap.get(tokens.get(i)));
+            varSubMap.put(tokens.get(i), varGraph.get(tokens.get(i)));
+        }
+
+        function = function.evaluate(varSubMap).canonicalize();
+
+        varGraph.define(LAST, function.collectPolynomials());
+
+        new FunctionPrinter(out).print(function);
+    }
+
+
+    /**
+     * Substitutes many values for variables into a function at once. Each
+     * variable is given a comma-separated list of values, and the function is
+     * evaluated for each position in the lists. Variables that are not given
+     * values are substituted as with 'sub all'. The value of the function for
+     * each set of values is written, one per line.
+     *
+     * @param tokens The list of tokens from the command string.
+     * @param out The Appendable to which the response is written.
+     *
+     * @throws ParsingException
+     * @throws IOException If the response cannot be written.
+     */
+    private void batch(List<String> tokens, Appendable out)
+            throws ParsingException, IOException {
+
+        if (tokens.size() < 3)
+            throw new ParsingException("Missing argument(s): batch <function>"
+                    + " <variable>=<values>.");
+
+        FunctionParser fp = parser();
+        Function function = fp.parse(tokens.get(1));
+
+        // Parse the column of values for each variable.
+        Map<String, double[]> columns = new HashMap<String, double[]>();
+        int rows = -1;
+        for (String token : tokens.subList(2, tokens.size())) {
+            int split = token.indexOf('=');
+            if (split < 0)
+                throw new ParsingException("Expected <variable>=<values>,"
+                        + " found '" + token + "'.");
+
+            String var = token.substring(0, split);
+            if (!varList.contains(var))
+                throw new ParsingException("Unknown variable! Declare"
+                        + " variables with 'use <variable(s)>' first.");
+
+            String[] values = token.substring(split + 1).split(",");
+            double[] column = new double[values.length];
+            for (int i = 0; i < values.length; ++i) {
+                try {
+                    column[i] = Double.parseDouble(values[i]);
+                } catch (NumberFormatException e) {
+                    throw new ParsingException("Invalid value '" + values[i]
+                            + "' for variable '" + var + "'.");
+                }
+            }
+
+            if (rows >= 0 && rows != column.length)
+                throw new ParsingException("All variables must have the same"
+                        + " number of values.");
+            rows = column.length;
+            columns.put(var, column);
         }
 
+        // Substitute all other variables that have values.
+        Map<String, Function> varSubMap = new HashMap<String, Function>(
+                varGraph.definitions());
+        varSubMap.keySet().removeAll(columns.keySet());
         function = function.evaluate(varSubMap);
 
-        varMap.put(LAST, function);
+        for (String var : function.getVariables()) {
+            if (!columns.containsKey(var))
+                throw new ParsingException("Variable '" + var
+                        + "' has no value.");
+        }
 
-        return function.toString();
+        FunctionCompiler compiler = new FunctionCompiler(
+                new ArrayList<String>(columns.keySet()));
+        BatchEvaluator evaluator = new BatchEvaluator(compiler.assemble(
+                function));
+        double[] results = new double[rows];
+        evaluator.evaluate(columns, results);
+
+        for (int i = 0; i < rows; ++i) {
+            if (i > 0)
+                out.append('\n');
+            out.append(formatDouble(results[i]));
+        }
     }
 
 
     /**
-     * Command for evaluating a function.
+     * Command for evaluating a function, which writes the evaluated function.
      *
      * @param tokens List of tokens from the command string.
-     *
-     * @return A string representing the evaluated function.
+     * @param out The Appendable to which the response is written.
      *
      * @throws ParsingException
+     * @throws IOException If the response cannot be written.
      */
-    private String eval(List<String> tokens) throws ParsingException {
+    private void eval(List<String> tokens, Appendable out)
+            throws ParsingException, IOException {
 
         if (tokens.size() == 1)
             throw new ParsingException("Missing argument: eval <function>.");
@@ -199,31 +310,40 @@ public class CommandParser {
         String funcStr = tokens.get(1);
 
         // Parse the function.
-        FunctionParser fp = new FunctionParser(varList);
+        FunctionParser fp = parser();
         Function function = fp.parse(funcStr);
 
         // If the LAST value exists, substitute it. The LAST variable is always
         // substituted.
-        if (varMap.containsKey(LAST))
+        if (varGraph.contains(LAST))
             function = function.evaluate(getLastVariableMap());
 
-        // Set the value of the LAST variable to this result.
-        varMap.put(LAST, function);
+        // Collect like terms and factors, so that x+2+x+3 becomes 5+2*x.
+        function = function.canonicalize();
+
+        // Set the value of the LAST variable to this result. Its polynomial
+        // parts are held as Polynomials, which are cheaper to evaluate and
+        // differentiate when the result is used again; the canonical form is
+        // still the one written, since a Polynomial prints its terms in a
+        // different order.
+        varGraph.define(LAST, function.collectPolynomials());
 
-        return function.toString();
+        new FunctionPrinter(out).print(function);
     }
 
 
     /**
-     * Command to differentiate a function with respect to a given variable.
+     * Command to differentiate a function with respect to a given variable,
+     * which writes the derivative of the function.
      *
      * @param tokens List of tokens from the command string.
-     *
-     * @return A string representing the derivative of the function.
+     * @param out The Appendable to which the response is written.
      *
      * @throws ParsingException
+     * @throws IOException If the response cannot be written.
      */
-    private String diff(List<String> tokens) throws ParsingException {
+    private void diff(List<String> tokens, Appendable out)
+            throws ParsingException, IOException {
 
         if (tokens.size() < 3)
             throw new ParsingException("Missing argument(s): diff <function>"
@@ -232,20 +352,101 @@ public class CommandParser {
         String funcStr = tokens.get(1);
 
         // Parse the function.
-        FunctionParser parser = new FunctionParser(varList);
+        FunctionParser parser = parser();
         Function function = parser.parse(funcStr);
 
         // Substitute the LAST variable into the function.
-        if (varMap.containsKey(LAST))
+        if (varGraph.contains(LAST))
             function = function.evaluate(getLastVariableMap());
 
         // Differentiate the function.
-        Function derivative = function.differentiate(tokens.get(2));
+        Function derivative = function.differentiate(tokens.get(2))
+                .canonicalize();
 
         // Update LAST variable value.
-        varMap.put(LAST, derivative);
+        varGraph.define(LAST, derivative.collectPolynomials());
+
+        new FunctionPrinter(out).print(derivative);
+    }
+
+
+    /**
+     * Command to calculate the gradient of a function at the current values of
+     * its variables. All partial derivatives are found together by a single
+     * backward pass over the function, rather than by differentiating it
+     * symbolically once per variable. The partial derivative with respect to
+     * each variable is written, one per line.
+     *
+     * @param tokens List of tokens from the command string.
+     * @param out The Appendable to which the response is written.
+     *
+     * @throws ParsingException
+     * @throws IOException If the response cannot be written.
+     */
+    private void grad(List<String> tokens, Appendable out)
+            throws ParsingException, IOException {
+
+        if (tokens.size() < 2)
+            throw new ParsingException("Missing argument: grad <function>.");
+
+        FunctionParser fp = parser();
+        Function function = fp.parse(tokens.get(1));
+
+        if (varGraph.contains(LAST))
+            function = function.evaluate(getLastVariableMap());
+
+        // Differentiate with respect to the given variables, or all variables
+        // of the function in the order they were declared if none are given.
+        List<String> vars = new ArrayList<String>();
+        if (tokens.size() > 2 && !tokens.get(2).equals("all")) {
+            for (String var : tokens.subList(2, tokens.size())) {
+                if (!varList.contains(var))
+                    throw new ParsingException("Unknown variable! Declare"
+                            + " variables with 'use <variable(s)>' first.");
+                if (!vars.contains(var))
+                    vars.add(var);
+            }
+        } else {
+            List<String> functionVars = function.getVariables();
+            for (String var : varList) {
+                if (functionVars.contains(var))
+                    vars.add(var);
+            }
+        }
+
+        // Find the value of each variable at which to take the gradient.
+        double[] point = new double[vars.size()];
+        for (int i = 0; i < vars.size(); ++i) {
+            Function value = varGraph.resolve(vars.get(i));
+            if (!(value instanceof Number))
+                throw new ParsingException("Variable '" + vars.get(i)
+                        + "' has no value.");
+            point[i] = ((Number)value).doubleValue();
+        }
+
+        // Substitute all other variables.
+        Map<String, Function> varSubMap = new HashMap<String, Function>(
+                varGraph.definitions());
+        varSubMap.keySet().removeAll(vars);
+        function = function.evaluate(varSubMap);
+
+        for (String var : function.getVariables()) {
+            if (!vars.contains(var))
+                throw new ParsingException("Variable '" + var
+                        + "' has no value.");
+        }
+
+        FunctionCompiler compiler = new FunctionCompiler(vars);
+        Gradient gradient = new Gradient(compiler.assemble(function));
+        double[] partials = new double[vars.size()];
+        gradient.evaluate(point, partials);
 
-        return derivative.toString();
+        for (int i = 0; i < vars.size(); ++i) {
+            if (i > 0)
+                out.append('\n');
+            out.append("d/d").append(vars.get(i)).append(" = ")
+                    .append(formatDouble(partials[i]));
+        }
     }
 
 
@@ -255,8 +456,10 @@ public class CommandParser {
      * @param tokens List of tokens from the command string.
      *
      * @throws ParsingException
+     * @throws IOException If a chained command cannot be written.
      */
-    private void set(List<String> tokens) throws ParsingException {
+    private void set(List<String> tokens) throws ParsingException,
+            IOException {
 
         if (tokens.size() < 3)
             throw new ParsingException("Missing argument(s): set <variable>"
@@ -276,19 +479,18 @@ public class CommandParser {
         if (tokens.size() > 3) {
             tokens.remove(0);
             tokens.remove(0);
-            funcStr = parseCommand(tokens);
+            StringBuilder chained = new StringBuilder();
+            parseCommand(tokens, chained);
+            funcStr = chained.toString();
         }
 
         // Parse the function that is to be the variable's value.
-        FunctionParser fp = new FunctionParser(varList);
+        FunctionParser fp = parser();
         Function varValue = fp.parse(funcStr);
 
-        // Check for potentional cycle in the variable map.
-        VariableVerifier verifier = new VariableVerifier(varMap);
-        if (!verifier.verify(var, varValue))
+        // The definition is refused if it would create a cycle.
+        if (!varGraph.define(var, varValue))
             throw new ParsingException("Variable definition contains cycle.");
-
-        varMap.put(var, varValue);
     }
 
 
@@ -312,74 +514,103 @@ public class CommandParser {
 
         // Remove all variables from the list.
         if (tokens.get(0).equals("all")) {
-            if (varMap.containsKey(LAST)) {
-                Function function = varMap.get(LAST);
-                varMap.clear();
-                varMap.put(LAST, function);
-            } else {
-                varMap.clear();
-            }
+            Function function = varGraph.get(LAST);
+            varGraph.clear();
+            if (function != null)
+                varGraph.define(LAST, function);
 
         // Remove all specified variables from the list.
         } else {
             if (tokens.contains(LAST))
                 throw new ParsingException("Cannot clear LAST variable ($).");
             for (String token : tokens) {
-                varMap.remove(token);
+                varGraph.remove(token);
             }
         }
     }
 
 
     /**
-     * Creates a list of specified variables being used by the program and their
-     * values, if they have any.
+     * Writes a list of specified variables being used by the program and their
+     * values, if they have any, one per line.
      *
      * @param tokens List of tokens from the command string.
+     * @param out The Appendable to which the response is written.
      *
-     * @return The list of variables being used by the program.
+     * @throws IOException If the response cannot be written.
      */
-    private String show(List<String> tokens) {
+    private void show(List<String> tokens, Appendable out) throws IOException {
+
+        boolean all = tokens.size() == 1 || tokens.get(1).equals("all");
+
+        // Variables without values are listed first, and then variables with
+        // values.
+        boolean first = true;
+        for (String var : varList) {
+            if ((all || tokens.contains(var)) && !varGraph.contains(var)) {
+                if (!first)
+                    out.append('\n');
+                out.append(var);
+                first = false;
+            }
+        }
 
-        // Response to the show command. Variables without values are listed
-        // first, and then variables with values.
-        String response = "";
+        FunctionPrinter printer = new FunctionPrinter(out);
+        for (Map.Entry<String, Function> entry : varGraph.definitions()
+                .entrySet()) {
+            if (all || tokens.contains(entry.getKey())) {
+                if (!first)
+                    out.append('\n');
+                out.append(entry.getKey()).append(" = ");
+                printer.print(entry.getValue());
+                first = false;
+            }
+        }
+    }
 
-        // No variables are defined, return empty string.
-        if (varList.isEmpty())
-            return "";
 
-        // Add variables from the list, but that don't have values.
-        if (tokens.size() == 1 || tokens.get(1).equals("all")) {
-            for (String var : varList) {
-                if (!varMap.containsKey(var))
-                    response += var + "\n";
-            }
-        } else {
-            for (String var : varList) {
-                if (tokens.contains(var) && !varMap.containsKey(var))
-                    response += var + "\n";
-            }
+    /**
+     * Command to show or change the precision of the session.
+     *
+     * @param tokens List of tokens from the command string.
+     * @param out The Appendable to which the current precision is written if
+     *         none is given.
+     *
+     * @throws ParsingException
+     * @throws IOException If the response cannot be written.
+     */
+    private void precision(List<String> tokens, Appendable out)
+            throws ParsingException, IOException {
+
+        if (tokens.size() == 1) {
+            out.append(precision.toString());
+            return;
         }
 
-        // If the map is empty, we're done now.
-        if (varMap.isEmpty())
-            return response;
+        if (tokens.get(1).equals("default")) {
+            precision = Precision.DEFAULT;
+            return;
+        }
 
-        // Add variables that have values and are in the map.
-        if (tokens.size() == 1 || tokens.get(1).equals("all")) {
-            for (Map.Entry<String, Function> entry : varMap.entrySet()) {
-                response += entry.getKey() + " = " + entry.getValue() + "\n";
-            }
-        } else {
-            for (Map.Entry<String, Function> entry : varMap.entrySet()) {
-                if (tokens.contains(entry.getKey()))
-                    response += entry.getKey() + " = " + entry.getValue()
-                            + "\n";
-            }
+        long digits;
+        try {
+            digits = Long.parseLong(tokens.get(1));
+        } catch (NumberFormatException e) {
+            throw new ParsingException("Invalid precision: '" + tokens.get(1)
+                    + "'.");
+        }
+        if (digits < 1)
+            throw new ParsingException("Precision must be at least one digit.");
+
+        boolean deferred = false;
+        if (tokens.size() > 2) {
+            if (!tokens.get(2).equals("deferred"))
+                throw new ParsingException("Unknown option: '" + tokens.get(2)
+                        + "'.");
+            deferred = true;
         }
 
-        return response;
+        precision = new Precision(digits, deferred);
     }
 
 
@@ -387,38 +618,41 @@ public class CommandParser {
      * Parses the list of tokens and delegates to the correct function.
      *
      * @param tokens List of tokens from the command string.
-     *
-     * @return The response to the command.
+     * @param out The Appendable to which the response is written.
      *
      * @throws ParsingException
+     * @throws IOException If the response cannot be written.
      */
-    private String parseCommand(List<String> tokens) throws ParsingException {
+    private void parseCommand(List<String> tokens, Appendable out)
+            throws ParsingException, IOException {
 
         if (tokens.get(0).equals("use")) {
             use(tokens);
-            return "";
         } else if (tokens.get(0).equals("forget")) {
             forget(tokens);
-            return "";
         } else if (tokens.get(0).equals("sub")) {
-            return sub(tokens);
+            sub(tokens, out);
+        } else if (tokens.get(0).equals("batch")) {
+            batch(tokens, out);
         } else if (tokens.get(0).equals("eval")) {
-            return eval(tokens);
+            eval(tokens, out);
         } else if (tokens.get(0).equals("diff")) {
-            return diff(tokens);
+            diff(tokens, out);
+        } else if (tokens.get(0).equals("grad")) {
+            grad(tokens, out);
         } else if (tokens.get(0).equals("set")) {
             set(tokens);
-            return "";
         } else if (tokens.get(0).equals("clear")) {
             clear(tokens);
-            return "";
         } else if (tokens.get(0).equals("show")) {
-            return show(tokens);
+            show(tokens, out);
+        } else if (tokens.get(0).equals("precision")) {
+            precision(tokens, out);
         } else if (tokens.get(0).equals("help")) {
-            return HELP_TEXT;
+            out.append(HELP_TEXT);
+        } else {
+            out.append("Unknown command.");
         }
-
-        return "Unknown command.";
     }
 
 
@@ -432,13 +666,46 @@ public class CommandParser {
      * @throws ParsingException If the commands do not parse correctly.
      */
     public String parse(String command) throws ParsingException {
+        StringBuilder response = new StringBuilder();
+        try {
+            parse(command, response);
+        } catch (IOException e) {
+
+            // Appending to a StringBuilder never fails.
+            throw new IllegalStateException(e);
+        }
+        return response.toString().trim();
+    }
+
+
+    /**
+     * Parses the command, and writes the response to it as it is produced,
+     * so that large results are never held as a whole string.
+     *
+     * @param command The string to parse.
+     * @param out The Appendable to which the response is written.
+     *
+     * @throws ParsingException If the commands do not parse correctly.
+     * @throws IOException If the response cannot be written.
+     */
+    public void parse(String command, Appendable out) throws ParsingException,
+            IOException {
 
         List<String> tokens = stringArrayToList(command.toLowerCase()
                 .split(" "));
 
         if (tokens.size() == 0)
-            return "";
-        return parseCommand(tokens).trim();
+            return;
+
+        // Commands are evaluated, and their results printed, with the
+        // precision of the session.
+        Precision previous = Precision.get();
+        Precision.set(precision);
+        try {
+            parseCommand(tokens, out);
+        } finally {
+            Precision.set(previous);
+        }
     }
 
 
@@ -449,11 +716,25 @@ public class CommandParser {
      */
     private Map<String, Function> getLastVariableMap() {
         Map<String, Function> lastMap = new HashMap<String, Function>();
-        lastMap.put(LAST, varMap.get(LAST));
+        lastMap.put(LAST, varGraph.get(LAST));
         return lastMap;
     }
 
 
+    /**
+     * Formats a double in the same style as a Number.
+     *
+     * @param value The double.
+     *
+     * @return The string representing the double.
+     */
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return Double.toString(value);
+        return new Apfloat(value).toString(true);
+    }
+
+
     /**
      * Converts an array of strings to a mutable list.
      *
@@ -469,6 +750,18 @@ public class CommandParser {
     }
 
 
+    /**
+     * Get the parser for functions of the variables in use.
+     *
+     * @return The parser.
+     */
+    private FunctionParser parser() {
+        if (functionParser == null)
+            functionParser = new FunctionParser(varList, symbols);
+        return functionParser;
+    }
+
+
     /**
      * Checks if a string is composed of letters.
      *
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.adamheins.dervish.function.Function;
+import com.adamheins.dervish.function.Precision;
+
+/**
+ * The definitions of variables, along with the graph of which variables each
+ * definition refers to. The fully resolved value of each variable, in which
+ * the values of all the variables it depends on have been substituted, is
+ * cached like a cell of a spreadsheet. Changing the definition of a variable
+ * only discards the cached values of the variables that depend on it, either
+ * directly or through other variables, so the cost of resolving a variable
+ * after a change is proportional to the part of the graph that changed.
+ *
+ * Definitions that would make a variable depend on itself are refused. To
+ * find these cheaply, the variables are kept in a topological order, in which
+ * each variable comes after all of those it depends on, and the order is
+ * updated as references are added with the algorithm of Pearce and Kelly.
+ * A reference to a variable that already comes earlier cannot create a
+ * cycle; otherwise only the variables whose positions lie between those of
+ * the two variables are searched and reordered.
+ *
+ * @author Adam
+ */
+public class DependencyGraph {
+
+    // The definition of each variable that has a value.
+    private final Map<String, Function> definitions;
+
+    // The variables to which the definition of each variable refers.
+    private final Map<String, Set<String>> dependencies;
+
+    // The variables whose definitions refer to each variable, which need not
+    // have a value itself.
+    private final Map<String, Set<String>> dependents;
+
+    // The position of each variable in the topological order. Positions are
+    // unique, but need not be contiguous.
+    private final Map<String, Integer> order;
+
+    // The position given to the next variable added to the order.
+    private int nextPosition;
+
+    // The resolved value of each variable, where known. If the value of a
+    // variable is known, so are those of all variables it depends on.
+    private final Map<String, Function> resolved;
+
+    // The precision at which the resolved values were found.
+    private Precision precision;
+
+
+    /**
+     * Constructor.
+     */
+    DependencyGraph() {
+        definitions = new HashMap<String, Function>();
+        dependencies = new HashMap<String, Set<String>>();
+        dependents = new HashMap<String, Set<String>>();
+        order = new HashMap<String, Integer>();
+        nextPosition = 0;
+        resolved = new HashMap<String, Function>();
+    }
+
+
+    /**
+     * Defines a variable, replacing any existing definition, unless the new
+     * definition would make the variable depend on itself.
+     *
+     * @param var The variable.
+     * @param definition The definition of the variable.
+     *
+     * @return True if the variable was defined, or false if the definition
+     *         would create a cycle, in which case the previous definition of
+     *         the variable is kept.
+     */
+    boolean define(String var, Function definition) {
+
+        Set<String> refs = new HashSet<String>(definition.getVariables());
+        if (refs.contains(var))
+            return false;
+
+        Function previous = definitions.get(var);
+
+        // Variables may already refer to this one even if it had no value.
+        remove(var);
+        invalidate(var);
+
+        position(var);
+        dependencies.put(var, new HashSet<String>());
+        for (String ref : refs) {
+            if (!addReference(var, ref)) {
+
+                // References that were added cannot have broken the order,
+                // so removing them restores the graph.
+                unlink(var);
+                if (previous != null)
+                    define(var, previous);
+                return false;
+            }
+        }
+
+        definitions.put(var, definition);
+        return true;
+    }
+
+
+    /**
+     * Removes the definition of a variable, if it has one. Variables that
+     * depend on it keep referring to it, but it is no longer substituted.
+     *
+     * @param var The variable.
+     */
+    void remove(String var) {
+        if (definitions.remove(var) == null)
+            return;
+
+        invalidate(var);
+        unlink(var);
+    }
+
+
+    /**
+     * Removes the definitions of all variables.
+     */
+    void clear() {
+        definitions.clear();
+        dependencies.clear();
+        dependents.clear();
+        order.clear();
+        nextPosition = 0;
+        resolved.clear();
+    }
+
+
+    /**
+     * Check if a variable has a definition.
+     *
+     * @param var The variable.
+     *
+     * @return True if the variable has a definition, false otherwise.
+     */
+    boolean contains(String var) {
+        return definitions.containsKey(var);
+    }
+
+
+    /**
+     * Get the definition of a variable.
+     *
+     * @param var The variable.
+     *
+     * @return The definition of the variable, or null if it has none.
+     */
+    Function get(String var) {
+        return definitions.get(var);
+    }
+
+
+    /**
+     * Get the definitions of all variables.
+     *
+     * @return An unmodifiable map of the variables to their definitions.
+     */
+    Map<String, Function> definitions() {
+        return Collections.unmodifiableMap(definitions);
+    }
+
+
+    /**
+     * Get the resolved value of a variable, which is its definition with the
+     * resolved values of the variables it depends on substituted.
+     *
+     * @param var The variable.
+     *
+     * @return The resolved value, or null if the variable has no definition.
+     */
+    Function resolve(String var) {
+
+        if (!definitions.containsKey(var))
+            return null;
+
+        // Values resolved at another precision may have been rounded
+        // differently.
+        if (!Precision.get().equals(precision)) {
+            resolved.clear();
+            precision = Precision.get();
+        }
+
+        // Resolve the variables on which this one depends first, with an
+        // explicit stack so that long chains of definitions can be resolved.
+        Deque<String> varStack = new ArrayDeque<String>();
+        varStack.push(var);
+
+        while (!varStack.isEmpty()) {
+            String current = varStack.peek();
+            if (resolved.containsKey(current)) {
+                varStack.pop();
+                continue;
+            }
+
+            Map<String, Function> values = new HashMap<String, Function>();
+            boolean ready = true;
+            for (String ref : dependencies.get(current)) {
+                if (!definitions.containsKey(ref))
+                    continue;
+                Function value = resolved.get(ref);
+                if (value == null) {
+                    varStack.push(ref);
+                    ready = false;
+                } else {
+                    values.put(ref, value);
+                }
+            }
+            if (!ready)
+                continue;
+
+            varStack.pop();
+            resolved.put(current, definitions.get(current).evaluate(values));
+        }
+
+        return resolved.get(var);
+    }
+
+
+    /**
+     * Get the resolved values of some variables.
+     *
+     * @param vars The variables.
+     *
+     * @return A map of those variables that have definitions to their
+     *         resolved values.
+     */
+    Map<String, Function> resolve(Collection<String> vars) {
+        Map<String, Function> values = new HashMap<String, Function>();
+        for (String var : vars) {
+            Function value = resolve(var);
+            if (value != null)
+                values.put(var, value);
+        }
+        return values;
+    }
+
+
+    /**
+     * Discards the resolved values of a variable and of all variables that
+     * depend on it.
+     *
+     * @param var The variable.
+     */
+    private void invalidate(String var) {
+        Deque<String> varStack = new ArrayDeque<String>();
+        varStack.push(var);
+
+        while (!varStack.isEmpty()) {
+            String current = varStack.pop();
+
+            // The variables that depend on one without a resolved value do not
+            // have resolved values either, except for the variable itself,
+            // whose definition may just have been added.
+            if (resolved.remove(current) == null && !current.equals(var))
+                continue;
+
+            Set<String> users = dependents.get(current);
+            if (users != null)
+                varStack.addAll(users);
+        }
+    }
+
+
+    /**
+     * Adds a reference from the definition of one variable to another,
+     * moving variables in the topological order as needed to keep it valid.
+     *
+     * @param var The variable whose definition has the reference.
+     * @param ref The variable to which it refers.
+     *
+     * @return True if the reference was added, or false if it would create a
+     *         cycle, in which case the graph is unchanged.
+     */
+    private boolean addReference(String var, String ref) {
+
+        int lower = position(var);
+        int upper = position(ref);
+
+        // If the variable comes before the one it refers to, the variables
+        // that depend on it and come before the reference must be moved after
+        // those on which the reference depends.
+        if (lower < upper) {
+            List<String> moved = search(var, upper, true);
+            if (moved == null)
+                return false;
+            List<String> kept = search(ref, lower, false);
+            reorder(kept, moved);
+        }
+
+        dependencies.get(var).add(ref);
+        Set<String> users = dependents.get(ref);
+        if (users == null) {
+            users = new HashSet<String>();
+            dependents.put(ref, users);
+        }
+        users.add(var);
+        return true;
+    }
+
+
+    /**
+     * Finds the variables reachable from a variable whose positions are
+     * within a bound.
+     *
+     * @param start The variable from which to search.
+     * @param bound The position of the variable at the other end of the new
+     *        reference. Only variables before it are searched forwards, and
+     *        only those after it backwards.
+     * @param forward True to follow variables to those that depend on them,
+     *        false to follow them to those they depend on.
+     *
+     * @return The variables found, or null if the variable at the bound is
+     *         reachable, in which case the new reference would create a
+     *         cycle.
+     */
+    private List<String> search(String start, int bound, boolean forward) {
+
+        Map<String, Set<String>> edges = forward ? dependents : dependencies;
+
+        List<String> found = new ArrayList<String>();
+        Set<String> visited = new HashSet<String>();
+        Deque<String> varStack = new ArrayDeque<String>();
+        varStack.push(start);
+        visited.add(start);
+
+        while (!varStack.isEmpty()) {
+            String current = varStack.pop();
+            found.add(current);
+
+            Set<String> next = edges.get(current);
+            if (next == null)
+                continue;
+            for (String var : next) {
+                int position = order.get(var);
+                if (position == bound)
+                    return null;
+                if ((forward ? position < bound : position > bound)
+                        && visited.add(var))
+                    varStack.push(var);
+            }
+        }
+
+        return found;
+    }
+
+
+    /**
+     * Moves variables in the topological order, so that a group of variables
+     * comes before another. The positions that the variables already hold
+     * are shared out between them, so no other variable is moved.
+     *
+     * @param first The variables that are to come first.
+     * @param second The variables that are to come after them.
+     */
+    private void reorder(List<String> first, List<String> second) {
+
+        Comparator<String> byPosition = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return order.get(a).compareTo(order.get(b));
+            }
+        };
+        Collections.sort(first, byPosition);
+        Collections.sort(second, byPosition);
+
+        List<String> vars = new ArrayList<String>(first);
+        vars.addAll(second);
+
+        List<Integer> positions = new ArrayList<Integer>();
+        for (String var : vars)
+            positions.add(order.get(var));
+        Collections.sort(positions);
+
+        for (int i = 0; i < vars.size(); ++i)
+            order.put(vars.get(i), positions.get(i));
+    }
+
+
+    /**
+     * Removes the references from the definition of a variable.
+     *
+     * @param var The variable.
+     */
+    private void unlink(String var) {
+        for (String ref : dependencies.remove(var)) {
+            Set<String> users = dependents.get(ref);
+            users.remove(var);
+            if (users.isEmpty())
+                dependents.remove(ref);
+        }
+    }
+
+
+    /**
+     * Get the position of a variable in the topological order, adding it at
+     * the end if it is not already there.
+     *
+     * @param var The variable.
+     *
+     * @return The position of the variable.
+     */
+    private int position(String var) {
+        Integer position = order.get(var);
+        if (position == null) {
+            position = nextPosition++;
+            order.put(var, position);
+        }
+        return position;
+    }
+}
@@ -24,6 +24,12 @@ public class FunctionParser {
     // List of variables that may appear in the function.
     List<String> varList;
 
+    // The words that may appear in the function, including the variables.
+    private final Lexicon lexicon;
+
+    // The slots of the variables of the session.
+    private final SymbolTable symbols;
+
     // Keeps track of how deep within sets of brackets the function currently
     // is. Equal to the number of open brackets minus the number of close
     // brackets that have occurred in the function so far.
@@ -31,19 +37,56 @@ public class FunctionParser {
 
 
     /**
-     * Creates a new FunctionParser object.
+     * Creates a new FunctionParser object, with a symbol table of its own.
+     * The variables are read once, so changes to the list afterwards are not
+     * seen by this parser.
      *
      * @param varList The list of variables that may appear in this function.
      */
     public FunctionParser(List<String> varList) {
+        this(varList, new SymbolTable());
+    }
+
+
+    /**
+     * Creates a new FunctionParser object, which gives each of the variables
+     * a slot in the symbol table of a session. The variables are read once,
+     * so changes to the list afterwards are not seen by this parser.
+     *
+     * @param varList The list of variables that may appear in this function.
+     * @param symbols The symbol table of the session.
+     */
+    public FunctionParser(List<String> varList, SymbolTable symbols) {
         bracketCounter = 0;
         this.varList = varList;
+        this.lexicon = new Lexicon(varList);
+        this.symbols = symbols;
+        if (varList != null) {
+            for (String var : varList)
+                symbols.slotOf(var);
+        }
+    }
+
+
+    /**
+     * Get the symbol table that gives the slots of the variables of this
+     * parser, by which values can be given to
+     * {@link Function#evaluate(Function[], SymbolTable)}.
+     *
+     * @return The symbol table.
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
     }
 
 
     /**
      * Parses a Function object from a string.
      *
+     * The string is read in a single pass. At each position, the longest
+     * built-in word or variable that starts there is taken, so the time taken
+     * does not depend on the number of variables.
+     *
      * @param functionString The string representing the function.
      *
      * @return The parsed Function object.
@@ -54,15 +97,17 @@ public class FunctionParser {
 
         FunctionBuilder fb = new FunctionBuilder();
         Function func = null;
+        bracketCounter = 0;
 
         for (int index = 0; index < functionString.length(); ) {
-            if (Character.isWhitespace(functionString.charAt(index))) {
+            char ch = functionString.charAt(index);
+            if (Character.isWhitespace(ch)) {
                 index++;
                 continue;
-            } else if (functionString.charAt(index) == '+') {
+            } else if (ch == '+') {
                 func = new Plus();
                 index++;
-            } else if (functionString.charAt(index) == '-') {
+            } else if (ch == '-') {
 
                 // Determine if '-' represents minus or negative.
                 if (index == 0) {
@@ -75,66 +120,38 @@ public class FunctionParser {
                     }
                 }
                 index++;
-            } else if (functionString.charAt(index) == '*') {
+            } else if (ch == '*') {
                 func = new Multiply();
                 index++;
-            } else if (functionString.charAt(index) == '/') {
+            } else if (ch == '/') {
                 func = new Divide();
                 index++;
-            } else if (functionString.charAt(index) == '^') {
+            } else if (ch == '^') {
                 func = new Exponent();
                 index++;
-            } else if (substringAt(functionString, "sin", index)) {
-                func = new Sin();
-                index += 3;
-            } else if (substringAt(functionString, "cos", index)) {
-                func = new Cos();
-                index += 3;
-            } else if (substringAt(functionString, "tan", index)) {
-                func = new Tan();
-                index += 3;
-            } else if (substringAt(functionString, "ln", index)) {
-                func = new Ln();
-                index += 2;
-            } else if (substringAt(functionString, "log", index)) {
-                func = new Log("10");
-                index += 3;
-            } else if (functionString.charAt(index) == ')') {
+            } else if (ch == ')') {
                 bracketCounter--;
                 index++;
                 continue;
-            } else if (functionString.charAt(index) == '(') {
+            } else if (ch == '(') {
                 bracketCounter++;
                 index++;
                 continue;
-            } else if (functionString.charAt(index) == 'e') {
-                func = Constant.E;
-                index++;
-            } else if (substringAt(functionString, "pi", index)) {
-                func = Constant.PI;
-                index += 2;
-            }else if (isNumber(functionString.charAt(index))) {
+            } else if (isNumber(ch)) {
                 int start = index;
                 index++;
                 while (index < functionString.length()
                         && isNumber(functionString.charAt(index)))
                     index++;
-                func = new Number(functionString.substring(start, index));
+                func = new Number(functionString, start, index);
             } else {
-                boolean varflag = false;
-                for (String var : varList) {
-                    if (substringAt(functionString, var, index)) {
-                        func = new Variable(functionString.substring(index,
-                                index + var.length()));
-                        index += var.length();
-                        varflag = true;
-                        break;
-                    }
-                }
-                if (!varflag) {
+                Lexicon.Node match = lexicon.match(functionString, index);
+                if (match == null) {
                     throw new ParsingException("Unrecognized character <"
-                           + functionString.charAt(index) + "> while parsing.");
+                           + ch + "> while parsing.");
                 }
+                func = wordFunction(match);
+                index += match.length;
             }
 
             fb.add(func, bracketCounter);
@@ -149,19 +166,31 @@ public class FunctionParser {
 
 
     /**
-     * Checks if the substring exists at the given place in the string.
+     * Creates the Function for a word of the function.
      *
-     * @param str The original string.
-     * @param sub The substring.
-     * @param start The starting index of the substring.
+     * @param match The node of the lexicon at which the word ends.
      *
-     * @return True if the substring occurs at the start location, false
-     *         otherwise.
+     * @return The Function.
      */
-    private static boolean substringAt(String str, String sub, int start) {
-        if (start + sub.length() > str.length())
-            return false;
-        return str.substring(start, start + sub.length()).equals(sub);
+    private static Function wordFunction(Lexicon.Node match) {
+        switch (match.word) {
+        case SIN:
+            return new Sin();
+        case COS:
+            return new Cos();
+        case TAN:
+            return new Tan();
+        case LN:
+            return new Ln();
+        case LOG:
+            return new Log("10");
+        case PI:
+            return Constant.PI;
+        case E:
+            return Constant.E;
+        default:
+            return new Variable(match.name);
+        }
     }
 
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.parser;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The words that may appear in a function, which are the names of the
+ * built-in functions and constants and those of the variables, stored in a
+ * trie so that the longest word at any position of a string is found in a
+ * single pass over its characters, however many variables there are.
+ *
+ * @author Adam
+ */
+final class Lexicon {
+
+    /**
+     * The kinds of word.
+     */
+    enum Word {
+        SIN, COS, TAN, LN, LOG, PI, E, VARIABLE
+    }
+
+
+    /**
+     * A node of the trie, which is reached by the characters of a prefix of
+     * one or more words.
+     */
+    static final class Node {
+
+        // The characters that follow the prefix, in no particular order, and
+        // the node reached by each.
+        private char[] keys;
+        private Node[] children;
+        private int size;
+
+        // The word that ends at this node, or null if the prefix is not a
+        // word.
+        Word word;
+
+        // The name of the variable, if the word is a variable.
+        String name;
+
+        // The number of characters in the prefix.
+        final int length;
+
+
+        private Node(int length) {
+            this.keys = new char[0];
+            this.children = new Node[0];
+            this.size = 0;
+            this.length = length;
+        }
+
+
+        /**
+         * Get the node reached by a character.
+         *
+         * @param ch The character.
+         *
+         * @return The child node, or null if no word continues with the
+         *         character.
+         */
+        private Node child(char ch) {
+            for (int i = 0; i < size; ++i) {
+                if (keys[i] == ch)
+                    return children[i];
+            }
+            return null;
+        }
+
+
+        /**
+         * Get the node reached by a character, adding it if there is none.
+         *
+         * @param ch The character.
+         *
+         * @return The child node.
+         */
+        private Node addChild(char ch) {
+            Node child = child(ch);
+            if (child != null)
+                return child;
+
+            if (size == keys.length) {
+                int capacity = Math.max(2, 2 * size);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            child = new Node(length + 1);
+            keys[size] = ch;
+            children[size] = child;
+            ++size;
+            return child;
+        }
+    }
+
+
+    // The node of the empty prefix.
+    private final Node root;
+
+
+    /**
+     * Constructor.
+     *
+     * @param varList The variables that may appear in a function, or null
+     *        if there are none.
+     */
+    Lexicon(List<String> varList) {
+        root = new Node(0);
+
+        // Variables are added first so that the built-in words replace any
+        // variables of the same name, as they always have.
+        if (varList != null) {
+            for (String var : varList) {
+                if (!var.isEmpty())
+                    add(var, Word.VARIABLE);
+            }
+        }
+        add("sin", Word.SIN);
+        add("cos", Word.COS);
+        add("tan", Word.TAN);
+        add("ln", Word.LN);
+        add("log", Word.LOG);
+        add("pi", Word.PI);
+        add("e", Word.E);
+    }
+
+
+    /**
+     * Adds a word to the trie.
+     *
+     * @param text The characters of the word.
+     * @param word The kind of word.
+     */
+    private void add(String text, Word word) {
+        Node node = root;
+        for (int i = 0; i < text.length(); ++i)
+            node = node.addChild(text.charAt(i));
+        node.word = word;
+        node.name = word == Word.VARIABLE ? text : null;
+    }
+
+
+    /**
+     * Finds the longest word at a position in a string.
+     *
+     * @param str The string.
+     * @param start The position at which the word starts.
+     *
+     * @return The node at which the word ends, or null if no word starts at
+     *         the position.
+     */
+    Node match(String str, int start) {
+        Node longest = null;
+        Node node = root;
+        for (int i = start; i < str.length(); ++i) {
+            node = node.child(str.charAt(i));
+            if (node == null)
+                break;
+            if (node.word != null)
+                longest = node;
+        }
+        return longest;
+    }
+}
@@ -7,24 +7,51 @@
 
 package com.adamheins.dervish.test;
 
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apfloat.Apfloat;
+import org.apfloat.ApfloatMath;
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.adamheins.dervish.builder.FunctionBuilder;
+import com.adamheins.dervish.function.AdaptiveEvaluator;
+import com.adamheins.dervish.function.CommonSubexpressions;
 import com.adamheins.dervish.function.Constant;
 import com.adamheins.dervish.function.Cos;
 import com.adamheins.dervish.function.Divide;
+import com.adamheins.dervish.function.DualNumber;
+import com.adamheins.dervish.function.EvaluationException;
 import com.adamheins.dervish.function.Exponent;
 import com.adamheins.dervish.function.Function;
+import com.adamheins.dervish.function.FunctionLibrary;
+import com.adamheins.dervish.function.FunctionSerializer;
+import com.adamheins.dervish.function.Let;
+import com.adamheins.dervish.function.Ln;
 import com.adamheins.dervish.function.Log;
 import com.adamheins.dervish.function.Minus;
 import com.adamheins.dervish.function.Multiply;
 import com.adamheins.dervish.function.Negative;
 import com.adamheins.dervish.function.Number;
+import com.adamheins.dervish.function.ParallelEvaluator;
+import com.adamheins.dervish.function.Precision;
 import com.adamheins.dervish.function.Plus;
+import com.adamheins.dervish.function.Polynomial;
 import com.adamheins.dervish.function.Sin;
+import com.adamheins.dervish.function.SymbolTable;
 import com.adamheins.dervish.function.Tan;
 import com.adamheins.dervish.function.Variable;
+import com.adamheins.dervish.parser.FunctionParser;
 import com.adamheins.dervish.parser.ParsingException;
 
 public class BuilderTests {
@@ -474,4 +501,880 @@ public class BuilderTests {
 
         Assert.assertEquals(expected, actual);
     }
+
+
+    @Test
+    public void testCommutativeHashCode() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function first = fp.parse("x*y+sinx");
+        Function second = fp.parse("sinx+y*x");
+
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.hashCode(), second.hashCode());
+    }
+
+
+    @Test
+    public void testEvaluateSharesIdenticalSubtrees() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function function = fp.parse("sin(x*2)/sin(x*2)");
+
+        Assert.assertSame(function.getFirstChild(), function.getSecondChild());
+        Assert.assertSame(function, fp.parse("sin(x*2)/sin(x*2)"));
+    }
+
+
+    @Test
+    public void testInternKeepsChildOrder() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function first = fp.parse("x+y");
+        Function second = fp.parse("y+x");
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals("y+x", second.toString());
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testCanonicalFunctionImmutable() {
+        FunctionBuilder fb = new FunctionBuilder();
+        fb.add(new Variable("x"), 0);
+        fb.add(new Plus(), 0);
+        fb.add(new Number("1"), 0);
+
+        fb.getFunction().setFirstChild(new Number("2"));
+    }
+
+
+    @Test
+    public void testInternLeavesArgumentMutable() {
+        Function sin = new Sin();
+        sin.setFirstChild(new Variable("x"));
+        Function product = new Multiply();
+        product.setFirstChild(sin);
+        product.setSecondChild(sin);
+        Function sum = new Plus();
+        sum.setFirstChild(product);
+        sum.setSecondChild(new Number("1"));
+
+        Function canonical = sum.intern();
+        CommonSubexpressions.eliminate(sum);
+        sum.collectPolynomials();
+
+        Assert.assertNotSame(sum, canonical);
+        Assert.assertSame(product, sum.getFirstChild());
+
+        sum.setSecondChild(new Number("2"));
+        product.setSecondChild(new Variable("x"));
+        Assert.assertEquals("sin(x)*x+2", sum.toString());
+        Assert.assertEquals("sin(x)*sin(x)+1", canonical.toString());
+    }
+
+
+    @Test
+    public void testEliminateCommonSubexpressions() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function function = fp.parse("sin(x*2)*cos(x*2)+sin(x*2)");
+        Function let = CommonSubexpressions.eliminate(function);
+
+        Assert.assertEquals("let _0=x*2, _1=sin(_0) in _1*cos(_0)+_1",
+                let.toString());
+        Assert.assertEquals(function, let.evaluate());
+    }
+
+
+    @Test
+    public void testEliminateDerivativeSubexpressions()
+            throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function derivative = fp.parse("(sinx)^(x^2)").differentiate("x")
+                .differentiate("x");
+        Function let = CommonSubexpressions.eliminate(derivative);
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1.5"));
+
+        Assert.assertTrue(let instanceof Let);
+        Assert.assertEquals(derivative.evaluate(varMap), let.evaluate(varMap));
+        Assert.assertEquals(derivative.getVariables().contains("x"),
+                let.getVariables().contains("x"));
+        Assert.assertFalse(let.getVariables().contains("_0"));
+    }
+
+
+    @Test
+    public void testEliminateNothingRepeated() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function function = fp.parse("sinx+2");
+
+        Assert.assertSame(function, CommonSubexpressions.eliminate(function));
+    }
+
+
+    @Test
+    public void testDualMatchesDifferentiate() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1.5"));
+        varMap.put("y", new Number("2"));
+
+        String[] expressions = {"x*y+3", "x/y", "-x^2", "(sinx)^y", "cos(x*y)",
+            "tan(x)-y", "ln(x*y)", "log(x)", "e^(x/y)"};
+        for (String expression : expressions) {
+            Function function = fp.parse(expression);
+            Function expected = function.differentiate("x").evaluate(varMap);
+            Number derivative = function.evaluateDual(varMap, "x")
+                    .getDerivative();
+
+            Assert.assertEquals(expression, ((Number)expected).doubleValue(),
+                    derivative.doubleValue(), 1e-12);
+            Assert.assertEquals(expression, function.evaluate(varMap),
+                    function.evaluateDual(varMap, "x").getValue());
+        }
+    }
+
+
+    @Test
+    public void testDualThroughDefinedVariable() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        // y is defined in terms of x, so the derivative passes through it.
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("3"));
+        varMap.put("y", fp.parse("x^2"));
+
+        DualNumber dual = fp.parse("y*x").evaluateDual(varMap, "x");
+        Assert.assertEquals(new Number("27"), dual.getValue());
+        Assert.assertEquals(new Number("27"), dual.getDerivative());
+    }
+
+
+    @Test(expected = EvaluationException.class)
+    public void testDualWithoutValues() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Map<String, Function> direction = new HashMap<String, Function>();
+        direction.put("x", Number.ONE);
+
+        fp.parse("x^2").evaluateDual(null, direction);
+    }
+
+
+    @Test
+    public void testLogDerivative() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("2"));
+
+        // d/dx log(x^2) = 2/(x*ln10)
+        Function derivative = fp.parse("log(x^2)").differentiate("x")
+                .evaluate(varMap);
+        Assert.assertEquals(1 / (Math.log(10)), ((Number)derivative)
+                .doubleValue(), 1e-12);
+    }
+
+
+    /**
+     * Builds a balanced tree of the given depth that mixes operators,
+     * variables and numbers.
+     */
+    private static Function balancedTree(int depth, int seed) {
+        if (depth == 0) {
+            switch (seed % 3) {
+            case 0:
+                return new Variable("x");
+            case 1:
+                return new Variable("y");
+            default:
+                return new Number(Integer.toString(seed % 7 + 1));
+            }
+        }
+
+        Function node;
+        switch (seed % 4) {
+        case 0:
+            node = new Plus();
+            break;
+        case 1:
+            node = new Multiply();
+            break;
+        case 2:
+            node = new Minus();
+            break;
+        default:
+            Function sin = new Sin();
+            sin.setFirstChild(balancedTree(depth - 1, seed * 3 + 1));
+            return sin;
+        }
+        node.setFirstChild(balancedTree(depth - 1, seed * 2 + 1));
+        node.setSecondChild(balancedTree(depth - 1, seed * 2 + 2));
+        return node;
+    }
+
+
+    @Test
+    public void testParallelEvaluateMatchesSequential() {
+        Function function = balancedTree(16, 0);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ParallelEvaluator evaluator = new ParallelEvaluator(pool, 64);
+
+        try {
+            Map<String, Function> varMap = new HashMap<String, Function>();
+            Assert.assertSame(function.evaluate(varMap), evaluator.evaluate(
+                    function, varMap));
+
+            varMap.put("x", new Number("0.5"));
+            Assert.assertSame(function.evaluate(varMap), evaluator.evaluate(
+                    function, varMap));
+
+            // Numeric evaluation is much slower, so a smaller tree is used.
+            function = balancedTree(10, 0);
+            varMap.put("y", new Number("2"));
+            Function value = evaluator.evaluate(function, varMap);
+            Assert.assertTrue(value instanceof Number);
+            Assert.assertSame(function.evaluate(varMap), value);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testParallelEvaluateLeavesArgumentMutable() {
+        Function sin = new Sin();
+        sin.setFirstChild(new Variable("x"));
+        Function function = new Plus();
+        function.setFirstChild(sin);
+        function.setSecondChild(new Variable("x"));
+        Function value = new ParallelEvaluator(ForkJoinPool.commonPool(), 1)
+                .evaluate(function, null);
+
+        function.setSecondChild(new Number("2"));
+        Assert.assertEquals("sin(x)+2", function.toString());
+        Assert.assertEquals("sin(x)+x", value.toString());
+    }
+
+
+    @Test(expected = EvaluationException.class)
+    public void testParallelEvaluateDivisionByZero() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        Function function = new FunctionParser(varList).parse("x/(0*x)");
+        new ParallelEvaluator(ForkJoinPool.commonPool(), 1).evaluate(function,
+                null);
+    }
+
+
+    @Test
+    public void testEvaluateWithPrecision() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        Function function = new FunctionParser(varList).parse("sin(x)/3");
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1"));
+
+        Assert.assertEquals("0.28049032826929883555", function.evaluate(
+                varMap).toString());
+        Assert.assertEquals("0.28049032826929883555083410721009966654085435"
+                + "3599456", function.evaluate(varMap, new Precision(50,
+                        false)).toString());
+
+        // The precision of the thread is restored afterwards.
+        Assert.assertEquals(Precision.DEFAULT, Precision.get());
+    }
+
+
+    @Test
+    public void testConstantsAtPrecision() {
+        Precision.set(new Precision(40, false));
+        try {
+            Assert.assertEquals(new Number("3.141592653589793238462643383279"
+                    + "5028841971"), Constant.PI);
+            Assert.assertEquals(new Number("2.718281828459045235360287471352"
+                    + "6624977572"), Constant.E);
+        } finally {
+            Precision.set(null);
+        }
+        Assert.assertEquals(new Number("3.14159265358979323846"), Constant.PI);
+    }
+
+
+    @Test
+    public void testAdaptiveMatchesEvaluate() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1.25"));
+        varMap.put("y", new Number("0.75"));
+
+        String[] expressions = {"x*y", "x/y", "x^y", "x^3", "sin(x*y)/cosy",
+            "tan(x-y)", "ln(x+y)*x", "log(x)", "e^x-pi", "1/3", "x-x",
+            "sin(pi)", "2^0.5", "100000*x/7"};
+        int[] precisions = {1, 6, 15, 30};
+
+        for (String expression : expressions) {
+            Function function = fp.parse(expression);
+            for (int digits : precisions) {
+                // Exact results are written out to the same precision.
+                Precision.set(new Precision(digits + 20, false));
+                Apfloat exact;
+                try {
+                    exact = new Apfloat(function.evaluate(varMap).toString());
+                } finally {
+                    Precision.set(null);
+                }
+                Function expected = new Number(ApfloatMath.round(exact, digits,
+                        RoundingMode.HALF_UP).toString(true));
+
+                Function actual = new AdaptiveEvaluator(digits).evaluate(
+                        function, varMap);
+                Assert.assertEquals(expression + " to " + digits, expected,
+                        actual);
+            }
+        }
+    }
+
+
+    @Test
+    public void testAdaptiveSymbolic() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        Function function = new FunctionParser(varList).parse("sin(x)*y");
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("0"));
+
+        Assert.assertEquals(function.evaluate(varMap), new AdaptiveEvaluator(10)
+                .evaluate(function, varMap));
+        varMap.put("x", new Number("2"));
+        Assert.assertEquals(function.evaluate(varMap).toString(),
+                new AdaptiveEvaluator(20).evaluate(function, varMap)
+                        .toString());
+    }
+
+
+    @Test
+    public void testCanonicalizeCollectsTerms() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        String[][] cases = {{"x+2+x+3", "5+2*x"}, {"x*2*x", "2*x^2"},
+            {"x-x", "0"}, {"2*x-3*x", "-(x)"}, {"-(x+y)+y", "-(x)"},
+            {"x/3+x/3", "2*x/3"}, {"6*x/4", "1.5*x"}, {"x/2/3*6", "x"},
+            {"-x*-y", "x*y"}, {"x*(-2)", "-2*x"}, {"x^2*x^(-2)+x^3/x", "1+x^2"},
+            {"sin(x)*2*sin(x)-sin(x)^2", "sin(x)^2"},
+            {"x^0.5*x^0.5", "(x^0.5)^2"}};
+        for (String[] c : cases) {
+            Function canonical = fp.parse(c[0]).canonicalize();
+            Assert.assertEquals(c[0], c[1], canonical.toString());
+            Assert.assertSame(c[0], canonical, canonical.canonicalize());
+        }
+    }
+
+
+    @Test
+    public void testCanonicalizeOrderIndependent() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function expected = fp.parse("2*x*y-y+1").canonicalize();
+        Assert.assertSame(expected, fp.parse("1+y*x-y+x*y").canonicalize());
+        Assert.assertSame(expected, fp.parse("(y*(x+x)+2)-(y+1)")
+                .canonicalize());
+    }
+
+
+    @Test
+    public void testCanonicalizeKeepsValue() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1.5"));
+
+        Function derivative = fp.parse("x^3*sin(x)*x^2/(x+1)")
+                .differentiate("x");
+        Function canonical = derivative.canonicalize();
+        Assert.assertTrue(canonical.toString(),
+                canonical.toString().length() < derivative.toString().length());
+        Assert.assertEquals(((Number)derivative.evaluate(varMap)).doubleValue(),
+                ((Number)canonical.evaluate(varMap)).doubleValue(), 1e-12);
+    }
+
+
+    @Test
+    public void testCollectPolynomials() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function polynomial = fp.parse("(x+1)^2").collectPolynomials();
+        Assert.assertTrue(polynomial instanceof Polynomial);
+        Assert.assertEquals("x^2+2*x+1", polynomial.toString());
+        Assert.assertEquals("(x+2)*x+1", ((Polynomial)polynomial).toHorner()
+                .toString());
+
+        Assert.assertEquals(Number.ONE, fp.parse("(x+1)^2-(x^2+2*x)")
+                .collectPolynomials());
+        Assert.assertEquals(fp.parse("x^2+2*x+1").collectPolynomials(),
+                polynomial);
+
+        // Only the polynomial subtrees are collected.
+        Function function = fp.parse("sin(x*x+y)*ln(y)").collectPolynomials();
+        Assert.assertTrue(function.getFirstChild().getFirstChild()
+                instanceof Polynomial);
+        Assert.assertEquals("sin(x^2+y)*ln(y)", function.toString());
+    }
+
+
+    @Test
+    public void testPolynomialMatchesFunction() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1.5"));
+        varMap.put("y", new Number("2.25"));
+
+        String[] expressions = {"x^3+2*x^2-x+5", "(x+y)^3-x*y",
+            "3*x*y^2-x^2*y+y-7", "-(2*y-x)^4", "x*y*(x-y)"};
+        for (String expression : expressions) {
+            Function function = fp.parse(expression);
+            Function polynomial = function.collectPolynomials();
+            Assert.assertTrue(expression, polynomial instanceof Polynomial);
+
+            Assert.assertEquals(expression, function.evaluate(varMap),
+                    polynomial.evaluate(varMap));
+            for (String var : varList) {
+                Assert.assertEquals(expression, function.differentiate(var)
+                        .evaluate(varMap), polynomial.differentiate(var)
+                        .evaluate(varMap));
+                Assert.assertEquals(expression, polynomial.differentiate(var)
+                        .evaluate(varMap), polynomial.evaluateDual(varMap, var)
+                        .getDerivative());
+            }
+        }
+    }
+
+
+    @Test
+    public void testPolynomialPartialEvaluation() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+        Function polynomial = fp.parse("3*x*y^2-x^2*y+y-7")
+                .collectPolynomials();
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("2"));
+        Function partial = polynomial.evaluate(varMap);
+        Assert.assertTrue(partial instanceof Polynomial);
+        Assert.assertEquals("6*y^2-3*y-7", partial.toString());
+        Assert.assertEquals(polynomial, polynomial.evaluate());
+    }
+
+
+    @Test
+    public void testExactArithmetic() throws ParsingException {
+        FunctionParser fp = new FunctionParser(new ArrayList<String>());
+
+        // Thirds are exact, so they add up to exactly one at any precision.
+        Assert.assertSame(Number.ONE, fp.parse("1/3+1/3+1/3").evaluate());
+        Assert.assertSame(Number.ONE, fp.parse("(1/3)*3").evaluate());
+        Assert.assertSame(Number.ONE, fp.parse("0.1*10").evaluate());
+        Assert.assertEquals(new Number("0.3"), fp.parse("0.1+0.2")
+                .evaluate());
+
+        Assert.assertEquals(new Number("-8"), fp.parse("(-2)^3").evaluate());
+        Assert.assertEquals(new Number("0.125"), fp.parse("2^(-3)")
+                .evaluate());
+        Assert.assertEquals("1267650600228229401496703205376",
+                fp.parse("2^100").evaluate().toString());
+    }
+
+
+    @Test(expected = EvaluationException.class)
+    public void testExactDivisionByZero() throws ParsingException {
+        new FunctionParser(new ArrayList<String>()).parse("1/(3-3)")
+                .evaluate();
+    }
+
+
+    @Test
+    public void testSmallNumberOverflow() throws ParsingException {
+        FunctionParser fp = new FunctionParser(new ArrayList<String>());
+
+        Assert.assertSame(new Number("5").intern(), fp.parse("2+3")
+                .evaluate());
+        Assert.assertEquals(new Number("0.12"), fp.parse("0.1+0.02")
+                .evaluate());
+        Assert.assertEquals(new Number("2.25"), fp.parse("(2/3)^(-2)")
+                .evaluate());
+
+        // Values that overflow a long are still exact.
+        Assert.assertEquals("9223372036854775808", fp.parse(
+                "9223372036854775807+1").evaluate().toString());
+        Assert.assertEquals("-9223372036854775809", fp.parse(
+                "-9223372036854775807-2").evaluate().toString());
+        Assert.assertEquals("85070591730234615847396907784232501249", fp
+                .parse("9223372036854775807*9223372036854775807").evaluate()
+                .toString());
+        Assert.assertEquals(new Number("9223372036854775808"), fp.parse(
+                "1/(0.5^63)").evaluate());
+    }
+
+
+    @Test
+    public void testDeepTrees() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+
+        // A left-leaning chain far deeper than the native stack allows for
+        // recursion.
+        StringBuilder math = new StringBuilder("1");
+        for (int i = 1; i < 50000; ++i)
+            math.append("+x*1");
+        Function function = new FunctionParser(varList).parse(math
+                .toString());
+        Function copy = new FunctionParser(varList).parse(math.toString());
+
+        Assert.assertEquals(copy.toString(), function.toString());
+        Assert.assertTrue(function.equals(copy));
+        Assert.assertEquals(function, copy.intern());
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("2"));
+        Assert.assertEquals(new Number("99999"), function.evaluate(varMap));
+        Assert.assertEquals(new Number("49999"), function.differentiate("x"));
+    }
+
+
+    @Test
+    public void testMinimalBrackets() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        varList.add("z");
+        FunctionParser fp = new FunctionParser(varList);
+
+        // Brackets are only kept where they change how the string is read,
+        // so each string reads back as the same Function.
+        String[][] cases = {{"(x-y)-z", "x-y-z"}, {"x-(y-z)", "x-(y-z)"},
+            {"(x/y)*z", "x/y*z"}, {"x/(y*z)", "x/(y*z)"},
+            {"x^(y^z)", "x^y^z"}, {"(x^y)^z", "(x^y)^z"},
+            {"sin((x+y))", "sin(x+y)"}, {"(ln(x))^2", "(ln(x))^2"},
+            {"(-2)^x", "(-2)^x"}, {"x*(-2)", "x*(-2)"}, {"-x*y", "-(x)*y"}};
+        for (String[] c : cases) {
+            Function function = fp.parse(c[0]);
+            Assert.assertEquals(c[0], c[1], function.toString());
+            Assert.assertEquals(c[0], function, fp.parse(c[1]));
+        }
+    }
+
+
+    @Test
+    public void testSerializationRoundTrip() throws ParsingException,
+            IOException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function derivative = fp.parse("(sinx)^(x^2)").differentiate("x");
+        Function[] functions = {fp.parse("x/3+y*0.25-e^pi"),
+            fp.parse("log(x)+ln(x)-tan(y)*cos(-x)"),
+            new Number("123456789012345678901234567890"), derivative,
+            CommonSubexpressions.eliminate(derivative),
+            fp.parse("(x+1)^3").collectPolynomials()};
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1.5"));
+        varMap.put("y", new Number("2"));
+
+        for (Function function : functions) {
+            byte[] bytes = FunctionSerializer.serialize(function);
+            Function read = FunctionSerializer.deserialize(ByteBuffer.wrap(
+                    bytes));
+            Assert.assertEquals(function.toString(), read.toString());
+            Assert.assertEquals(function.evaluate(varMap),
+                    read.evaluate(varMap));
+        }
+
+        // Shared subtrees are only written once.
+        Assert.assertTrue(FunctionSerializer.serialize(derivative).length
+                < derivative.toString().length());
+    }
+
+
+    @Test
+    public void testFunctionLibrary() throws ParsingException, IOException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+
+        List<Function> functions = new ArrayList<Function>();
+        for (int i = 0; i < 100; ++i)
+            functions.add(fp.parse("x^" + i + "+" + i + "/7"));
+
+        Path path = Files.createTempFile("dervish", ".lib");
+        try {
+            FunctionLibrary.write(path, functions);
+            FunctionLibrary library = FunctionLibrary.open(path);
+
+            Assert.assertEquals(100, library.size());
+            Assert.assertSame(library.get(42), library.get(42));
+            for (int i = 99; i >= 0; --i)
+                Assert.assertEquals(functions.get(i), library.get(i));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+
+    @Test(expected = IOException.class)
+    public void testDeserializeUnknownVersion() throws IOException {
+        byte[] bytes = FunctionSerializer.serialize(new Number("1"));
+        bytes[7] = 99;
+        FunctionSerializer.deserialize(ByteBuffer.wrap(bytes));
+    }
+
+
+    @Test
+    public void testDeserializeMalformedCounts() {
+        byte[] header = Arrays.copyOf(FunctionSerializer.serialize(
+                new Number("1")), 8);
+
+        // A count far larger than the record, and a precision whose varint
+        // overflows a long.
+        byte[][] records = {
+            {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07},
+            {1, 2, 1, '1', (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+                (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+                0x01, 0, 1, 0, 0}
+        };
+        for (byte[] record : records) {
+            ByteBuffer buffer = ByteBuffer.allocate(header.length
+                    + record.length);
+            buffer.put(header).put(record).flip();
+            try {
+                FunctionSerializer.deserialize(buffer);
+                Assert.fail("Malformed record was read.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+
+    @Test
+    public void testUntouchedSubtreesAreShared() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        Function function = fp.parse("sin(x)^3+y*ln(3)");
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("y", new Number("2"));
+
+        // The subtree without y is returned as it is.
+        Function evaluated = function.evaluate(varMap);
+        Assert.assertSame(function.getFirstChild(),
+                evaluated.getFirstChild());
+        Assert.assertEquals(fp.parse("sin(x)^3+2*ln(3)"), evaluated);
+
+        Assert.assertEquals(fp.parse("ln(3)"), function.differentiate("y"));
+        Assert.assertSame(Number.ZERO, function.differentiate("z"));
+    }
+
+
+    @Test
+    public void testConstantFoldingPerPrecision() throws ParsingException {
+        FunctionParser fp = new FunctionParser(new ArrayList<String>());
+
+        Function quarter = new Divide();
+        quarter.setFirstChild(Constant.PI);
+        quarter.setSecondChild(new Number("4"));
+        Function sin = new Sin();
+        sin.setFirstChild(quarter);
+        Function ln = new Ln();
+        ln.setFirstChild(new Number("10"));
+        Function product = new Multiply();
+        product.setFirstChild(sin);
+        product.setSecondChild(ln);
+        Function constant = product.intern();
+
+        String math = "sin(pi/4)*ln(10)";
+        Assert.assertSame(constant.evaluate(), constant.evaluate());
+        Assert.assertEquals(fp.parse(math).toString(),
+                constant.evaluate().toString());
+
+        // The folded value is not reused at another precision.
+        Precision.set(new Precision(40, false));
+        try {
+            Assert.assertEquals(fp.parse(math).toString(),
+                    constant.evaluate().toString());
+        } finally {
+            Precision.set(null);
+        }
+    }
+
+
+    @Test
+    public void testRepeatedVariableEvaluatedOnce() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        // The value of x refers to y, which must still be substituted in
+        // each occurrence of x.
+        Function function = fp.parse("x+x*sin(x)-x^2");
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", fp.parse("y+1"));
+        varMap.put("y", new Number("2"));
+
+        Assert.assertEquals(fp.parse("3+3*sin(3)-3^2").evaluate(),
+                function.evaluate(varMap));
+    }
+
+
+    @Test
+    public void testEvaluateBySlot() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("x");
+        varList.add("y");
+        FunctionParser fp = new FunctionParser(varList);
+
+        // The parser gives the variables dense slots in its own table.
+        SymbolTable symbols = fp.getSymbols();
+        Assert.assertEquals(0, symbols.slotOf("x"));
+        Assert.assertEquals(1, symbols.slotOf("y"));
+        Assert.assertEquals(2, symbols.size());
+
+        Function function = fp.parse("x^2+sin(y)*x");
+        Function[] bindings = new Function[symbols.size()];
+        bindings[symbols.slotOf("x")] = new Number("3");
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("3"));
+        Assert.assertEquals(function.evaluate(varMap),
+                function.evaluate(bindings, symbols));
+        Assert.assertEquals(fp.parse("9+sin(y)*3").evaluate(),
+                function.evaluate(bindings, symbols));
+    }
+
+
+    @Test
+    public void testEvaluateManyBindings() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        StringBuilder math = new StringBuilder("0");
+        for (int i = 0; i < 20; ++i) {
+            String var = "k" + (char)('a' + i);
+            varList.add(var);
+            math.append('+').append(var).append('*').append(var);
+        }
+        FunctionParser fp = new FunctionParser(varList);
+        SymbolTable symbols = fp.getSymbols();
+        Function function = fp.parse(math.toString());
+
+        // Every other variable is substituted, which is enough of them to be
+        // looked up by search rather than one by one.
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        Function[] bindings = new Function[symbols.size()];
+        StringBuilder expected = new StringBuilder("0");
+        for (int i = 0; i < 20; ++i) {
+            String var = varList.get(i);
+            if (i % 2 == 0) {
+                varMap.put(var, new Number(Integer.toString(i)));
+                bindings[symbols.slotOf(var)] = new Number(
+                        Integer.toString(i));
+                expected.append('+').append(i * i);
+            } else {
+                expected.append('+').append(var).append('*').append(var);
+            }
+        }
+
+        Function value = fp.parse(expected.toString()).evaluate();
+        Assert.assertEquals(value, function.evaluate(varMap));
+        Assert.assertEquals(value, function.evaluate(bindings, symbols));
+    }
+
+
+    @Test
+    public void testNumberEqualityIsTransitive() throws ParsingException {
+        FunctionParser fp = new FunctionParser(new ArrayList<String>());
+
+        Function third = fp.parse("1/3").evaluate();
+        Function short3;
+        Function long3;
+        Function half;
+        Precision.set(new Precision(4, false));
+        try {
+            short3 = fp.parse("cos(0)/3").evaluate();
+            half = fp.parse("cos(0)/2").evaluate();
+            Precision.set(new Precision(5, false));
+            long3 = fp.parse("cos(0)/3").evaluate();
+        } finally {
+            Precision.set(null);
+        }
+
+        // The exact value is not rounded to match either inexact one.
+        Assert.assertFalse(third.equals(short3));
+        Assert.assertFalse(third.equals(long3));
+        Assert.assertFalse(short3.equals(long3));
+
+        // Exact and inexact values of the same number are equal, and have
+        // the same hash.
+        Function exactHalf = new Number("0.5");
+        Assert.assertEquals(exactHalf, half);
+        Assert.assertEquals(half, exactHalf);
+        Assert.assertEquals(exactHalf.hashCode(), half.hashCode());
+    }
 }
@@ -7,6 +7,7 @@
 
 package com.adamheins.dervish.test;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,6 +22,7 @@ import com.adamheins.dervish.function.Plus;
 import com.adamheins.dervish.function.Variable;
 import com.adamheins.dervish.parser.CommandParser;
 import com.adamheins.dervish.parser.FunctionParser;
+import com.adamheins.dervish.parser.ParsingException;
 
 
 /**
@@ -74,6 +76,16 @@ public class CommandParserTests {
     }
 
 
+    @Test
+    public void testParseCommandEvalCollectsTerms() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x");
+
+        Assert.assertEquals("5+2*x", cp.parse("eval x+2+x+3"));
+        Assert.assertEquals("2*x^2", cp.parse("eval x*2*x"));
+    }
+
+
     @Test
     public void testParseCommandUseSingleCharVars() throws Exception {
         String input = "use x y z";
@@ -257,6 +269,35 @@ public class CommandParserTests {
     }
 
 
+    @Test
+    public void testParseCommandBatch() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x y");
+        cp.parse("set y 2");
+
+        String actual = cp.parse("batch x*y+0.5 x=1,2,3");
+        String expected = "2.5\n4.5\n6.5";
+
+        Assert.assertEquals(expected, actual);
+    }
+
+
+    @Test(expected = ParsingException.class)
+    public void testParseCommandBatchUnequalColumns() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x y");
+        cp.parse("batch x+y x=1,2 y=3");
+    }
+
+
+    @Test(expected = ParsingException.class)
+    public void testParseCommandBatchMissingValue() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x y");
+        cp.parse("batch x+y x=1,2");
+    }
+
+
     @Test
     public void testParseCommandDiff() throws Exception {
         CommandParser cp = new CommandParser();
@@ -268,6 +309,126 @@ public class CommandParserTests {
     }
 
 
+    @Test
+    public void testParseCommandDiffLog() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x");
+        String actual = cp.parse("diff log(x) x");
+        String expected = "0.43429448190325182765/x";
+
+        Assert.assertEquals(expected, actual);
+    }
+
+
+    @Test
+    public void testParseCommandGrad() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x y");
+        cp.parse("set x 3");
+        cp.parse("set y 2");
+
+        String actual = cp.parse("grad x^2*y");
+        String expected = "d/dx = 12\nd/dy = 9";
+
+        Assert.assertEquals(expected, actual);
+    }
+
+
+    @Test
+    public void testParseCommandGradOneVariable() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x y z");
+        cp.parse("set z 0.5");
+        cp.parse("set y z*4");
+        cp.parse("set x 3");
+
+        String actual = cp.parse("grad x*y y");
+        String expected = "d/dy = 3";
+
+        Assert.assertEquals(expected, actual);
+    }
+
+
+    @Test(expected = ParsingException.class)
+    public void testParseCommandGradMissingValue() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x y");
+        cp.parse("set x 3");
+        cp.parse("grad x*y");
+    }
+
+
+    @Test
+    public void testParseCommandPrecision() throws Exception {
+        CommandParser cp = new CommandParser();
+        Assert.assertEquals("20 digits", cp.parse("precision"));
+
+        cp.parse("precision 40");
+        Assert.assertEquals("40 digits", cp.parse("precision"));
+        Assert.assertEquals("0.3333333333333333333333333333333333333333",
+                cp.parse("eval 1/3"));
+        Assert.assertEquals("0.8414709848078965066525023216302989996226",
+                cp.parse("eval sin(1)"));
+
+        cp.parse("precision default");
+        Assert.assertEquals("0.33333333333333333333", cp.parse("eval 1/3"));
+    }
+
+
+    @Test
+    public void testParseCommandPrecisionDeferred() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("precision 10 deferred");
+        Assert.assertEquals("10 digits, deferred rounding",
+                cp.parse("precision"));
+        Assert.assertEquals("0.3333333333", cp.parse("eval 1/3"));
+        Assert.assertEquals("6.283185307", cp.parse("eval 2*pi"));
+    }
+
+
+    @Test
+    public void testParseCommandPrecisionPerSession() throws Exception {
+        CommandParser first = new CommandParser();
+        CommandParser second = new CommandParser();
+        first.parse("precision 5");
+
+        Assert.assertEquals("0.33333333333333333333", second.parse(
+                "eval 1/3"));
+        Assert.assertEquals("0.33333", first.parse("eval 1/3"));
+    }
+
+
+    @Test
+    public void testParseCommandPrecisionLargeExact() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("precision 5");
+
+        // The exact power has over a hundred digits, so it is computed and
+        // written at the precision instead.
+        Assert.assertEquals("1.6446", cp.parse("eval 1.01^50"));
+        Assert.assertEquals("1267650600228229401496703205376", cp.parse(
+                "eval 2^100"));
+    }
+
+
+    @Test
+    public void testParseCommandEvalDecimalCoefficient() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x");
+
+        // Decimal coefficients are printed as entered, not as fractions.
+        Assert.assertEquals("3.14159*x^2", cp.parse("eval 3.14159*x^2"));
+        Assert.assertEquals("0.2+0.1*x", cp.parse("eval x*0.1+0.2"));
+        Assert.assertEquals("x/3", cp.parse("eval x/3"));
+    }
+
+
+    @Test(expected = ParsingException.class)
+    public void testParseCommandPrecisionInvalid() throws Exception {
+        new CommandParser().parse("precision 0");
+    }
+
+
     @Test
     public void testLASTVarUndefined() throws Exception {
         CommandParser cp = new CommandParser();
@@ -285,4 +446,103 @@ public class CommandParserTests {
 
         Assert.assertEquals(expected, actual);
     }
+
+
+    @Test
+    public void testParseCommandStreaming() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use x");
+
+        StringWriter out = new StringWriter();
+        cp.parse("diff x^3-x x", out);
+        Assert.assertEquals("-1+3*x^2", out.toString());
+        Assert.assertEquals(cp.parse("eval $"), out.toString());
+
+        out = new StringWriter();
+        cp.parse("set x 2", out);
+        Assert.assertEquals("", out.toString());
+        cp.parse("show x", out);
+        Assert.assertEquals("x = 2", out.toString());
+    }
+
+
+    @Test
+    public void testSubAfterDependencyChanges() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use a b c d");
+        cp.parse("set a b+1");
+        cp.parse("set b c*2");
+        cp.parse("set d 10");
+        cp.parse("set c 3");
+        Assert.assertEquals("17", cp.parse("sub a+d"));
+
+        // Changing a variable updates those that depend on it.
+        cp.parse("set c 5");
+        Assert.assertEquals("21", cp.parse("sub a+d"));
+
+        // Defining a variable that was referred to before it had a value.
+        cp.parse("set d c");
+        Assert.assertEquals("16", cp.parse("sub a+d"));
+
+        cp.parse("clear c");
+        Assert.assertEquals("1+3*c", cp.parse("sub a+d all"));
+        cp.parse("set c 1");
+        Assert.assertEquals("4", cp.parse("sub a+d"));
+    }
+
+
+    @Test
+    public void testSetRejectsCycle() throws Exception {
+        CommandParser cp = new CommandParser();
+        cp.parse("use a b c");
+        cp.parse("set a b+1");
+        cp.parse("set b c*2");
+        cp.parse("set c 2");
+
+        try {
+            cp.parse("set c a-1");
+            Assert.fail("Expected the cycle to be refused.");
+        } catch (ParsingException e) {
+            Assert.assertEquals("Variable definition contains cycle.",
+                    e.getMessage());
+        }
+
+        // The previous definition is kept.
+        Assert.assertEquals("c = 2", cp.parse("show c"));
+        Assert.assertEquals("5", cp.parse("sub a"));
+    }
+
+
+    @Test
+    public void testSetManySharedDependencies() throws Exception {
+        CommandParser cp = new CommandParser();
+        List<String> names = new ArrayList<String>();
+        StringBuilder use = new StringBuilder("use");
+        for (char first = 'k'; first <= 'm'; ++first) {
+            for (char second = 'a'; second <= 'z'; ++second) {
+                names.add("q" + first + second);
+                use.append(" q").append(first).append(second);
+            }
+        }
+        cp.parse(use.toString());
+
+        // Each variable refers to the two after it, so checking for cycles
+        // by following every path would take exponential time. Defining them
+        // from the first onwards reorders them as each reference is added.
+        for (int i = 0; i + 2 < names.size(); ++i)
+            cp.parse("set " + names.get(i) + " " + names.get(i + 1) + "-"
+                    + names.get(i + 2));
+        cp.parse("set " + names.get(names.size() - 2) + " 1");
+        cp.parse("set " + names.get(names.size() - 1) + " 1");
+
+        Assert.assertEquals("0", cp.parse("sub " + names.get(0)));
+
+        try {
+            cp.parse("set " + names.get(names.size() - 1) + " "
+                    + names.get(0));
+            Assert.fail("Expected the cycle to be refused.");
+        } catch (ParsingException e) {
+            Assert.assertEquals("0", cp.parse("sub " + names.get(0)));
+        }
+    }
 }
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2015 Adam Heins
+ *
+ * This file is part of the Dervish project, which is distributed under the MIT
+ * license. For the full terms, see the included LICENSE file.
+ */
+
+package com.adamheins.dervish.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.adamheins.dervish.compile.BatchEvaluator;
+import com.adamheins.dervish.compile.CompilationException;
+import com.adamheins.dervish.compile.CompiledFunction;
+import com.adamheins.dervish.compile.DirectionalDerivative;
+import com.adamheins.dervish.compile.FunctionCompiler;
+import com.adamheins.dervish.compile.Gradient;
+import com.adamheins.dervish.compile.Hessian;
+import com.adamheins.dervish.compile.Jacobian;
+import com.adamheins.dervish.compile.Program;
+import com.adamheins.dervish.compile.SparseMatrix;
+import com.adamheins.dervish.function.CommonSubexpressions;
+import com.adamheins.dervish.function.DualNumber;
+import com.adamheins.dervish.function.Exponent;
+import com.adamheins.dervish.function.Function;
+import com.adamheins.dervish.function.Multiply;
+import com.adamheins.dervish.function.Number;
+import com.adamheins.dervish.function.Plus;
+import com.adamheins.dervish.function.Variable;
+import com.adamheins.dervish.parser.FunctionParser;
+import com.adamheins.dervish.parser.ParsingException;
+
+
+/**
+ * Tests for compiled evaluation of Functions.
+ *
+ * @author Adam
+ */
+public class CompilerTests {
+
+    private static final double DELTA = 1e-12;
+
+    private static final List<String> VARS = Arrays.asList("x", "y");
+
+    // Expressions from the builder and parser tests, along with some that
+    // contain variables.
+    private static final String[] EXPRESSIONS = {
+        "1", "1+2", "1.5+2.5", "3+x", "x+y", "x+0", "0+0", "2-3", "5.2-2.5",
+        "2*3", "x*0", "2.5*3.1", "6/3", "3/2", "6.76/2.6", "2^3", "1^x",
+        "0^x", "x^0", "1.5^4", "log1000", "-10", "2*-10", "e^x", "sinpi",
+        "sin(pi/2)", "cospi", "tanpi", "34", "12.345", "-156", "34+1.3",
+        "35.6-10.4", "50*4", "12/3", "5^2", "(-5.6)", "2*(3+4)",
+        "(2*(6-3))^2", "(2+8)/4-0.5*2", "(log(500+500)*2/3)^3", "sinx",
+        "cosx", "tanx", "lnx", "logx", "pi", "e", "x^y", "-(x*y)+x/y",
+        "sin(x)^2+cos(y)^2", "x*x*x-y*y"
+    };
+
+
+    /**
+     * Evaluates a function with the reference implementation.
+     *
+     * @param function The function to evaluate.
+     * @param x The value of x.
+     * @param y The value of y.
+     *
+     * @return The value of the function.
+     */
+    private static double reference(Function function, double x, double y) {
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number(Double.toString(x)));
+        varMap.put("y", new Number(Double.toString(y)));
+        return ((Number)function.evaluate(varMap)).doubleValue();
+    }
+
+
+    private static Function parse(String str) throws ParsingException {
+        return new FunctionParser(new ArrayList<String>(VARS)).parse(str);
+    }
+
+
+    @Test
+    public void testCompileNumber() throws ParsingException {
+        CompiledFunction cf = new FunctionCompiler(VARS).compile(parse("34"));
+        Assert.assertEquals(34, cf.applyAsDouble(new double[2]), DELTA);
+    }
+
+
+    @Test
+    public void testCompileConstantFolded() throws ParsingException {
+        CompiledFunction cf = new FunctionCompiler(VARS).compile(
+                parse("(log(500+500)*2/3)^3"));
+        Assert.assertEquals(8, cf.applyAsDouble(new double[2]), DELTA);
+    }
+
+
+    @Test
+    public void testCompileArithmetic() throws ParsingException {
+        Function function = parse("(x+2)*y-x/4+-y");
+        CompiledFunction cf = new FunctionCompiler(VARS).compile(function);
+
+        Assert.assertEquals(reference(function, 1.5, -3),
+                cf.applyAsDouble(new double[] {1.5, -3}), DELTA);
+        Assert.assertEquals(reference(function, 8, 0.25),
+                cf.applyAsDouble(new double[] {8, 0.25}), DELTA);
+    }
+
+
+    @Test
+    public void testCompileTranscendental() throws ParsingException {
+        Function function = parse("sinx*cosy+tan(x/2)+lnx+logy+x^y+e^pi");
+        CompiledFunction cf = new FunctionCompiler(VARS).compile(function);
+
+        Assert.assertEquals(reference(function, 1.25, 2.5),
+                cf.applyAsDouble(new double[] {1.25, 2.5}), 1e-9);
+    }
+
+
+    @Test
+    public void testCompileVariableOrder() throws ParsingException {
+        Function function = parse("x-y");
+        CompiledFunction cf = new FunctionCompiler(Arrays.asList("y", "x"))
+                .compile(function);
+
+        Assert.assertEquals(-1, cf.applyAsDouble(new double[] {3, 2}), DELTA);
+    }
+
+
+    @Test
+    public void testCompiledMatchesEvaluate() throws ParsingException {
+        FunctionCompiler compiler = new FunctionCompiler(VARS);
+        double[] vars = {1.75, 0.5};
+
+        for (String expression : EXPRESSIONS) {
+            Function function = parse(expression);
+            double expected = reference(function, vars[0], vars[1]);
+            double actual = compiler.compile(function).applyAsDouble(vars);
+            Assert.assertEquals(expression, expected, actual, 1e-9);
+        }
+    }
+
+
+    @Test
+    public void testCompilePolynomials() throws ParsingException {
+        FunctionCompiler compiler = new FunctionCompiler(VARS);
+        double[] vars = {1.75, 0.5};
+
+        String[] expressions = {"x^3+2*x^2-x+5", "(x+y)^3-x*y",
+            "sin(x*x+y)*(y-2)"};
+        for (String expression : expressions) {
+            Function function = parse(expression);
+            Function polynomials = function.collectPolynomials();
+            double expected = reference(function, vars[0], vars[1]);
+            Assert.assertEquals(expression, expected, compiler.compile(
+                    polynomials).applyAsDouble(vars), 1e-9);
+            Assert.assertEquals(expression, expected, compiler.assemble(
+                    polynomials).evaluate(vars), 1e-9);
+        }
+    }
+
+
+    @Test
+    public void testProgramMatchesEvaluate() throws ParsingException {
+        FunctionCompiler compiler = new FunctionCompiler(VARS);
+        double[] vars = {1.75, 0.5};
+
+        for (String expression : EXPRESSIONS) {
+            Function function = parse(expression);
+            double expected = reference(function, vars[0], vars[1]);
+            double actual = compiler.assemble(function).evaluate(vars);
+            Assert.assertEquals(expression, expected, actual, 1e-9);
+        }
+    }
+
+
+    @Test
+    public void testCompileSharedSubexpressions() throws ParsingException {
+        Function derivative = parse("(sinx)^(x*y)").differentiate("x")
+                .differentiate("y");
+        Function let = CommonSubexpressions.eliminate(derivative);
+        FunctionCompiler compiler = new FunctionCompiler(VARS);
+        double[] vars = {1.25, 0.75};
+        double expected = reference(derivative, vars[0], vars[1]);
+
+        Assert.assertEquals(expected, compiler.compile(derivative)
+                .applyAsDouble(vars), 1e-9);
+        Assert.assertEquals(expected, compiler.compile(let)
+                .applyAsDouble(vars), 1e-9);
+        Assert.assertEquals(expected, compiler.assemble(let)
+                .evaluate(vars), 1e-9);
+    }
+
+
+    @Test
+    public void testProgramReusesRegisters() throws ParsingException {
+        Program program = new FunctionCompiler(VARS).assemble(parse("x*y"));
+        double[] registers = new double[program.getRegisterCount()];
+
+        Assert.assertEquals(6, program.evaluate(new double[] {2, 3},
+                registers), DELTA);
+        Assert.assertEquals(-1, program.evaluate(new double[] {0.5, -2},
+                registers), DELTA);
+    }
+
+
+    @Test
+    public void testProgramSharedNode() {
+        Function x = new Variable("x");
+        Function square = new Multiply();
+        square.setFirstChild(x);
+        square.setSecondChild(x);
+
+        Program program = new FunctionCompiler(VARS).assemble(square);
+
+        Assert.assertEquals(2, program.size());
+        Assert.assertEquals(9, program.evaluate(new double[] {3, 0}), DELTA);
+    }
+
+
+    @Test
+    public void testBatchMatchesProgram() throws ParsingException {
+        Function function = parse("sinx*y+x^2/(y+3)-lny");
+        Program program = new FunctionCompiler(VARS).assemble(function);
+
+        // More rows than a single block.
+        int rows = 2500;
+        Map<String, double[]> columns = new HashMap<String, double[]>();
+        double[] xs = new double[rows];
+        double[] ys = new double[rows];
+        for (int i = 0; i < rows; ++i) {
+            xs[i] = i * 0.01;
+            ys[i] = 1 + i * 0.002;
+        }
+        columns.put("x", xs);
+        columns.put("y", ys);
+
+        double[] actual = new double[rows];
+        new BatchEvaluator(program).evaluate(columns, actual);
+
+        for (int i = 0; i < rows; ++i)
+            Assert.assertEquals(program.evaluate(new double[] {xs[i], ys[i]}),
+                    actual[i], DELTA);
+    }
+
+
+    @Test
+    public void testBatchVariableResult() throws ParsingException {
+        Program program = new FunctionCompiler(VARS).assemble(parse("y"));
+        double[] actual = new double[3];
+        new BatchEvaluator(program).evaluate(new double[][] {null,
+            {4, 5, 6}}, actual);
+
+        Assert.assertArrayEquals(new double[] {4, 5, 6}, actual, DELTA);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchMissingColumn() throws ParsingException {
+        Program program = new FunctionCompiler(VARS).assemble(parse("x+y"));
+        Map<String, double[]> columns = new HashMap<String, double[]>();
+        columns.put("x", new double[] {1, 2});
+        new BatchEvaluator(program).evaluate(columns, new double[2]);
+    }
+
+
+    @Test
+    public void testGradientMatchesDerivatives() throws ParsingException {
+        String[] expressions = {"x*y", "x^y", "sin(x*y)/cosy", "tan(x-y)",
+            "ln(x+y)*x", "-(x^3)+y^2"};
+        FunctionCompiler compiler = new FunctionCompiler(VARS);
+        double x = 1.25;
+        double y = 0.75;
+
+        for (String expression : expressions) {
+            Function function = parse(expression);
+            double[] gradient = new double[2];
+            double value = new Gradient(compiler.assemble(function))
+                    .evaluate(new double[] {x, y}, gradient);
+
+            Assert.assertEquals(expression, reference(function, x, y), value,
+                    1e-9);
+            Assert.assertEquals(expression, reference(function
+                    .differentiate("x"), x, y), gradient[0], 1e-9);
+            Assert.assertEquals(expression, reference(function
+                    .differentiate("y"), x, y), gradient[1], 1e-9);
+        }
+    }
+
+
+    @Test
+    public void testGradientManyVariables() {
+        List<String> vars = new ArrayList<String>();
+        Function sum = null;
+        for (int i = 0; i < 100; ++i) {
+            String var = "v" + i;
+            vars.add(var);
+
+            // Sum of i*v_i^2.
+            Function square = new Exponent();
+            square.setFirstChild(new Variable(var));
+            square.setSecondChild(new Number("2"));
+            Function term = new Multiply();
+            term.setFirstChild(new Number(Integer.toString(i)));
+            term.setSecondChild(square);
+
+            if (sum == null) {
+                sum = term;
+            } else {
+                Function plus = new Plus();
+                plus.setFirstChild(sum);
+                plus.setSecondChild(term);
+                sum = plus;
+            }
+        }
+
+        double[] point = new double[100];
+        for (int i = 0; i < 100; ++i)
+            point[i] = i * 0.5;
+
+        double[] gradient = new double[100];
+        new Gradient(new FunctionCompiler(vars).assemble(sum)).evaluate(point,
+                gradient);
+
+        for (int i = 0; i < 100; ++i)
+            Assert.assertEquals(2 * i * point[i], gradient[i], DELTA);
+    }
+
+
+    @Test
+    public void testDirectionalDerivativeMatchesGradient()
+            throws ParsingException {
+        String[] expressions = {"x*y", "x^y", "sin(x*y)/cosy", "tan(x-y)",
+            "ln(x+y)*x", "-(x^3)+y^2", "x^2", "logx*y"};
+        FunctionCompiler compiler = new FunctionCompiler(VARS);
+        double[] point = {1.25, 0.75};
+        double[] direction = {0.6, -0.8};
+
+        for (String expression : expressions) {
+            Program program = compiler.assemble(parse(expression));
+            double[] gradient = new double[2];
+            new Gradient(program).evaluate(point, gradient);
+
+            double expected = gradient[0] * direction[0] + gradient[1]
+                    * direction[1];
+            Assert.assertEquals(expression, expected, new DirectionalDerivative(
+                    program).evaluate(point, direction), 1e-9);
+        }
+    }
+
+
+    @Test
+    public void testDualMatchesDirectionalDerivative() throws ParsingException {
+        String[] expressions = {"x*y", "x^y", "sin(x*y)/cosy", "tan(x-y)",
+            "ln(x+y)*x", "logx*y"};
+        FunctionCompiler compiler = new FunctionCompiler(VARS);
+
+        Map<String, Function> varMap = new HashMap<String, Function>();
+        varMap.put("x", new Number("1.25"));
+        varMap.put("y", new Number("0.75"));
+        Map<String, Function> direction = new HashMap<String, Function>();
+        direction.put("x", new Number("0.6"));
+        direction.put("y", new Number("-0.8"));
+
+        for (String expression : expressions) {
+            Function function = parse(expression);
+            DualNumber dual = function.evaluateDual(varMap, direction);
+            double derivative = new DirectionalDerivative(compiler.assemble(
+                    function)).evaluate(new double[] {1.25, 0.75},
+                    new double[] {0.6, -0.8});
+
+            Assert.assertEquals(expression, reference(function, 1.25, 0.75),
+                    dual.getValue().doubleValue(), 1e-9);
+            Assert.assertEquals(expression, derivative, dual.getDerivative()
+                    .doubleValue(), 1e-9);
+        }
+    }
+
+
+    @Test
+    public void testJacobian() throws ParsingException {
+        List<String> vars = Arrays.asList("x", "y", "z");
+        FunctionParser fp = new FunctionParser(new ArrayList<String>(vars));
+        List<Function> functions = new ArrayList<Function>();
+        functions.add(fp.parse("x*y"));
+        functions.add(fp.parse("sinz+z^2"));
+        functions.add(fp.parse("x*0+y"));
+        functions.add(fp.parse("3"));
+
+        Jacobian jacobian = new Jacobian(functions, vars);
+        SparseMatrix matrix = jacobian.evaluate(new double[] {2, 3, 0.5});
+
+        // Only the variables each function depends on have entries.
+        Assert.assertEquals(4, jacobian.getEntryCount());
+        Assert.assertArrayEquals(new int[] {0, 1}, matrix.getColumns(0));
+        Assert.assertArrayEquals(new int[] {2}, matrix.getColumns(1));
+        Assert.assertArrayEquals(new int[] {1}, matrix.getColumns(2));
+        Assert.assertArrayEquals(new int[0], matrix.getColumns(3));
+        Assert.assertFalse(matrix.isStored(0, 2));
+
+        Assert.assertEquals(3, matrix.get(0, 0), DELTA);
+        Assert.assertEquals(2, matrix.get(0, 1), DELTA);
+        Assert.assertEquals(0, matrix.get(0, 2), DELTA);
+        Assert.assertEquals(Math.cos(0.5) + 1, matrix.get(1, 2), DELTA);
+        Assert.assertEquals(1, matrix.get(2, 1), DELTA);
+
+        // The plan is reused at other points.
+        matrix = jacobian.evaluate(new double[] {-1, 4, 0});
+        Assert.assertEquals(4, matrix.get(0, 0), DELTA);
+        Assert.assertEquals(-1, matrix.get(0, 1), DELTA);
+        Assert.assertEquals(1, matrix.get(1, 2), DELTA);
+    }
+
+
+    @Test
+    public void testHessianMatchesDerivatives() throws ParsingException {
+        String[] expressions = {"x*y", "x^y", "sin(x*y)/cosy", "tan(x-y)",
+            "ln(x+y)*x", "-(x^3)+y^2", "x/y", "logx*y"};
+        double x = 1.25;
+        double y = 0.75;
+
+        for (String expression : expressions) {
+            Function function = parse(expression);
+            SparseMatrix hessian = new Hessian(function, VARS).evaluate(
+                    new double[] {x, y});
+
+            for (int i = 0; i < 2; ++i) {
+                for (int j = 0; j < 2; ++j) {
+                    Function second = function.differentiate(VARS.get(i))
+                            .differentiate(VARS.get(j));
+                    Assert.assertEquals(expression, reference(second, x, y),
+                            hessian.get(i, j), 1e-9);
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testHessianSparsity() throws ParsingException {
+        List<String> vars = Arrays.asList("w", "x", "y", "z");
+        FunctionParser fp = new FunctionParser(new ArrayList<String>(vars));
+        Hessian hessian = new Hessian(fp.parse("x*y+sinz+3*w"), vars);
+
+        SparseMatrix pattern = hessian.getPattern();
+        Assert.assertEquals(3, pattern.getEntryCount());
+        Assert.assertArrayEquals(new int[0], pattern.getColumns(0));
+        Assert.assertArrayEquals(new int[] {2}, pattern.getColumns(1));
+        Assert.assertArrayEquals(new int[] {1}, pattern.getColumns(2));
+        Assert.assertArrayEquals(new int[] {3}, pattern.getColumns(3));
+
+        SparseMatrix matrix = hessian.evaluate(new double[] {1, 2, 3, 0.5});
+        Assert.assertEquals(1, matrix.get(1, 2), DELTA);
+        Assert.assertEquals(-Math.sin(0.5), matrix.get(3, 3), DELTA);
+        Assert.assertEquals(0, matrix.get(1, 1), DELTA);
+    }
+
+
+    @Test
+    public void testHessianVectorProduct() throws ParsingException {
+        Function function = parse("x^2*y+sin(x*y)");
+        Hessian hessian = new Hessian(function, VARS);
+        double[] point = {0.5, 2};
+        double[] vector = {3, -1};
+
+        SparseMatrix matrix = hessian.evaluate(point);
+        double[] product = new double[2];
+        hessian.product(point, vector, product);
+
+        for (int i = 0; i < 2; ++i)
+            Assert.assertEquals(matrix.get(i, 0) * vector[0] + matrix.get(i, 1)
+                    * vector[1], product[i], 1e-9);
+    }
+
+
+    @Test(expected = CompilationException.class)
+    public void testAssembleUnknownVariable() throws ParsingException {
+        new FunctionCompiler(Arrays.asList("x")).assemble(parse("x+y"));
+    }
+
+
+    @Test(expected = CompilationException.class)
+    public void testCompileUnknownVariable() throws ParsingException {
+        new FunctionCompiler(Arrays.asList("x")).compile(parse("x+y"));
+    }
+}
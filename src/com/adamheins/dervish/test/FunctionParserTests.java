@@ -18,7 +18,9 @@ import com.adamheins.dervish.function.Cos;
 import com.adamheins.dervish.function.Function;
 import com.adamheins.dervish.function.Ln;
 import com.adamheins.dervish.function.Log;
+import com.adamheins.dervish.function.Multiply;
 import com.adamheins.dervish.function.Number;
+import com.adamheins.dervish.function.Plus;
 import com.adamheins.dervish.function.Sin;
 import com.adamheins.dervish.function.Tan;
 import com.adamheins.dervish.function.Variable;
@@ -296,4 +298,62 @@ public class FunctionParserTests {
 
         Assert.assertEquals(expected, actual);
     }
+
+
+    @Test
+    public void testParseNumbersInExpression() throws ParsingException {
+        FunctionParser fp = new FunctionParser(null);
+        Function actual = fp.parse("0.125*12345678901234567890.5+.5");
+
+        FunctionBuilder fb = new FunctionBuilder();
+        fb.add(new Number("0.125"), 0);
+        fb.add(new Multiply(), 0);
+        fb.add(new Number("12345678901234567890.5"), 0);
+        fb.add(new Plus(), 0);
+        fb.add(new Number("0.5"), 0);
+        Function expected = fb.getFunction();
+
+        Assert.assertEquals(expected, actual);
+    }
+
+
+    @Test
+    public void testParseLongestVariable() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        varList.add("k");
+        varList.add("kab");
+        varList.add("ex");
+        FunctionParser fp = new FunctionParser(varList);
+        Function actual = fp.parse("kab*k+ex");
+
+        FunctionBuilder fb = new FunctionBuilder();
+        fb.add(new Variable("kab"), 0);
+        fb.add(new Multiply(), 0);
+        fb.add(new Variable("k"), 0);
+        fb.add(new Plus(), 0);
+        fb.add(new Variable("ex"), 0);
+        Function expected = fb.getFunction();
+
+        Assert.assertEquals(expected, actual);
+    }
+
+
+    @Test
+    public void testParseManyVariables() throws ParsingException {
+        List<String> varList = new ArrayList<String>();
+        StringBuilder math = new StringBuilder("sin(x)");
+        for (int i = 0; i < 2000; ++i) {
+            // Distinct names of letters, by the digits of i in base 26.
+            String var = "v";
+            for (int n = i; n > 0; n /= 26)
+                var += (char)('a' + n % 26);
+            varList.add(var);
+            math.append('+').append(var);
+        }
+        varList.add("x");
+        FunctionParser fp = new FunctionParser(varList);
+        Function actual = fp.parse(math.toString());
+
+        Assert.assertEquals(varList.size(), actual.getVariables().size());
+    }
 }